@@ -0,0 +1,214 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ *  BooleanBitsetEvaluator evaluates a query for the unranked Boolean
+ *  retrieval model with bitsets instead of document-at-a-time
+ *  iterators.  Every matching document has the score 1.0, so the
+ *  query is just a set operation:  each operator produces a bitset
+ *  with one bit per document, #AND intersects its arguments' bitsets
+ *  and #OR and #SYN unite them, a long (64 documents) at a time.
+ *  Only the root's bitset is turned into a ScoreList.
+ *  <p>
+ *  A term's bitset is read from its Lucene postings without
+ *  frequencies or positions, one segment at a time.  #NEAR/n and
+ *  #WINDOW/n need positions, so they are evaluated as usual (which may
+ *  use the phrase index or the postings cache), and their inverted
+ *  lists are converted to bitsets.  Arguments of #OR and #SYN are
+ *  written directly into their parent's bitset, so a large disjunction
+ *  allocates one bitset, not one per term.
+ *  </p><p>
+ *  The result is the same list, in docid order, that document-at-a-
+ *  time evaluation produces.  Queries that use other operators, whose
+ *  unranked Boolean behavior is an error or unusual, are not
+ *  evaluated; the caller falls back to the iterators.
+ *  </p>
+ */
+public class BooleanBitsetEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final RetrievalModel model;
+  private final int maxDoc;
+
+  //  --------------- Methods ---------------------------------------
+
+  private BooleanBitsetEvaluator(RetrievalModel model) {
+    this.model = model;
+    this.maxDoc = Idx.getMaxDoc();
+  }
+
+  /**
+   *  Evaluate an uninitialized query tree.
+   *  @param q The query tree, e.g., from QryPlan.instantiate.
+   *  @param model The unranked Boolean retrieval model.
+   *  @return The matching documents, each with score 1.0, in docid
+   *  order; or null if the query has operators that this class
+   *  doesn't evaluate.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static ScoreList evaluate(Qry q, RetrievalModel model)
+    throws IOException {
+
+    if (!(((q instanceof QrySopOr) || (q instanceof QrySopAnd)) &&
+          isSupported(q)))
+      return null;
+
+    ScoreList r = new ScoreList();
+
+    if (q.args.size() == 0)		// Ignore empty queries
+      return r;
+
+    BooleanBitsetEvaluator e = new BooleanBitsetEvaluator(model);
+    FixedBitSet bits = new FixedBitSet(e.maxDoc);
+
+    e.addDocs(q, bits);
+
+    for (int docid = nextSetBit(bits, 0); docid >= 0;
+         docid = nextSetBit(bits, docid + 1))
+      r.add(docid, 1.0);
+
+    return r;
+  }
+
+  /**
+   *  True if every operator in a subtree can be evaluated with bitsets.
+   */
+  private static boolean isSupported(Qry q) {
+
+    if (q instanceof QryIop)
+      return true;		// Including its arguments
+
+    if ((q instanceof QrySopOr) || (q instanceof QrySopAnd) ||
+        (q instanceof QrySopScore)) {
+      for (Qry q_i : q.args)
+        if (!isSupported(q_i))
+          return false;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   *  Add the documents that a query operator matches to a bitset.
+   *  @param q The query operator.
+   *  @param bits The bitset.
+   */
+  private void addDocs(Qry q, FixedBitSet bits) throws IOException {
+
+    if (q.getEstimatedCost() == 0)
+      return;			// The optimizer showed it is empty
+
+    if (q instanceof QryIopTerm) {
+      this.addTermDocs((QryIopTerm) q, bits);
+    } else if ((q instanceof QryIopSyn) || (q instanceof QrySopOr) ||
+               (q instanceof QrySopScore)) {
+      for (Qry q_i : q.args)
+        this.addDocs(q_i, bits);
+    } else if (q instanceof QrySopAnd) {
+      this.addAndDocs(q, bits);
+    } else {
+      this.addListDocs((QryIop) q, bits);
+    }
+  }
+
+  /**
+   *  Add the intersection of an #AND's arguments to a bitset.  The
+   *  cheapest argument is evaluated first, and the intersection stops
+   *  early if it becomes empty.
+   */
+  private void addAndDocs(Qry q, FixedBitSet bits) throws IOException {
+
+    int n = q.args.size();
+    Qry[] args = q.args.toArray(new Qry[n]);
+
+    for (int i = 1; i < n; i++) {
+      Qry a = args[i];
+      int j = i;
+
+      for (; (j > 0) && (cost(args[j - 1]) > cost(a)); j--)
+        args[j] = args[j - 1];
+
+      args[j] = a;
+    }
+
+    FixedBitSet result = new FixedBitSet(this.maxDoc);
+    FixedBitSet scratch = (n > 1) ? new FixedBitSet(this.maxDoc) : null;
+
+    this.addDocs(args[0], result);
+
+    for (int i = 1; (i < n) && (nextSetBit(result, 0) >= 0); i++) {
+      scratch.clear(0, this.maxDoc);
+      this.addDocs(args[i], scratch);
+      result.and(scratch);
+    }
+
+    bits.or(result);
+  }
+
+  /**
+   *  Add the documents that contain a term to a bitset.  Each segment's
+   *  postings are read without frequencies or positions.
+   */
+  private void addTermDocs(QryIopTerm q, FixedBitSet bits)
+    throws IOException {
+
+    Term term = new Term(q.getField(), new BytesRef(q.getTerm()));
+
+    for (AtomicReaderContext leaf : Idx.getIndexReader().leaves()) {
+      DocsEnum docs = leaf.reader().termDocsEnum(term);
+
+      if (docs == null)
+        continue;
+
+      int docBase = leaf.docBase;
+
+      for (int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS;
+           d = docs.nextDoc())
+        bits.set(docBase + d);
+    }
+  }
+
+  /**
+   *  Add the documents of an operator that must be materialized (e.g.,
+   *  #NEAR/n) to a bitset.
+   */
+  private void addListDocs(QryIop q, FixedBitSet bits) throws IOException {
+
+    q.initialize(this.model);
+
+    InvList list = q.invertedList;
+    InvList.Cursor cursor = list.cursor();
+
+    for (int i = 0; i < list.df; i++)
+      bits.set(cursor.getDocid(i));
+  }
+
+  /**
+   *  The optimizer's cost estimate, or the largest cost if there is
+   *  none.
+   */
+  private static long cost(Qry q) {
+    long cost = q.getEstimatedCost();
+    return (cost < 0) ? Long.MAX_VALUE : cost;
+  }
+
+  /**
+   *  The next set bit at or after index, or -1.  FixedBitSet requires
+   *  index to be less than its length.
+   */
+  private static int nextSetBit(FixedBitSet bits, int index) {
+    return (index < bits.length()) ? bits.nextSetBit(index) : -1;
+  }
+}
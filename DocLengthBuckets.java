@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ *  Quantized document lengths of one field, for approximate scoring
+ *  with lookup tables (see the BM25:lengthBuckets and
+ *  Indri:lengthBuckets parameters).
+ *  <p>
+ *  Lengths are grouped into at most 256 buckets that are evenly
+ *  spaced on a log scale, so short documents, whose scores are most
+ *  sensitive to length, get narrow buckets.  Each document's bucket is
+ *  stored in a byte array, so finding it is an array access instead
+ *  of a doc values lookup.  A bucket's length is the mean length of
+ *  the documents in it.  Per-term scoring constants can then be
+ *  precomputed for each bucket, instead of for each document.
+ *  </p><p>
+ *  Buckets are computed once per field, bucket count and generation
+ *  of the index (see Idx), when they are first needed, and are shared
+ *  by all threads.  A query that uses an older generation while the
+ *  index is refreshed uses that generation's buckets.
+ *  </p>
+ */
+public final class DocLengthBuckets {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The largest number of buckets; a bucket number must fit in a byte.
+   */
+  public static final int MAX_BUCKETS = 256;
+
+  private final byte[] docBucket;
+  private final double[] length;
+  private final double maxLengthError;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the buckets of a field's lengths.
+   *  @param field The field.
+   *  @param buckets The number of buckets, 1 to MAX_BUCKETS.
+   *  @return The buckets.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocLengthBuckets get(String field, int buckets)
+    throws IOException {
+
+    if ((buckets < 1) || (buckets > MAX_BUCKETS)) {
+      throw new IllegalArgumentException
+        ("The number of length buckets must be 1 to " + MAX_BUCKETS + ".");
+    }
+
+    String key = field + '\t' + buckets;
+    Map<String, DocLengthBuckets> cache = Idx.getDocLengthBuckets();
+
+    synchronized (cache) {
+      DocLengthBuckets b = cache.get(key);
+
+      if (b == null) {
+        b = new DocLengthBuckets(field, buckets);
+        cache.put(key, b);
+      }
+
+      return b;
+    }
+  }
+
+  private DocLengthBuckets(String field, int buckets)
+    throws IOException {
+
+    NumericDocValues lengths = Idx.getFieldLengths(field);
+    int maxDoc = Idx.getMaxDoc();
+    int maxLength = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      maxLength = Math.max(maxLength, (int) lengths.get(docid));
+
+    //  Bucket = floor (log (1 + length) * scale), so the longest
+    //  document is in the last bucket.
+
+    double scale = (maxLength > 0) ? (buckets - 1e-9) / Math.log1p(maxLength) : 0;
+    double[] sum = new double[buckets];
+    int[] count = new int[buckets];
+
+    this.docBucket = new byte[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      int len = (int) lengths.get(docid);
+      int b = Math.min(buckets - 1, (int) (Math.log1p(len) * scale));
+
+      this.docBucket[docid] = (byte) b;
+      sum[b] += len;
+      count[b]++;
+    }
+
+    this.length = new double[buckets];
+
+    for (int b = 0; b < buckets; b++) {
+      this.length[b] = (count[b] > 0) ?
+        sum[b] / count[b] : Math.expm1((b + 0.5) / scale);
+    }
+
+    double maxError = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      int len = (int) lengths.get(docid);
+      double error = Math.abs(len - this.length[this.getBucket(docid)]) / Math.max(len, 1);
+      maxError = Math.max(maxError, error);
+    }
+
+    this.maxLengthError = maxError;
+  }
+
+  /**
+   *  Get a document's bucket.
+   *  @param docid The document's internal document id.
+   *  @return The bucket.
+   */
+  public int getBucket(int docid) {
+    return this.docBucket[docid] & 0xFF;
+  }
+
+  /**
+   *  Get the length that represents the documents in a bucket.
+   *  @param bucket The bucket.
+   *  @return The mean length of the documents in the bucket.
+   */
+  public double getLength(int bucket) {
+    return this.length[bucket];
+  }
+
+  /**
+   *  Get the largest relative difference between a document's length
+   *  and its bucket's length.
+   *  @return The largest relative length error.
+   */
+  public double getMaxLengthError() {
+    return this.maxLengthError;
+  }
+
+  /**
+   *  Get the number of buckets.
+   *  @return The number of buckets.
+   */
+  public int size() {
+    return this.length.length;
+  }
+}
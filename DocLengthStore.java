@@ -38,4 +38,14 @@ public class DocLengthStore  {
   public long getDocLength(String fieldname, int docid) throws IOException {
     return values.get(fieldname).get(docid);
   }
+
+  /**
+   * Returns the lengths of the specified field in all documents, for
+   * callers that look up many lengths of the same field.
+   *
+   * @param fieldname Name of field to access lengths.
+   */
+  public NumericDocValues getDocLengths(String fieldname) {
+    return values.get(fieldname);
+  }
 }
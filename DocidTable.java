@@ -0,0 +1,443 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  DocidTable maps internal document ids to external document ids and
+ *  back without touching Lucene stored fields.  The external ids are
+ *  packed into a single UTF-8 string pool that is indexed by internal
+ *  docid; an open-addressing hash table over the pool provides the
+ *  reverse mapping.  Both directions are O(1).
+ *  <p>
+ *  The table is built once from the externalId term dictionary, which
+ *  is much cheaper than decompressing every stored document.  It can
+ *  be saved to a sidecar file so that later runs on the same index
+ *  can load it directly.  The sidecar records the index version and
+ *  size, and it is ignored (and rebuilt) if the index changes.
+ *  </p><p>
+ *  When the index is refreshed (see Idx.refresh), the new table is
+ *  built from the previous one:  only segments that are new since the
+ *  previous table was built are read from the index.
+ *  </p>
+ */
+public class DocidTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The field that stores each document's external id.
+   */
+  public static final String EXTERNAL_ID_FIELD = "externalId";
+
+  private static final int MAGIC = 0x44494454;		// "DIDT"
+  private static final int FORMAT = 1;
+  private static final int EMPTY_SLOT = -1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final long version;
+  private final int maxDoc;
+
+  private final byte[] pool;	// External ids, concatenated in docid order
+  private final int[] offsets;	// docid's id is pool[offsets[docid], offsets[docid+1])
+  private final int[] slots;	// Hash table of docids, keyed by external id
+  private final int mask;
+
+  //  --------------- Methods ---------------------------------------
+
+  private DocidTable(long version, int maxDoc, byte[] pool, int[] offsets,
+                     Bits liveDocs) {
+    this.version = version;
+    this.maxDoc = maxDoc;
+    this.pool = pool;
+    this.offsets = offsets;
+
+    //  Only live documents are entered in the hash table, so that an
+    //  updated document resolves to its current version.
+    //
+    //  Size the hash table at twice the number of documents, rounded
+    //  up to a power of two, so that probe sequences stay short.
+
+    int capacity = 2;
+    while (capacity < 2L * maxDoc)
+      capacity <<= 1;
+
+    this.slots = new int[capacity];
+    this.mask = capacity - 1;
+    Arrays.fill(this.slots, EMPTY_SLOT);
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      int start = offsets[docid];
+      int length = offsets[docid + 1] - start;
+
+      if (length == 0)
+        continue;		// No external id for this document
+
+      if ((liveDocs != null) && !liveDocs.get(docid))
+        continue;		// Deleted document
+
+      int slot = hash(pool, start, length) & this.mask;
+
+      while (this.slots[slot] != EMPTY_SLOT)
+        slot = (slot + 1) & this.mask;
+
+      this.slots[slot] = docid;
+    }
+  }
+
+  /**
+   *  Load the docid table from a sidecar file, or build it from the
+   *  index if the sidecar is missing or stale.  A freshly built table
+   *  is saved to the sidecar if possible; if it can't be, a warning is
+   *  written to stderr.
+   *  @param reader The index that the table describes.
+   *  @param sidecar The sidecar file, or null to skip persistence.
+   *  @return The docid table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocidTable open(IndexReader reader, File sidecar)
+    throws IOException {
+    return open(reader, sidecar, null, null);
+  }
+
+  /**
+   *  Load the docid table from a sidecar file, or build it from the
+   *  index and a table of an earlier version of the index.  The
+   *  external ids of the segments that both versions share are copied
+   *  from the earlier table.
+   *  @param reader The index that the table describes.
+   *  @param sidecar The sidecar file, or null to skip persistence.
+   *  @param previous The table of an earlier version, or null.
+   *  @param previousReader The earlier version of the index.
+   *  @return The docid table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocidTable open(IndexReader reader, File sidecar,
+                                DocidTable previous,
+                                IndexReader previousReader)
+    throws IOException {
+
+    long version = getIndexVersion(reader);
+
+    if ((sidecar != null) && sidecar.canRead()) {
+      DocidTable table = load(sidecar, version, reader);
+
+      if (table != null)
+        return table;
+    }
+
+    DocidTable table = build(reader, version, previous, previousReader);
+
+    if (sidecar != null) {
+      try {
+        table.save(sidecar);
+      } catch (IOException ex) {
+        //  The index directory may be read-only.  The in-memory table
+        //  still works; it just isn't reused by the next run, so say
+        //  why every run rebuilds it.
+
+        System.err.println("Warning:  Can't save the docid table to " +
+                           sidecar + ":  " + ex);
+      }
+    }
+
+    return table;
+  }
+
+  /**
+   *  Build the docid table by walking the externalId term dictionary
+   *  of each segment.  Two passes are made: the first records the
+   *  length of each id, so that the string pool can be allocated
+   *  exactly; the second copies the ids into the pool.  The ids of a
+   *  segment that the previous table describes are copied from it.
+   *  @param reader The index that the table describes.
+   *  @param version The index version.
+   *  @param previous The table of an earlier version, or null.
+   *  @param previousReader The earlier version of the index.
+   *  @return The docid table.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static DocidTable build(IndexReader reader, long version,
+                                  DocidTable previous,
+                                  IndexReader previousReader)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc();
+    int[] offsets = new int[maxDoc + 1];
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    //  The docBase of each segment of the previous version.  A segment
+    //  that has new deletions is the same segment (core).
+
+    Map<Object, Integer> previousBase = new HashMap<Object, Integer>();
+
+    if (previous != null) {
+      for (AtomicReaderContext leaf : previousReader.leaves())
+        previousBase.put(leaf.reader().getCoreCacheKey(), leaf.docBase);
+    }
+
+    //  Pass 1:  offsets[docid+1] = length of docid's external id.
+
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      Integer base = previousBase.get(leaf.reader().getCoreCacheKey());
+
+      if (base != null) {
+        for (int d = 0; d < leaf.reader().maxDoc(); d++)
+          offsets[leaf.docBase + d + 1] =
+            previous.offsets[base + d + 1] - previous.offsets[base + d];
+      } else {
+        copyTerms(leaf, offsets, null);
+      }
+    }
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      offsets[docid + 1] += offsets[docid];
+
+    //  Pass 2:  Copy each external id into its place in the pool.
+
+    byte[] pool = new byte[offsets[maxDoc]];
+
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      Integer base = previousBase.get(leaf.reader().getCoreCacheKey());
+
+      if (base != null) {
+        int start = previous.offsets[base];
+        int end = previous.offsets[base + leaf.reader().maxDoc()];
+
+        System.arraycopy(previous.pool, start, pool,
+                         offsets[leaf.docBase], end - start);
+      } else {
+        copyTerms(leaf, offsets, pool);
+      }
+    }
+
+    return new DocidTable(version, maxDoc, pool, offsets, liveDocs);
+  }
+
+  /**
+   *  Walk the externalId term dictionary of a segment.  If pool is
+   *  null, record the length of each document's id in offsets[docid+1];
+   *  otherwise copy each id to pool[offsets[docid]].
+   */
+  private static void copyTerms(AtomicReaderContext leaf, int[] offsets,
+                                byte[] pool) throws IOException {
+
+    Terms terms = leaf.reader().terms(EXTERNAL_ID_FIELD);
+
+    if (terms == null)
+      return;
+
+    TermsEnum ithTerm = terms.iterator(null);
+    DocsEnum docs = null;
+    BytesRef term;
+
+    while ((term = ithTerm.next()) != null) {
+      docs = ithTerm.docs(null, docs, DocsEnum.FLAG_NONE);
+
+      while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        int docid = leaf.docBase + docs.docID();
+
+        if (pool == null) {
+          offsets[docid + 1] = term.length;
+        } else {
+          int length = Math.min(term.length, offsets[docid + 1] - offsets[docid]);
+          System.arraycopy(term.bytes, term.offset, pool, offsets[docid], length);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Get the external document id for an internal document id.
+   *  @param docid The internal document id.
+   *  @return The external document id, or null if the document has none.
+   *  @throws IllegalArgumentException docid is not a valid document id.
+   */
+  public String getExternalDocid(int docid) {
+
+    if ((docid < 0) || (docid >= this.maxDoc))
+      throw new IllegalArgumentException("docID must be >= 0 and < maxDoc="
+					 + this.maxDoc + " (got docID=" + docid + ")");
+
+    int start = this.offsets[docid];
+    int length = this.offsets[docid + 1] - start;
+
+    if (length == 0)
+      return null;
+
+    return new String(this.pool, start, length, UTF8);
+  }
+
+  /**
+   *  Get the internal document id for an external document id.
+   *  @param externalId The external document id.
+   *  @return The internal document id, or -1 if there is no such document.
+   */
+  public int getInternalDocid(String externalId) {
+
+    byte[] key = externalId.getBytes(UTF8);
+    int slot = hash(key, 0, key.length) & this.mask;
+
+    while (this.slots[slot] != EMPTY_SLOT) {
+      int docid = this.slots[slot];
+
+      if (equals(key, docid))
+        return docid;
+
+      slot = (slot + 1) & this.mask;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Get the index version that the table was built from.
+   *  @return The index version, or -1 if the reader doesn't have one.
+   */
+  public long getVersion() {
+    return this.version;
+  }
+
+  /**
+   *  Save the table to a sidecar file.  The file is written to a
+   *  temporary name first so that a partial file is never loaded.
+   *  @param sidecar The sidecar file.
+   *  @throws IOException Error writing the file.
+   */
+  public void save(File sidecar) throws IOException {
+
+    File tmp = new File(sidecar.getPath() + ".tmp");
+    ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+
+    header.putInt(MAGIC).putInt(FORMAT).putLong(this.version)
+      .putInt(this.maxDoc).putInt(this.pool.length).flip();
+
+    ByteBuffer ints =
+      ByteBuffer.allocate(4 * this.offsets.length).order(ByteOrder.LITTLE_ENDIAN);
+    ints.asIntBuffer().put(this.offsets);
+
+    FileOutputStream out = new FileOutputStream(tmp);
+
+    try {
+      FileChannel channel = out.getChannel();
+      writeFully(channel, header);
+      writeFully(channel, ByteBuffer.wrap(this.pool));
+      writeFully(channel, ints);
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(sidecar)) {
+      sidecar.delete();
+
+      if (!tmp.renameTo(sidecar)) {
+        tmp.delete();
+        throw new IOException("Unable to write " + sidecar);
+      }
+    }
+  }
+
+  /**
+   *  Load a table from a sidecar file.
+   *  @param sidecar The sidecar file.
+   *  @param version The version of the open index.
+   *  @param reader The open index.
+   *  @return The table, or null if the sidecar doesn't match the index.
+   */
+  private static DocidTable load(File sidecar, long version,
+                                 IndexReader reader) {
+
+    int maxDoc = reader.maxDoc();
+
+    try {
+      FileInputStream in = new FileInputStream(sidecar);
+
+      try {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buf =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        if ((buf.getInt() != MAGIC) ||
+            (buf.getInt() != FORMAT) ||
+            (buf.getLong() != version) ||
+            (buf.getInt() != maxDoc))
+          return null;
+
+        byte[] pool = new byte[buf.getInt()];
+        int[] offsets = new int[maxDoc + 1];
+
+        if (buf.remaining() != pool.length + 4L * offsets.length)
+          return null;
+
+        buf.get(pool);
+        buf.asIntBuffer().get(offsets);
+
+        return new DocidTable(version, maxDoc, pool, offsets,
+                              MultiFields.getLiveDocs(reader));
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    } catch (RuntimeException ex) {
+      return null;		// A truncated or corrupt sidecar
+    }
+  }
+
+  /**
+   *  Get the version of an index.  Only DirectoryReaders have one.
+   */
+  private static long getIndexVersion(IndexReader reader) {
+    if (reader instanceof DirectoryReader)
+      return ((DirectoryReader) reader).getVersion();
+    else
+      return -1;
+  }
+
+  /**
+   *  Compare a key to the external id of a document.
+   */
+  private boolean equals(byte[] key, int docid) {
+
+    int start = this.offsets[docid];
+
+    if (this.offsets[docid + 1] - start != key.length)
+      return false;
+
+    for (int i = 0; i < key.length; i++)
+      if (this.pool[start + i] != key[i])
+        return false;
+
+    return true;
+  }
+
+  private static int hash(byte[] bytes, int start, int length) {
+    int h = 0;
+
+    for (int i = start; i < start + length; i++)
+      h = 31 * h + bytes[i];
+
+    return h ^ (h >>> 16);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf)
+    throws IOException {
+    while (buf.hasRemaining())
+      channel.write(buf);
+  }
+}
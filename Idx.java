@@ -3,24 +3,199 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
 
 /**
  *  The interface to the Lucene index.
+ *  <p>
+ *  The index can be refreshed while queries are running, to see
+ *  documents that were added or deleted since it was opened (see
+ *  refresh).  Each refresh makes a new generation:  an index reader
+ *  and the DocLengthStore, DocidTable and phrase index that describe
+ *  it.  A query uses one generation from start to finish, even if
+ *  the index is refreshed meanwhile:  it acquires the generation,
+ *  and pins it to each thread that works on it (see acquire and pin).
+ *  The methods of this class use the thread's pinned generation, or
+ *  the newest one if the thread hasn't pinned one.  Generations are
+ *  reference counted; an old generation's reader is closed when the
+ *  last query that uses it releases it.
+ *  </p>
  */
 public class Idx {
 
   //  --------------- Constants and variables ---------------------
 
+  /**
+   *  The newest index reader.  Query processing uses getIndexReader,
+   *  which returns the reader of the thread's generation.
+   */
   public static IndexReader INDEXREADER=null;
-  private static DocLengthStore DOCLENGTHSTORE;
+  private static volatile Generation CURRENT = null;
+  private static final ThreadLocal<Generation> PINNED =
+    new ThreadLocal<Generation> ();
+  private static PostingsCache POSTINGSCACHE = null;
+  private static File DOCIDSIDECAR = null;
+  private static File PHRASESIDECAR = null;
+  private static ScheduledExecutorService REFRESHER = null;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  One generation of the index:  a reader, and the structures that
+   *  describe it.
+   */
+  public static final class Generation {
+
+    private final IndexReader reader;
+    private final long version;
+    private final DocLengthStore docLengthStore;
+    private final DocidTable docidTable;
+    private volatile PhraseIndex phraseIndex;
+
+    /**
+     *  Quantized document lengths, by field and bucket count (see
+     *  DocLengthBuckets).  They are built when they are first needed.
+     */
+    private final Map<String, DocLengthBuckets> lengthBuckets =
+      new HashMap<String, DocLengthBuckets> ();
+
+    /**
+     *  One reference for each query that uses the generation, and one
+     *  while it is the newest generation.
+     */
+    private final AtomicInteger references = new AtomicInteger (1);
+
+    /**
+     *  Describe an index reader.  Most of the work is for the
+     *  segments that changed since the previous generation:  Lucene
+     *  shares the readers (and document lengths) of unchanged
+     *  segments, and the DocidTable reuses their external ids.
+     *  @param reader The index reader.
+     *  @param previous The previous generation, or null.
+     */
+    private Generation (IndexReader reader, Generation previous)
+      throws IOException {
+
+      this.reader = reader;
+      this.version = (reader instanceof DirectoryReader) ?
+        ((DirectoryReader) reader).getVersion () : -1;
+
+      //  Lucene doesn't store field lengths the way that we want them,
+      //  so we have our own document length store.
+
+      this.docLengthStore = new DocLengthStore (reader);
+
+      //  Map internal docids to external docids (and back) without
+      //  reading Lucene's stored fields.
+
+      this.docidTable = (previous == null) ?
+        DocidTable.open (reader, DOCIDSIDECAR) :
+        DocidTable.open (reader, DOCIDSIDECAR,
+                         previous.docidTable, previous.reader);
+
+      this.phraseIndex = PhraseIndex.open (reader, PHRASESIDECAR);
+    }
+
+    private boolean tryIncRef () {
+      int n;
+
+      do {
+        n = this.references.get ();
+
+        if (n == 0)
+          return false;			// Closed
+      } while (!this.references.compareAndSet (n, n + 1));
+
+      return true;
+    }
+
+    private void decRef () throws IOException {
+      if (this.references.decrementAndGet () == 0)
+        this.reader.close ();
+    }
+
+    /**
+     *  Get the index version of this generation.
+     *  @return The version, or -1 if the index reader has no version.
+     */
+    public long getVersion () {
+      return this.version;
+    }
+  }
 
   //  --------------- Methods ---------------------------------------
 
+  /**
+   *  Get the thread's pinned generation, or the newest generation.
+   */
+  private static Generation generation () {
+    Generation g = PINNED.get ();
+    return (g != null) ? g : CURRENT;
+  }
+
+  /**
+   *  Acquire a generation for a query:  the thread's pinned
+   *  generation, if it has one, so that nested calls use the same
+   *  generation; otherwise the newest one.  Each call must be matched
+   *  by a call to release.
+   *  @return The generation.
+   */
+  public static Generation acquire () {
+
+    Generation g = PINNED.get ();
+
+    if (g != null) {
+      g.references.incrementAndGet ();	// The thread holds a reference
+      return g;
+    }
+
+    while (true) {
+      g = CURRENT;
+
+      if (g.tryIncRef ())
+        return g;
+    }
+  }
+
+  /**
+   *  Release a generation that was acquired.
+   *  @param g The generation.
+   *  @throws IOException Error closing the index reader.
+   */
+  public static void release (Generation g) throws IOException {
+    g.decRef ();
+  }
+
+  /**
+   *  Make the Idx methods use a generation in this thread.  The caller
+   *  must hold a reference to the generation until it is unpinned.
+   *  @param g The generation, or null to use the newest generation.
+   *  @return The generation that was pinned before, to restore later.
+   */
+  public static Generation pin (Generation g) {
+
+    Generation previous = PINNED.get ();
+
+    if (g == null)
+      PINNED.remove ();
+    else
+      PINNED.set (g);
+
+    return previous;
+  }
+
+  /**
+   *  Get the index reader of the thread's generation.
+   *  @return The index reader.
+   */
+  public static IndexReader getIndexReader () {
+    return generation ().reader;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -28,19 +203,30 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   static int getDocCount (String fieldName) throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return generation ().reader.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the number of documents that contain a term in the specified
+   *  field.  This reads only the term dictionary, not the postings.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The document frequency of the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static int getDocFreq (String fieldName, String term) throws IOException {
+    return generation ().reader.docFreq (new Term (fieldName, term));
   }
 
   /**
    * Get the external document id for a document specified by an internal
-   * document id.
+   * document id.  The lookup uses the in-memory {@link DocidTable},
+   * so it does not read the document's stored fields.
    * @param iid The internal document id of the document.
    * @throws IOException Error accessing the Lucene index.
    */
   static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get("externalId");
-    return eid;
+    return generation ().docidTable.getExternalDocid(iid);
   }
 
   /**
@@ -51,7 +237,19 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   static int getFieldLength (String fieldName, int docid) throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return (int) generation ().docLengthStore.getDocLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the lengths of the specified field in all documents.  Look
+   *  up a document's length with (int) lengths.get (docid); this is
+   *  the same value as getFieldLength, without the per-call field
+   *  lookup.
+   *  @param fieldname Name of field to access lengths.
+   *  @return the lengths of the field.
+   */
+  static NumericDocValues getFieldLengths (String fieldName) {
+    return generation ().docLengthStore.getDocLengths (fieldName);
   }
 
   /**
@@ -65,27 +263,83 @@ public class Idx {
   static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
+    int iid = generation ().docidTable.getInternalDocid(externalId);
 
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-    if (hits.length < 1) {
+    if (iid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return iid;
     }
   }
 
+  /**
+   *  Get the cache of inverted lists that are stored outside the Java
+   *  heap.
+   *  @return The postings cache, or null if there isn't one.
+   */
+  static PostingsCache getPostingsCache () {
+    return Idx.POSTINGSCACHE;
+  }
+
+  /**
+   *  Get the quantized document lengths of the index, by field and
+   *  bucket count.  Each generation has its own, so they are dropped
+   *  with it.
+   *  @return The map.  Synchronize on it to use it.
+   */
+  static Map<String, DocLengthBuckets> getDocLengthBuckets () {
+    return generation ().lengthBuckets;
+  }
+
+  /**
+   *  Get the precomputed inverted lists of frequent proximity
+   *  operators.
+   *  @return The phrase index, or null if there isn't one.
+   */
+  static PhraseIndex getPhraseIndex () {
+    return generation ().phraseIndex;
+  }
+
+  /**
+   *  Get the file that the phrase index is read from.
+   *  @return The file, or null if there is no cache directory.
+   */
+  static File getPhraseIndexFile () {
+    return PHRASESIDECAR;
+  }
+
+  /**
+   *  Stop using the phrase index, e.g., while a new one is built.
+   */
+  static void closePhraseIndex () {
+    CURRENT.phraseIndex = null;
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return generation ().reader.numDocs();
+  }
+
+  /**
+   *  Get one more than the largest internal document id, including
+   *  deleted documents.
+   *  @return The largest internal document id, plus 1.
+   */
+  public static int getMaxDoc () {
+    return generation ().reader.maxDoc();
+  }
+
+  /**
+   *  Get the version of the index, which changes whenever the index
+   *  is changed.
+   *  @return The version, or -1 if the index reader has no version.
+   */
+  public static long getIndexVersion () {
+    return generation ().version;
   }
 
   /**
@@ -98,35 +352,154 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return generation ().reader.getSumTotalTermFreq (fieldName);
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and the associated DocLengthStore and
+   *  DocidTable.  The DocidTable is kept in memory only, and no
+   *  phrase index is used.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
   public static void initialize (String indexPath)
     throws IllegalArgumentException, IOException {
+    initialize (indexPath, null);
+  }
+
+  /**
+   *  Open a Lucene index and the associated DocLengthStore and
+   *  DocidTable.  If cachePath is given, the DocidTable is cached in
+   *  a file there (cachePath/indexName.docids) so that later runs can
+   *  skip building it; otherwise nothing is written.  If cachePath
+   *  has a phrase index for the index (cachePath/indexName.phrases,
+   *  see PhraseIndexBuilder), it is opened too.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param cachePath A directory for files derived from the index,
+   *    or null to keep them in memory only.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static synchronized void initialize (String indexPath,
+                                              String cachePath)
+    throws IllegalArgumentException, IOException {
 
     //  Open the Lucene index
 
-    Idx.INDEXREADER =
+    IndexReader reader =
       DirectoryReader.open (FSDirectory.open (new File (indexPath)));
   
-    if (Idx.INDEXREADER == null) {
+    if (reader == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
 
-    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER);
-  
-    if (Idx.DOCLENGTHSTORE == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
+    File indexDir = new File (indexPath).getAbsoluteFile ();
+
+    if (cachePath != null) {
+      File cacheDir = new File (cachePath);
+
+      cacheDir.mkdirs ();
+      Idx.DOCIDSIDECAR =
+        new File (cacheDir, indexDir.getName () + ".docids");
+      Idx.PHRASESIDECAR =
+        new File (cacheDir, indexDir.getName () + ".phrases");
+    } else {
+      Idx.DOCIDSIDECAR = null;
+      Idx.PHRASESIDECAR = null;
+    }
+
+    Idx.CURRENT = new Generation (reader, null);
+    Idx.INDEXREADER = reader;
+  }
+
+  /**
+   *  Open a new generation of the index if the index has changed.
+   *  Queries that started before the refresh keep using the old
+   *  generation; later queries use the new one.  The postings cache
+   *  is cleared.  The phrase index is used only if it was built for
+   *  the new version of the index (see PhraseIndexBuilder).
+   *  @return True if there is a new generation.
+   *  @throws IOException Error accessing the index.
+   */
+  public static synchronized boolean refresh () throws IOException {
+
+    Generation old = Idx.CURRENT;
+
+    if (!(old.reader instanceof DirectoryReader))
+      return false;
+
+    DirectoryReader reader =
+      DirectoryReader.openIfChanged ((DirectoryReader) old.reader);
+
+    if (reader == null)
+      return false;
+
+    Generation g;
+
+    try {
+      g = new Generation (reader, old);
+    } catch (IOException ex) {
+      reader.close ();
+      throw ex;
     }
+
+    if (Idx.POSTINGSCACHE != null)
+      Idx.POSTINGSCACHE.invalidate (reader);
+
+    Idx.CURRENT = g;
+    Idx.INDEXREADER = reader;
+    old.decRef ();
+    return true;
+  }
+
+  /**
+   *  Refresh the index periodically, in a background thread.  Errors
+   *  are reported on stderr, and the next refresh tries again.
+   *  @param seconds The time between refreshes.
+   */
+  public static synchronized void startRefresh (long seconds) {
+
+    if (Idx.REFRESHER != null)
+      Idx.REFRESHER.shutdown ();
+
+    Idx.REFRESHER =
+      Executors.newSingleThreadScheduledExecutor (new ThreadFactory () {
+          public Thread newThread (Runnable r) {
+            Thread t = new Thread (r, "Idx-refresh");
+            t.setDaemon (true);
+            return t;
+          }
+        });
+
+    Idx.REFRESHER.scheduleWithFixedDelay (new Runnable () {
+        public void run () {
+          try {
+            refresh ();
+          } catch (Exception ex) {
+            ex.printStackTrace ();
+          }
+        }
+      }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   *  Cache inverted lists outside the Java heap, in a memory-mapped
+   *  arena file.  The file is reused by later runs on the same index.
+   *  This must be called after initialize.
+   *  @param arenaPath The arena file.
+   *  @param size The size of the arena, in bytes.
+   *  @param regionSize The size of an arena region, in bytes.
+   *  @param minDf The smallest df of a cached inverted list.
+   *  @throws IOException Error accessing the arena file.
+   */
+  public static synchronized void openPostingsCache (String arenaPath, long size,
+                                                     int regionSize, int minDf)
+    throws IOException {
+
+    Idx.POSTINGSCACHE =
+      new PostingsCache (new File (arenaPath), size, regionSize, minDf,
+                         Idx.CURRENT.reader);
   }
 
 }
@@ -0,0 +1,1197 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.CompoundFileDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ *  IndexReorderer writes a copy of an index with its documents in a
+ *  new internal docid order, so that similar documents have nearby
+ *  docids.  Then the gaps between the docids in inverted lists are
+ *  smaller, so the lists compress better, and query operators skip
+ *  more of them.  The copy has the same documents, external ids,
+ *  fields, postings, term vectors and document lengths; only the
+ *  docids change, so queries have the same results.
+ *  <p>
+ *  Usage:  java IndexReorderer paramFile
+ *  </p><p>
+ *  The parameter file uses the QryEval syntax.  Parameters:
+ *  </p>
+ *  <ul>
+ *  <li>indexPath:  The index to reorder (required).
+ *  <li>reorderIndexPath:  The index to write (required).  It must not
+ *      exist, or be empty.
+ *  <li>reorderMethod:  How documents are ordered:
+ *      <ul>
+ *      <li>bp (default):  Recursive graph bisection.  The documents
+ *          are split in two halves, documents are swapped between the
+ *          halves while that makes the terms of each half more
+ *          alike, and then each half is split the same way.
+ *      <li>url:  By the terms of the url field, in position order;
+ *          for the url field that Indexer writes, this is
+ *          approximately URL order, so pages of the same site are
+ *          together.
+ *      <li>none:  The current order.  The copy has one segment, so
+ *          this is a baseline for the other methods.
+ *      </ul>
+ *  <li>reorderUrlField:  The field for url ordering (default url).
+ *  <li>bpFields:  The fields whose terms bisection uses, separated
+ *      by commas (default body).
+ *  <li>bpMinDf:  Terms that occur in fewer documents are ignored by
+ *      bisection (default 2).
+ *  <li>bpIterations:  The largest number of swap passes for each
+ *      split (default 20).
+ *  <li>bpLeafSize:  Partitions this size or smaller aren't split
+ *      (default 16).
+ *  <li>reorderBenchmarkQueryFile:  If set, queries (qid:query) that
+ *      are run on both indexes to compare their query latency.  The
+ *      retrieval model parameters are required.
+ *  <li>reorderBenchmarkRepeat:  The number of timed runs of the
+ *      benchmark queries (default 3), after one untimed run.  Each
+ *      index is benchmarked in a new process.
+ *  </ul>
+ *  <p>
+ *  Deleted documents are not copied.  Lucene's collection statistics
+ *  count deleted documents, so if there are any, scores in the copy
+ *  can differ; compare with a reorderMethod=none copy then.
+ *  </p><p>
+ *  The tool reports the size of the postings files (doc, pos and pay,
+ *  including those in compound files) and the average log2 docid gap
+ *  of the bisection fields' postings, before and after.
+ *  </p>
+ */
+public class IndexReorderer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java IndexReorderer paramFile\n\n";
+
+  /**
+   *  Postings file extensions (Lucene41PostingsFormat).
+   */
+  private static final String[] POSTINGS_EXTENSIONS = { "doc", "pos", "pay" };
+
+  /**
+   *  The option that runs the benchmark in a child process.
+   */
+  private static final String BENCHMARK_OPTION = "-benchmark";
+
+  /**
+   *  Parameters that the benchmark ignores, so that both indexes are
+   *  measured the same way.
+   */
+  private static final String[] BENCHMARK_IGNORED = {
+    "postingsCachePath", "resultCacheSize", "resultCachePath",
+    "warmupQueryFile", "queryPipeline", "indexRefreshInterval"
+  };
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A reader that presents another reader's documents in a new docid
+   *  order.  IndexWriter.addIndexes copies it to a new index.
+   *  Inverted lists are read into memory one term at a time, and
+   *  sorted by their new docids.
+   */
+  private static class ReorderedReader extends FilterAtomicReader {
+
+    private final int[] oldToNew;
+    private final int[] newToOld;
+
+    private ReorderedReader(AtomicReader in, int[] newToOld) {
+      super(in);
+      this.newToOld = newToOld;
+      this.oldToNew = new int[newToOld.length];
+
+      for (int i = 0; i < newToOld.length; i++)
+        this.oldToNew[newToOld[i]] = i;
+    }
+
+    @Override
+    public Fields fields() throws IOException {
+
+      Fields fields = super.fields();
+
+      if (fields == null)
+        return null;
+
+      return new FilterFields(fields) {
+        @Override
+        public Terms terms(String field) throws IOException {
+          Terms terms = super.terms(field);
+          return (terms == null) ? null : new ReorderedTerms(terms, oldToNew);
+        }
+      };
+    }
+
+    @Override
+    public Bits getLiveDocs() {
+
+      final Bits live = super.getLiveDocs();
+
+      if (live == null)
+        return null;
+
+      return new Bits() {
+        public boolean get(int docid) {
+          return live.get(newToOld[docid]);
+        }
+
+        public int length() {
+          return newToOld.length;
+        }
+      };
+    }
+
+    @Override
+    public Fields getTermVectors(int docid) throws IOException {
+      return super.getTermVectors(this.newToOld[docid]);
+    }
+
+    @Override
+    public void document(int docid, StoredFieldVisitor visitor)
+      throws IOException {
+      super.document(this.newToOld[docid], visitor);
+    }
+
+    @Override
+    public NumericDocValues getNormValues(String field) throws IOException {
+      return this.reorder(super.getNormValues(field));
+    }
+
+    @Override
+    public NumericDocValues getNumericDocValues(String field)
+      throws IOException {
+      return this.reorder(super.getNumericDocValues(field));
+    }
+
+    @Override
+    public BinaryDocValues getBinaryDocValues(String field)
+      throws IOException {
+
+      final BinaryDocValues values = super.getBinaryDocValues(field);
+
+      if (values == null)
+        return null;
+
+      return new BinaryDocValues() {
+        public void get(int docid, BytesRef result) {
+          values.get(newToOld[docid], result);
+        }
+      };
+    }
+
+    @Override
+    public SortedDocValues getSortedDocValues(String field)
+      throws IOException {
+
+      final SortedDocValues values = super.getSortedDocValues(field);
+
+      if (values == null)
+        return null;
+
+      return new SortedDocValues() {
+        public int getOrd(int docid) {
+          return values.getOrd(newToOld[docid]);
+        }
+
+        public void lookupOrd(int ord, BytesRef result) {
+          values.lookupOrd(ord, result);
+        }
+
+        public int getValueCount() {
+          return values.getValueCount();
+        }
+      };
+    }
+
+    @Override
+    public SortedSetDocValues getSortedSetDocValues(String field)
+      throws IOException {
+
+      final SortedSetDocValues values = super.getSortedSetDocValues(field);
+
+      if (values == null)
+        return null;
+
+      return new SortedSetDocValues() {
+        public long nextOrd() {
+          return values.nextOrd();
+        }
+
+        public void setDocument(int docid) {
+          values.setDocument(newToOld[docid]);
+        }
+
+        public void lookupOrd(long ord, BytesRef result) {
+          values.lookupOrd(ord, result);
+        }
+
+        public long getValueCount() {
+          return values.getValueCount();
+        }
+      };
+    }
+
+    private NumericDocValues reorder(final NumericDocValues values) {
+
+      if (values == null)
+        return null;
+
+      return new NumericDocValues() {
+        public long get(int docid) {
+          return values.get(newToOld[docid]);
+        }
+      };
+    }
+  }
+
+  /**
+   *  The terms of a field, with inverted lists in the new docid order.
+   */
+  private static class ReorderedTerms extends FilterAtomicReader.FilterTerms {
+
+    private final int[] oldToNew;
+
+    private ReorderedTerms(Terms in, int[] oldToNew) {
+      super(in);
+      this.oldToNew = oldToNew;
+    }
+
+    @Override
+    public TermsEnum iterator(TermsEnum reuse) throws IOException {
+
+      return new FilterAtomicReader.FilterTermsEnum(this.in.iterator(null)) {
+        @Override
+        public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags)
+          throws IOException {
+          return new ReorderedPostings
+            (this.in.docs(null, null, flags), null, oldToNew, liveDocs,
+             (flags & DocsEnum.FLAG_FREQS) != 0, false);
+        }
+
+        @Override
+        public DocsAndPositionsEnum docsAndPositions(Bits liveDocs,
+                                                     DocsAndPositionsEnum reuse,
+                                                     int flags)
+          throws IOException {
+
+          DocsAndPositionsEnum postings = this.in.docsAndPositions(null, null, flags);
+
+          if (postings == null)
+            return null;
+
+          return new ReorderedPostings
+            (postings, postings, oldToNew, liveDocs, true,
+             (flags & DocsAndPositionsEnum.FLAG_OFFSETS) != 0);
+        }
+      };
+    }
+  }
+
+  /**
+   *  One term's inverted list, read into memory and sorted by the new
+   *  docids.
+   */
+  private static class ReorderedPostings extends DocsAndPositionsEnum {
+
+    private final Bits liveDocs;
+    private final int df;
+
+    private int[] docids;
+    private int[] freqs;
+    private int[] start;			// Of each document's positions
+    private int[] positions;
+    private int[] startOffsets;
+    private int[] endOffsets;
+    private BytesRef[] payloads;
+
+    /**
+     *  The documents in the new order, as indexes of the arrays.
+     */
+    private final int[] order;
+
+    private int current = -1;
+    private int docid = -1;
+    private int position = 0;
+
+    private ReorderedPostings(DocsEnum docs, DocsAndPositionsEnum postings,
+                              int[] oldToNew, Bits liveDocs,
+                              boolean readFreqs, boolean readOffsets)
+      throws IOException {
+
+      this.liveDocs = liveDocs;
+
+      int n = 0;
+      int p = 0;
+
+      this.docids = new int[16];
+      this.freqs = readFreqs ? new int[16] : null;
+      this.start = (postings != null) ? new int[17] : null;
+      this.positions = (postings != null) ? new int[16] : null;
+      this.startOffsets = readOffsets ? new int[16] : null;
+      this.endOffsets = readOffsets ? new int[16] : null;
+
+      for (int d = docs.nextDoc(); d != NO_MORE_DOCS; d = docs.nextDoc()) {
+        if (n == this.docids.length) {
+          this.docids = Arrays.copyOf(this.docids, 2 * n);
+
+          if (this.freqs != null)
+            this.freqs = Arrays.copyOf(this.freqs, 2 * n);
+
+          if (this.start != null)
+            this.start = Arrays.copyOf(this.start, 2 * n + 1);
+        }
+
+        this.docids[n] = oldToNew[d];
+
+        if (this.freqs != null)
+          this.freqs[n] = docs.freq();
+
+        if (postings != null) {
+          int freq = postings.freq();
+
+          this.start[n] = p;
+
+          if (p + freq > this.positions.length)
+            this.growPositions(Math.max(2 * this.positions.length, p + freq));
+
+          for (int i = 0; i < freq; i++, p++) {
+            this.positions[p] = postings.nextPosition();
+
+            if (readOffsets) {
+              this.startOffsets[p] = postings.startOffset();
+              this.endOffsets[p] = postings.endOffset();
+            }
+
+            BytesRef payload = postings.getPayload();
+
+            if (payload != null) {
+              if (this.payloads == null)
+                this.payloads = new BytesRef[this.positions.length];
+
+              this.payloads[p] = BytesRef.deepCopyOf(payload);
+            }
+          }
+        }
+
+        n++;
+      }
+
+      if (this.start != null)
+        this.start[n] = p;
+
+      this.df = n;
+
+      //  Sort by new docid.  A key is the new docid and the index.
+
+      long[] keys = new long[n];
+
+      for (int i = 0; i < n; i++)
+        keys[i] = ((long) this.docids[i] << 32) | i;
+
+      Arrays.sort(keys);
+      this.order = new int[n];
+
+      for (int i = 0; i < n; i++)
+        this.order[i] = (int) keys[i];
+    }
+
+    private void growPositions(int size) {
+
+      this.positions = Arrays.copyOf(this.positions, size);
+
+      if (this.startOffsets != null) {
+        this.startOffsets = Arrays.copyOf(this.startOffsets, size);
+        this.endOffsets = Arrays.copyOf(this.endOffsets, size);
+      }
+
+      if (this.payloads != null)
+        this.payloads = Arrays.copyOf(this.payloads, size);
+    }
+
+    @Override
+    public int docID() {
+      return this.docid;
+    }
+
+    @Override
+    public int nextDoc() {
+
+      while (++this.current < this.df) {
+        int d = this.docids[this.order[this.current]];
+
+        if ((this.liveDocs == null) || this.liveDocs.get(d)) {
+          this.position = 0;
+          return this.docid = d;
+        }
+      }
+
+      return this.docid = NO_MORE_DOCS;
+    }
+
+    @Override
+    public int advance(int target) {
+
+      while (this.docid < target)
+        this.nextDoc();
+
+      return this.docid;
+    }
+
+    @Override
+    public long cost() {
+      return this.df;
+    }
+
+    @Override
+    public int freq() {
+      int i = this.order[this.current];
+
+      if (this.start != null)
+        return this.start[i + 1] - this.start[i];
+      else
+        return (this.freqs != null) ? this.freqs[i] : 1;
+    }
+
+    @Override
+    public int nextPosition() {
+      return this.positions[this.start[this.order[this.current]] + this.position++];
+    }
+
+    @Override
+    public int startOffset() {
+      return (this.startOffsets != null) ?
+        this.startOffsets[this.start[this.order[this.current]] + this.position - 1] : -1;
+    }
+
+    @Override
+    public int endOffset() {
+      return (this.endOffsets != null) ?
+        this.endOffsets[this.start[this.order[this.current]] + this.position - 1] : -1;
+    }
+
+    @Override
+    public BytesRef getPayload() {
+      return (this.payloads != null) ?
+        this.payloads[this.start[this.order[this.current]] + this.position - 1] : null;
+    }
+  }
+
+  /**
+   *  Recursive graph bisection of a range of the docid order.  The
+   *  cost of a term in a partition of n documents, d of which contain
+   *  it, is estimated as d log2 (n / (d + 1)), the bits of its docid
+   *  gaps.  Documents are swapped between the two halves while a
+   *  swap lowers the total cost of both halves' terms.
+   */
+  private static class Bisection extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] order;
+    private final int[] offsets;
+    private final int[] terms;
+    private final int iterations;
+    private final int leafSize;
+    private final int lo;
+    private final int hi;
+
+    private Bisection(int[] order, int[] offsets, int[] terms,
+                      int iterations, int leafSize, int lo, int hi) {
+      this.order = order;
+      this.offsets = offsets;
+      this.terms = terms;
+      this.iterations = iterations;
+      this.leafSize = leafSize;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+
+      int n = this.hi - this.lo;
+
+      if (n <= this.leafSize)
+        return;
+
+      int n1 = n / 2;
+      int mid = this.lo + n1;
+
+      //  Give the terms of the range local ids, 0 to m-1.
+
+      int total = 0;
+
+      for (int i = this.lo; i < this.hi; i++)
+        total += this.offsets[this.order[i] + 1] - this.offsets[this.order[i]];
+
+      int[] all = new int[total];
+      int k = 0;
+
+      for (int i = this.lo; i < this.hi; i++) {
+        int d = this.order[i];
+        int length = this.offsets[d + 1] - this.offsets[d];
+
+        System.arraycopy(this.terms, this.offsets[d], all, k, length);
+        k += length;
+      }
+
+      Arrays.sort(all);
+
+      int m = 0;
+
+      for (int i = 0; i < total; i++)
+        if ((i == 0) || (all[i] != all[i - 1]))
+          all[m++] = all[i];
+
+      //  The documents' local term lists.  slot[i] is the list of the
+      //  document at lo+i.
+
+      int[] localOffsets = new int[n + 1];
+      int[] localTerms = new int[total];
+      int[] slot = new int[n];
+
+      k = 0;
+
+      for (int i = 0; i < n; i++) {
+        int d = this.order[this.lo + i];
+
+        slot[i] = i;
+        localOffsets[i] = k;
+
+        for (int j = this.offsets[d]; j < this.offsets[d + 1]; j++)
+          localTerms[k++] = Arrays.binarySearch(all, 0, m, this.terms[j]);
+      }
+
+      localOffsets[n] = k;
+
+      //  Term degrees:  the number of documents in each half that
+      //  contain each term.
+
+      int[] d1 = new int[m];
+      int[] d2 = new int[m];
+
+      for (int i = 0; i < n; i++)
+        for (int j = localOffsets[i]; j < localOffsets[i + 1]; j++)
+          if (i < n1)
+            d1[localTerms[j]]++;
+          else
+            d2[localTerms[j]]++;
+
+      double[] log2 = new double[n + 2];
+
+      for (int i = 1; i < log2.length; i++)
+        log2[i] = Math.log(i) / Math.log(2);
+
+      double[] gain = new double[n];
+      long[] left = new long[n1];
+      long[] right = new long[n - n1];
+
+      for (int iteration = 0; iteration < this.iterations; iteration++) {
+
+        //  The gain of moving each document to the other half.
+
+        for (int i = 0; i < n; i++) {
+          double g = 0;
+          int s = slot[i];
+
+          for (int j = localOffsets[s]; j < localOffsets[s + 1]; j++) {
+            int t = localTerms[j];
+
+            if (i < n1)
+              g += cost(d1[t], d2[t], n1, n - n1, log2) -
+                cost(d1[t] - 1, d2[t] + 1, n1, n - n1, log2);
+            else
+              g += cost(d1[t], d2[t], n1, n - n1, log2) -
+                cost(d1[t] + 1, d2[t] - 1, n1, n - n1, log2);
+          }
+
+          gain[i] = g;
+
+          if (i < n1)
+            left[i] = key(g, i);
+          else
+            right[i - n1] = key(g, i);
+        }
+
+        //  Swap the pairs with the largest gains, while they gain.
+
+        Arrays.sort(left);
+        Arrays.sort(right);
+
+        int swaps = 0;
+
+        for (int p = 0; p < left.length && p < right.length; p++) {
+          int a = (int) left[p];
+          int b = (int) right[p];
+
+          if (gain[a] + gain[b] <= 0)
+            break;
+
+          for (int j = localOffsets[slot[a]]; j < localOffsets[slot[a] + 1]; j++) {
+            d1[localTerms[j]]--;
+            d2[localTerms[j]]++;
+          }
+
+          for (int j = localOffsets[slot[b]]; j < localOffsets[slot[b] + 1]; j++) {
+            d2[localTerms[j]]--;
+            d1[localTerms[j]]++;
+          }
+
+          int t = slot[a];
+          slot[a] = slot[b];
+          slot[b] = t;
+
+          t = this.order[this.lo + a];
+          this.order[this.lo + a] = this.order[this.lo + b];
+          this.order[this.lo + b] = t;
+          swaps++;
+        }
+
+        if (swaps == 0)
+          break;
+      }
+
+      invokeAll(new Bisection(this.order, this.offsets, this.terms,
+                              this.iterations, this.leafSize, this.lo, mid),
+                new Bisection(this.order, this.offsets, this.terms,
+                              this.iterations, this.leafSize, mid, this.hi));
+    }
+
+    /**
+     *  The estimated cost of a term that is in d1 of n1 documents in
+     *  one half and d2 of n2 documents in the other.
+     */
+    private static double cost(int d1, int d2, int n1, int n2, double[] log2) {
+      return d1 * (log2[n1] - log2[d1 + 1]) + d2 * (log2[n2] - log2[d2 + 1]);
+    }
+
+    /**
+     *  A sort key that orders documents by decreasing gain.  The gain
+     *  is rounded to a float, which is enough to order swaps.
+     */
+    private static long key(double gain, int i) {
+      int bits = Float.floatToIntBits((float) gain);
+
+      bits ^= (bits >> 31) & 0x7fffffff;	// Signed int order
+      return ((long) ~bits << 32) | i;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the Lucene indexes.
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+    if ((args.length == 3) && args[1].equals(BENCHMARK_OPTION)) {
+      runBenchmark(parameters, new File(args[2]));
+      return;
+    }
+
+    if (!(parameters.containsKey("indexPath") &&
+          parameters.containsKey("reorderIndexPath"))) {
+      throw new IllegalArgumentException
+        ("Required parameters were missing from the parameter file.");
+    }
+
+    String method = parameters.containsKey("reorderMethod") ?
+      parameters.get("reorderMethod").toLowerCase() : "bp";
+    String urlField = parameters.containsKey("reorderUrlField") ?
+      parameters.get("reorderUrlField") : "url";
+    String[] bpFields = parameters.containsKey("bpFields") ?
+      parameters.get("bpFields").split("\\s*,\\s*") : new String[] { "body" };
+    int minDf = parameters.containsKey("bpMinDf") ?
+      Integer.parseInt(parameters.get("bpMinDf")) : 2;
+    int iterations = parameters.containsKey("bpIterations") ?
+      Integer.parseInt(parameters.get("bpIterations")) : 20;
+    int leafSize = parameters.containsKey("bpLeafSize") ?
+      Integer.parseInt(parameters.get("bpLeafSize")) : 16;
+
+    File input = new File(parameters.get("indexPath"));
+    File output = new File(parameters.get("reorderIndexPath"));
+
+    String[] existing = output.list();
+
+    if ((existing != null) && (existing.length > 0)) {
+      throw new IllegalArgumentException
+        ("reorderIndexPath must not exist, or be empty.");
+    }
+
+    //  Order the documents.
+
+    DirectoryReader reader = DirectoryReader.open(FSDirectory.open(input));
+    AtomicReader atomic = SlowCompositeReaderWrapper.wrap(reader);
+    String gapsBefore = describeGaps(atomic, bpFields);
+    long start = System.nanoTime();
+    int[] order;
+
+    if (method.equals("bp")) {
+      order = orderByBisection(atomic, bpFields, minDf, iterations, leafSize);
+    } else if (method.equals("url")) {
+      order = orderByUrl(atomic, urlField);
+    } else if (method.equals("none")) {
+      order = orderByLiveDocs(atomic, null);
+    } else {
+      reader.close();
+      throw new IllegalArgumentException("reorderMethod must be bp, url or none.");
+    }
+
+    System.out.println(String.format("ordered %d documents by %s in %.1f s",
+                                     atomic.numDocs(), method,
+                                     (System.nanoTime() - start) / 1e9));
+
+    //  Write the index.  Deleted documents are last, and they aren't
+    //  copied.
+
+    start = System.nanoTime();
+
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, null);
+
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity(new DocLenStoreSimilarity());
+
+    IndexWriter writer = new IndexWriter(FSDirectory.open(output), config);
+
+    try {
+      writer.addIndexes(new ReorderedReader(atomic, order));
+      writer.close();
+    } catch (IOException ex) {
+      writer.rollback();
+      throw ex;
+    } finally {
+      reader.close();
+    }
+
+    System.out.println(String.format("wrote %s in %.1f s", output,
+                                     (System.nanoTime() - start) / 1e9));
+
+    DirectoryReader reordered = DirectoryReader.open(FSDirectory.open(output));
+
+    try {
+      System.out.println("postings before:  " + describePostingsSize(input));
+      System.out.println("postings after:   " + describePostingsSize(output));
+      System.out.println("docid gaps before:  " + gapsBefore);
+      System.out.println("docid gaps after:   " +
+                         describeGaps(SlowCompositeReaderWrapper.wrap(reordered),
+                                      bpFields));
+    } finally {
+      reordered.close();
+    }
+
+    //  Compare query latency.
+
+    if (parameters.containsKey("reorderBenchmarkQueryFile")) {
+      List<String> before = new ArrayList<String>();
+      List<String> after = new ArrayList<String>();
+      double msBefore = benchmark(args[0], input, before);
+      double msAfter = benchmark(args[0], output, after);
+
+      System.out.println(String.format
+                         ("query latency:  before %.3f ms/query, after %.3f ms/query, " +
+                          "same results:  %b", msBefore, msAfter, before.equals(after)));
+    }
+  }
+
+  /**
+   *  Order the live documents, then the deleted documents.
+   *  @param sorted The live documents, in order, or null for docid
+   *  order.
+   */
+  private static int[] orderByLiveDocs(AtomicReader reader, int[] sorted) {
+
+    int maxDoc = reader.maxDoc();
+    Bits live = reader.getLiveDocs();
+    int[] order = new int[maxDoc];
+    int n = 0;
+
+    if (sorted != null) {
+      System.arraycopy(sorted, 0, order, 0, sorted.length);
+      n = sorted.length;
+    } else {
+      for (int d = 0; d < maxDoc; d++)
+        if ((live == null) || live.get(d))
+          order[n++] = d;
+    }
+
+    for (int d = 0; d < maxDoc; d++)
+      if ((live != null) && !live.get(d))
+        order[n++] = d;
+
+    return order;
+  }
+
+  /**
+   *  Order documents by the terms of a field, in position order.
+   *  Documents that don't have the field are last.
+   */
+  private static int[] orderByUrl(AtomicReader reader, String field)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc();
+    Bits live = reader.getLiveDocs();
+    Terms terms = reader.terms(field);
+
+    //  Each document's (position, term ordinal) pairs.  Term ordinals
+    //  are in term order.
+
+    final int[] offsets = new int[maxDoc + 1];
+    long[] pairs = new long[0];
+
+    if (terms != null) {
+      TermsEnum ithTerm = terms.iterator(null);
+      DocsAndPositionsEnum postings = null;
+
+      while (ithTerm.next() != null) {
+        postings = ithTerm.docsAndPositions(live, postings);
+
+        if (postings == null)
+          throw new IllegalArgumentException("The " + field + " field has no positions.");
+
+        for (int d = postings.nextDoc(); d != DocsEnum.NO_MORE_DOCS; d = postings.nextDoc())
+          offsets[d + 1] += postings.freq();
+      }
+
+      for (int d = 0; d < maxDoc; d++)
+        offsets[d + 1] += offsets[d];
+
+      int[] fill = Arrays.copyOf(offsets, maxDoc);
+      int ord = 0;
+
+      pairs = new long[offsets[maxDoc]];
+      ithTerm = terms.iterator(ithTerm);
+
+      while (ithTerm.next() != null) {
+        postings = ithTerm.docsAndPositions(live, postings);
+
+        for (int d = postings.nextDoc(); d != DocsEnum.NO_MORE_DOCS; d = postings.nextDoc())
+          for (int i = postings.freq(); i > 0; i--)
+            pairs[fill[d]++] = ((long) postings.nextPosition() << 32) | ord;
+
+        ord++;
+      }
+
+      for (int d = 0; d < maxDoc; d++)
+        Arrays.sort(pairs, offsets[d], offsets[d + 1]);
+    }
+
+    //  Sort.  The sort is stable, so ties are in docid order.
+
+    final long[] p = pairs;
+    List<Integer> docs = new ArrayList<Integer>();
+
+    for (int d = 0; d < maxDoc; d++)
+      if ((live == null) || live.get(d))
+        docs.add(d);
+
+    Collections.sort(docs, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          int i = offsets[a];
+          int j = offsets[b];
+          int n = offsets[a + 1] - i;
+          int m = offsets[b + 1] - j;
+
+          if ((n == 0) || (m == 0))
+            return (n == 0) ? ((m == 0) ? 0 : 1) : -1;
+
+          for (; (i < offsets[a + 1]) && (j < offsets[b + 1]); i++, j++) {
+            int c = Integer.compare((int) p[i], (int) p[j]);
+
+            if (c != 0)
+              return c;
+          }
+
+          return Integer.compare(n, m);
+        }
+      });
+
+    int[] sorted = new int[docs.size()];
+
+    for (int i = 0; i < sorted.length; i++)
+      sorted[i] = docs.get(i);
+
+    return orderByLiveDocs(reader, sorted);
+  }
+
+  /**
+   *  Order documents by recursive graph bisection of a forward index
+   *  of some fields.  The subproblems are solved in parallel.
+   */
+  private static int[] orderByBisection(AtomicReader reader, String[] fields,
+                                        int minDf, int iterations, int leafSize)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc();
+    Bits live = reader.getLiveDocs();
+
+    //  The forward index:  each document's term ids, ascending.
+
+    int[] offsets = new int[maxDoc + 1];
+
+    for (int pass = 0; pass < 2; pass++) {
+      int[] fill = (pass == 0) ? null : Arrays.copyOf(offsets, maxDoc);
+      int[] terms = (pass == 0) ? null : new int[offsets[maxDoc]];
+      int id = 0;
+
+      for (String field : fields) {
+        Terms t = reader.terms(field);
+
+        if (t == null)
+          continue;
+
+        TermsEnum ithTerm = t.iterator(null);
+        DocsEnum docs = null;
+
+        while (ithTerm.next() != null) {
+          if (ithTerm.docFreq() < minDf)
+            continue;
+
+          docs = ithTerm.docs(live, docs, DocsEnum.FLAG_NONE);
+
+          for (int d = docs.nextDoc(); d != DocsEnum.NO_MORE_DOCS; d = docs.nextDoc())
+            if (pass == 0)
+              offsets[d + 1]++;
+            else
+              terms[fill[d]++] = id;
+
+          id++;
+        }
+      }
+
+      if (pass == 0) {
+        for (int d = 0; d < maxDoc; d++)
+          offsets[d + 1] += offsets[d];
+      } else {
+        int[] order = orderByLiveDocs(reader, null);
+        int n = reader.numDocs();
+
+        ForkJoinPool pool = new ForkJoinPool();
+
+        try {
+          pool.invoke(new Bisection(order, offsets, terms, iterations,
+                                    Math.max(1, leafSize), 0, n));
+        } finally {
+          pool.shutdown();
+        }
+
+        return order;
+      }
+    }
+
+    return null;			// Not reached
+  }
+
+  /**
+   *  Describe the size of the postings files of an index.
+   */
+  private static String describePostingsSize(File index) throws IOException {
+
+    Map<String, Long> sizes = new TreeMap<String, Long>();
+    Directory dir = FSDirectory.open(index);
+
+    try {
+      for (String name : dir.listAll()) {
+        if (name.endsWith(".cfs")) {
+          Directory cfs = new CompoundFileDirectory(dir, name, IOContext.READONCE, false);
+
+          try {
+            for (String inner : cfs.listAll())
+              addSize(sizes, inner, cfs.fileLength(inner));
+          } finally {
+            cfs.close();
+          }
+        } else {
+          addSize(sizes, name, dir.fileLength(name));
+        }
+      }
+    } finally {
+      dir.close();
+    }
+
+    long total = 0;
+    StringBuilder s = new StringBuilder();
+
+    for (String extension : POSTINGS_EXTENSIONS) {
+      Long size = sizes.get(extension);
+
+      if (size != null) {
+        s.append(String.format(", %s %d", extension, size));
+        total += size;
+      }
+    }
+
+    return total + " bytes" + s;
+  }
+
+  private static void addSize(Map<String, Long> sizes, String name, long size) {
+
+    String extension = name.substring(name.lastIndexOf('.') + 1);
+    Long old = sizes.get(extension);
+
+    sizes.put(extension, (old == null) ? size : old + size);
+  }
+
+  /**
+   *  Describe the docid gaps of some fields' postings:  the average
+   *  log2 of the gaps, which estimates the bits that a gap needs.
+   */
+  private static String describeGaps(AtomicReader reader, String[] fields)
+    throws IOException {
+
+    Bits live = reader.getLiveDocs();
+    double bits = 0;
+    long postings = 0;
+
+    for (String field : fields) {
+      Terms t = reader.terms(field);
+
+      if (t == null)
+        continue;
+
+      TermsEnum ithTerm = t.iterator(null);
+      DocsEnum docs = null;
+
+      while (ithTerm.next() != null) {
+        docs = ithTerm.docs(live, docs, DocsEnum.FLAG_NONE);
+
+        int previous = -1;
+
+        for (int d = docs.nextDoc(); d != DocsEnum.NO_MORE_DOCS; d = docs.nextDoc()) {
+          bits += Math.log(d - previous);
+          previous = d;
+          postings++;
+        }
+      }
+    }
+
+    return String.format("%.3f bits/posting over %d postings of %s",
+                         (postings > 0) ? bits / Math.log(2) / postings : 0.0,
+                         postings, Arrays.toString(fields));
+  }
+
+  /**
+   *  Run the benchmark queries on an index, in another process, so
+   *  that Idx and the caches that depend on it start empty.
+   *  @param parameterFile The parameter file.
+   *  @param results Each query's top 100 results are added to it.
+   *  @return The average time per query, in milliseconds.
+   */
+  private static double benchmark(String parameterFile, File index,
+                                  List<String> results)
+    throws IOException, InterruptedException {
+
+    String java = System.getProperty("java.home") + File.separator + "bin" +
+      File.separator + "java";
+    ProcessBuilder builder =
+      new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                         IndexReorderer.class.getName(), parameterFile,
+                         BENCHMARK_OPTION, index.getPath());
+
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+    Process process = builder.start();
+    BufferedReader input =
+      new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+    double ms = 0;
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        if (line.startsWith("result\t"))
+          results.add(line.substring(7));
+        else if (line.startsWith("latency\t"))
+          ms = Double.parseDouble(line.substring(8));
+      }
+    } finally {
+      input.close();
+    }
+
+    if (process.waitFor() != 0)
+      throw new IOException("The benchmark failed on " + index + ".");
+
+    return ms;
+  }
+
+  /**
+   *  Run the benchmark queries on an index:  once to warm up and to
+   *  record the results, then reorderBenchmarkRepeat times to measure
+   *  latency.  Each query's top 100 results, and the average time per
+   *  query in milliseconds, are written to stdout.
+   */
+  private static void runBenchmark(Map<String, String> parameters, File index)
+    throws IOException {
+
+    int repeat = parameters.containsKey("reorderBenchmarkRepeat") ?
+      Integer.parseInt(parameters.get("reorderBenchmarkRepeat")) : 3;
+    Map<String, String> p = new HashMap<String, String>(parameters);
+
+    p.put("indexPath", index.getPath());
+
+    for (String name : BENCHMARK_IGNORED)
+      p.remove(name);
+
+    RetrievalModel model = QryEval.initialize(p);
+    List<String[]> queries = new ArrayList<String[]>();
+    BufferedReader input =
+      new BufferedReader(new FileReader(parameters.get("reorderBenchmarkQueryFile")));
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        int d = line.indexOf(':');
+
+        if (d >= 0)
+          queries.add(new String[] { line.substring(0, d), line.substring(d + 1) });
+      }
+    } finally {
+      input.close();
+    }
+
+    for (String[] q : queries) {
+      ScoreList r = QryEval.processQuery(q[0], q[1], model);
+
+      if (r == null)
+        continue;
+
+      r.sort();
+
+      for (int i = 0; (i < r.size()) && (i < 100); i++)
+        System.out.println("result\t" + q[0] + " " + r.getExternalDocid(i) + " " +
+                           r.getDocidScore(i));
+    }
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < repeat; i++)
+      for (String[] q : queries)
+        QryEval.processQuery(q[0], q[1], model);
+
+    System.out.println("latency\t" +
+                       ((queries.size() > 0) && (repeat > 0) ?
+                        (System.nanoTime() - start) / 1e6 / (repeat * queries.size()) : 0.0));
+  }
+}
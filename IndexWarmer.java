@@ -0,0 +1,337 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ *  IndexWarmer reads the inverted lists of the terms in a query log
+ *  (e.g., a previous run's query file) before queries are processed,
+ *  so that the first queries don't pay for first-touch page faults in
+ *  the index files.
+ *  <p>
+ *  The query log has one query per line, in query file format
+ *  (qid:query) or just the query.  Each query is parsed with the
+ *  retrieval model's parser and analyzer, and the distinct
+ *  (term, field) pairs are warmed, the most frequent first.  A term
+ *  is warmed by materializing its inverted list, the same way that
+ *  query evaluation does, so if there is a postings cache (see
+ *  PostingsCache), the list is stored there; otherwise the index
+ *  pages that it touched stay in the operating system's file cache.
+ *  The document lengths of every field in the log are read too.
+ *  Lines that can't be parsed are skipped.
+ *  </p><p>
+ *  The work is done by background threads while the caller does
+ *  other startup work; await waits for it.  Warming stops when the
+ *  inverted lists that were read reach a byte budget, or when a time
+ *  limit passes.  A term that is being read when the time limit
+ *  passes is finished in the background.
+ *  </p>
+ */
+public class IndexWarmer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int threads;
+  private final long budget;
+  private final long timeLimitNanos;
+
+  private ExecutorService pool = null;
+  private long startNanos = 0;
+  private long elapsedNanos = 0;
+  private volatile boolean stopped = false;
+  private volatile boolean overBudget = false;
+
+  /**
+   *  Values that are read only to touch the index, stored so that the
+   *  reads can't be optimized away.
+   */
+  private volatile long sink = 0;
+
+  private int distinctTerms = 0;
+  private long occurrences = 0;
+  private int skippedLines = 0;
+
+  private final AtomicInteger warmedTerms = new AtomicInteger();
+  private final AtomicLong warmedOccurrences = new AtomicLong();
+  private final AtomicInteger warmedFields = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   *  The first error, which ends warming.
+   */
+  private final AtomicReference<Throwable> error =
+    new AtomicReference<Throwable>();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an index warmer.
+   *  @param threads The number of threads that read inverted lists.
+   *  @param budget The largest number of bytes of inverted lists and
+   *  document lengths to read.
+   *  @param timeLimit The longest time to spend, in milliseconds.
+   */
+  public IndexWarmer(int threads, long budget, long timeLimit) {
+    this.threads = Math.max(1, threads);
+    this.budget = budget;
+    this.timeLimitNanos = TimeUnit.MILLISECONDS.toNanos(timeLimit);
+  }
+
+  /**
+   *  Read the terms of a query log, and start warming the index in
+   *  the background.
+   *  @param queryLog The query log.
+   *  @param model The retrieval model, which determines how queries
+   *  are parsed.
+   *  @throws IOException Error reading the query log.
+   */
+  public synchronized void start(File queryLog, final RetrievalModel model)
+    throws IOException {
+
+    this.startNanos = System.nanoTime();
+
+    //  Count the (term, field) pairs.  The map keeps them in the order
+    //  that they were first seen, to break ties.
+
+    final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+    Set<String> fields = new LinkedHashSet<String>();
+    BufferedReader input = new BufferedReader(new FileReader(queryLog));
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        if (line.trim().length() == 0)
+          continue;
+
+        String query = line.substring(line.indexOf(':') + 1);
+        List<QryIopTerm> terms = new ArrayList<QryIopTerm>();
+
+        try {
+          addTerms(QryEval.parseQuery(query, model), terms);
+        } catch (RuntimeException ex) {
+          this.skippedLines++;
+          continue;
+        }
+
+        for (QryIopTerm t : terms) {
+          String key = t.toString();
+          int[] count = counts.get(key);
+
+          if (count == null)
+            counts.put(key, new int[] { 1 });
+          else
+            count[0]++;
+
+          fields.add(t.getField());
+          this.occurrences++;
+        }
+      }
+    } finally {
+      input.close();
+    }
+
+    List<String> keys = new ArrayList<String>(counts.keySet());
+
+    Collections.sort(keys, new Comparator<String>() {
+        public int compare(String a, String b) {
+          return counts.get(b)[0] - counts.get(a)[0];
+        }
+      });
+
+    this.distinctTerms = keys.size();
+
+    //  Queue the document lengths, then the terms, most frequent first.
+
+    this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+        private final AtomicInteger n = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "IndexWarmer-" + this.n.getAndIncrement());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+    for (final String field : fields) {
+      this.pool.execute(new Runnable() {
+          public void run() {
+            if (canWarm())
+              warmField(field);
+          }
+        });
+    }
+
+    for (final String key : keys) {
+      final int count = counts.get(key)[0];
+      final int dot = key.lastIndexOf('.');
+
+      this.pool.execute(new Runnable() {
+          public void run() {
+            if (canWarm())
+              warmTerm(new QryIopTerm(key.substring(0, dot), key.substring(dot + 1)),
+                       count, model);
+          }
+        });
+    }
+
+    this.pool.shutdown();
+  }
+
+  /**
+   *  Add the terms of a query tree to a list.
+   */
+  private static void addTerms(Qry q, List<QryIopTerm> terms) {
+
+    if (q instanceof QryIopTerm) {
+      terms.add((QryIopTerm) q);
+    } else {
+      for (Qry q_i : q.args)
+        addTerms(q_i, terms);
+    }
+  }
+
+  /**
+   *  True if there is time and budget left for more work.
+   */
+  private boolean canWarm() {
+
+    if (this.stopped || (this.error.get() != null))
+      return false;
+
+    if (this.bytes.get() >= this.budget) {
+      this.overBudget = true;
+      return false;
+    }
+
+    if (System.nanoTime() - this.startNanos >= this.timeLimitNanos) {
+      this.stopped = true;
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Read a term's inverted list.
+   */
+  private void warmTerm(QryIopTerm term, int count, RetrievalModel model) {
+
+    Idx.Generation g = Idx.acquire();
+    Idx.Generation previous = Idx.pin(g);
+
+    try {
+      term.initialize(model);
+      this.bytes.addAndGet(term.invertedList.getSizeInBytes());
+      this.warmedTerms.incrementAndGet();
+      this.warmedOccurrences.addAndGet(count);
+    } catch (Throwable ex) {
+      this.error.compareAndSet(null, ex);
+    } finally {
+      Idx.pin(previous);
+      this.release(g);
+    }
+  }
+
+  /**
+   *  Release a generation of the index, and record an error.
+   */
+  private void release(Idx.Generation g) {
+    try {
+      Idx.release(g);
+    } catch (IOException ex) {
+      this.error.compareAndSet(null, ex);
+    }
+  }
+
+  /**
+   *  Read the document lengths of a field.
+   */
+  private void warmField(String field) {
+
+    Idx.Generation g = Idx.acquire();
+    Idx.Generation previous = Idx.pin(g);
+
+    try {
+      NumericDocValues lengths = Idx.getFieldLengths(field);
+
+      if (lengths == null)
+        return;
+
+      int maxDoc = Idx.getMaxDoc();
+      long sum = 0;
+
+      for (int docid = 0; docid < maxDoc; docid++)
+        sum += lengths.get(docid);
+
+      this.sink = sum;
+      this.warmedFields.incrementAndGet();
+      this.bytes.addAndGet(maxDoc);
+    } finally {
+      Idx.pin(previous);
+      this.release(g);
+    }
+  }
+
+  /**
+   *  Wait until warming is finished, or until the time limit passes.
+   *  @throws IOException The error that ended warming, if any.
+   */
+  public synchronized void await() throws IOException {
+
+    if (this.pool == null)
+      return;
+
+    try {
+      long remaining = this.timeLimitNanos - (System.nanoTime() - this.startNanos);
+
+      if (!this.pool.awaitTermination(Math.max(0, remaining), TimeUnit.NANOSECONDS))
+        this.stopped = true;
+    } catch (InterruptedException ex) {
+      this.stopped = true;
+      Thread.currentThread().interrupt();
+    }
+
+    this.elapsedNanos = System.nanoTime() - this.startNanos;
+
+    Throwable ex = this.error.get();
+
+    if (ex instanceof IOException)
+      throw (IOException) ex;
+    else if (ex instanceof RuntimeException)
+      throw (RuntimeException) ex;
+    else if (ex instanceof Error)
+      throw (Error) ex;
+    else if (ex != null)
+      throw new IOException(ex);
+  }
+
+  /**
+   *  Get warm-up statistics, for monitoring:  the fraction of the
+   *  query log's distinct terms, and of its term occurrences, that
+   *  were warmed.
+   *  @return A string that describes the warm-up.
+   */
+  public synchronized String getStatistics() {
+
+    int terms = this.warmedTerms.get();
+    long occurrences = this.warmedOccurrences.get();
+
+    return String.format
+      ("index warm-up:  %d of %d terms (%.3f), %.3f of term occurrences, " +
+       "%d fields, %d bytes, %.3f s%s%s%s",
+       terms, this.distinctTerms,
+       (this.distinctTerms > 0) ? (double) terms / this.distinctTerms : 1.0,
+       (this.occurrences > 0) ? (double) occurrences / this.occurrences : 1.0,
+       this.warmedFields.get(), this.bytes.get(), this.elapsedNanos / 1e9,
+       (this.skippedLines > 0) ? ", " + this.skippedLines + " lines skipped" : "",
+       this.stopped ? ", stopped by the time limit" : "",
+       this.overBudget ? ", stopped by the byte budget" : "");
+  }
+}
@@ -0,0 +1,834 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ *  Indexer builds a Lucene index of a TREC or WARC collection that
+ *  QryEval can search.  Each document has the fields that the search
+ *  side expects:
+ *  <ul>
+ *  <li>externalId:  The document's id (e.g., its DOCNO or
+ *      WARC-TREC-ID), stored and not analyzed.
+ *  <li>body:  The text of the document (of its HTML body, if it has
+ *      one).
+ *  <li>title:  The HTML title, or the TITLE or HEADLINE element.
+ *  <li>url:  The document's URL, with punctuation replaced by spaces
+ *      so that its parts are terms.
+ *  <li>keywords:  The content of the HTML keywords meta tag.
+ *  <li>inlink:  The anchor text of links to the document, from its
+ *      INLINK elements (TREC input only).
+ *  </ul>
+ *  <p>
+ *  The text fields are analyzed with EnglishAnalyzerConfigurable,
+ *  configured the way that QueryAnalyzer analyzes queries, and store
+ *  term vectors with positions (see TermVector).  Field lengths are
+ *  stored by DocLenStoreSimilarity (see DocLengthStore).  Empty fields
+ *  are omitted.
+ *  </p><p>
+ *  Usage:  java Indexer paramFile
+ *  </p><p>
+ *  The parameter file uses the QryEval syntax.  Parameters:
+ *  </p>
+ *  <ul>
+ *  <li>indexPath:  The index to write (required).
+ *  <li>indexInputPath:  The collection (required):  a file, or a
+ *      directory whose files are read in name order.  Files whose
+ *      names end in .gz are decompressed.
+ *  <li>indexInputFormat:  trec, warc, or auto (default), which
+ *      decides for each file from its first line.  In TREC files,
+ *      &lt;DOC&gt; and &lt;/DOC&gt; are on lines of their own.
+ *  <li>indexMode:  create (default) replaces the index;  append adds
+ *      documents to it.
+ *  <li>indexStemmer:  KSTEM (default), PORTER or NONE.  It must match
+ *      QryEval's queryStemmer.
+ *  <li>indexThreads:  The number of threads that parse and index
+ *      documents (default, the number of processors).
+ *  <li>indexQueueSize:  The number of documents that may wait for the
+ *      indexing threads (default 1024).
+ *  <li>indexRamBufferSize:  The memory for buffered documents, in
+ *      megabytes (default 256), shared by the threads.
+ *  <li>indexMergePolicy:  tiered (default), logbytesize or none.
+ *  <li>indexMergeFactor:  The number of segments that are merged at
+ *      once (default 10).
+ *  <li>indexMaxMergedSegmentSize:  The largest segment that merges
+ *      produce, in megabytes (default 5120).
+ *  <li>indexMaxSegments:  If set, the index is merged down to at most
+ *      this many segments when indexing is done.
+ *  </ul>
+ *  <p>
+ *  One thread reads the input files and splits them into documents,
+ *  which it passes to the indexing threads through a bounded queue.
+ *  The indexing threads parse the documents and add them to one
+ *  IndexWriter, which gives each thread its own in-memory segment, so
+ *  they don't wait for each other.  With more than one indexing
+ *  thread, internal docids don't follow the input order.  Documents
+ *  that have no id are skipped and counted.  If an error occurs, the
+ *  documents that were added since the index was opened are discarded.
+ *  </p>
+ */
+public class Indexer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java Indexer paramFile\n\n";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  private static final String[] TEXT_FIELDS =
+    { "body", "title", "url", "keywords", "inlink" };
+
+  private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+
+  private static final Pattern DOCNO = element("DOCNO");
+  private static final Pattern DOCHDR = element("DOCHDR");
+  private static final Pattern URL = element("URL");
+  private static final Pattern INLINK = element("INLINK");
+  private static final Pattern TITLE = element("TITLE");
+  private static final Pattern HEADLINE = element("HEADLINE");
+  private static final Pattern HEAD = element("HEAD");
+  private static final Pattern SCRIPT = element("SCRIPT");
+  private static final Pattern STYLE = element("STYLE");
+  private static final Pattern COMMENT = Pattern.compile("<!--.*?-->", FLAGS);
+  private static final Pattern BODY = Pattern.compile("<body\\b[^>]*>", FLAGS);
+  private static final Pattern META = Pattern.compile("<meta\\b[^>]*>", FLAGS);
+  private static final Pattern ATTRIBUTE =
+    Pattern.compile("([-\\w:.]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))", FLAGS);
+  private static final Pattern TAG = Pattern.compile("<[^>]*>", FLAGS);
+  private static final Pattern ENTITY = Pattern.compile("&(#x?[0-9a-f]+|[a-z]+);", FLAGS);
+  private static final Pattern CHARSET =
+    Pattern.compile("charset\\s*=\\s*[\"']?([-\\w.:]+)", FLAGS);
+  private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  /**
+   *  A marker that ends the document queue.
+   */
+  private static final Record END = new Record(null, null, null);
+
+  private final IndexWriter writer;
+  private final BlockingQueue<Record> queue;
+  private final int threads;
+
+  private final AtomicLong documents = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicReference<Throwable> error =
+    new AtomicReference<Throwable>();
+
+  /**
+   *  The type of the text fields:  analyzed, not stored, with term
+   *  vectors and positions.
+   */
+  private static final FieldType TEXT_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+
+  static {
+    TEXT_TYPE.setStoreTermVectors(true);
+    TEXT_TYPE.setStoreTermVectorPositions(true);
+    TEXT_TYPE.freeze();
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  One document, as it was read from the input.  TREC documents are
+   *  everything from &lt;DOC&gt; to &lt;/DOC&gt;; WARC documents are
+   *  the content of a response record, and its WARC headers.
+   */
+  private static class Record {
+
+    private final String format;
+    private final Map<String, String> headers;
+    private final byte[] content;
+
+    private Record(String format, Map<String, String> headers, byte[] content) {
+      this.format = format;
+      this.headers = headers;
+      this.content = content;
+    }
+  }
+
+  /**
+   *  An input file, read a line or a block of bytes at a time.
+   */
+  private static class Input {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position = 0;
+    private int end = 0;
+
+    private Input(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+
+      if (file.getName().endsWith(".gz"))
+        in = new GZIPInputStream(in, 1 << 16);
+
+      this.in = in;
+    }
+
+    /**
+     *  Read a line, with its line terminator.
+     *  @param line The line is appended to this buffer.
+     *  @return False at the end of the file.
+     */
+    private boolean readLine(ByteArrayOutputStream line) throws IOException {
+
+      boolean found = false;
+
+      while (this.fill()) {
+        found = true;
+
+        int start = this.position;
+
+        while ((this.position < this.end) && (this.buffer[this.position] != '\n'))
+          this.position++;
+
+        if (this.position < this.end) {
+          this.position++;
+          line.write(this.buffer, start, this.position - start);
+          return true;
+        }
+
+        line.write(this.buffer, start, this.position - start);
+      }
+
+      return found;
+    }
+
+    /**
+     *  Read exactly length bytes.
+     */
+    private byte[] readFully(int length) throws IOException {
+
+      byte[] b = new byte[length];
+      int n = 0;
+
+      while (n < length) {
+        if (!this.fill())
+          throw new EOFException("Truncated WARC record.");
+
+        int k = Math.min(length - n, this.end - this.position);
+
+        System.arraycopy(this.buffer, this.position, b, n, k);
+        this.position += k;
+        n += k;
+      }
+
+      return b;
+    }
+
+    /**
+     *  Make sure that the buffer has unread bytes, if the file does.
+     */
+    private boolean fill() throws IOException {
+
+      if (this.position < this.end)
+        return true;
+
+      int n = this.in.read(this.buffer);
+
+      if (n <= 0)
+        return false;
+
+      this.position = 0;
+      this.end = n;
+      return true;
+    }
+
+    private void close() throws IOException {
+      this.in.close();
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error reading the collection or writing the
+   *  index.
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+    if (!(parameters.containsKey("indexPath") &&
+          parameters.containsKey("indexInputPath"))) {
+      throw new IllegalArgumentException
+        ("Required parameters were missing from the parameter file.");
+    }
+
+    String format = parameters.containsKey("indexInputFormat") ?
+      parameters.get("indexInputFormat").toLowerCase() : "auto";
+
+    if (!(format.equals("auto") || format.equals("trec") || format.equals("warc"))) {
+      throw new IllegalArgumentException
+        ("indexInputFormat must be trec, warc or auto.");
+    }
+
+    List<File> files = new ArrayList<File>();
+
+    listFiles(new File(parameters.get("indexInputPath")), files);
+
+    long start = System.nanoTime();
+    Indexer indexer = new Indexer(parameters);
+    indexer.index(files, format);
+
+    if (parameters.containsKey("indexMaxSegments")) {
+      indexer.writer.forceMerge(Integer.parseInt(parameters.get("indexMaxSegments")));
+    }
+
+    indexer.writer.close();
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(indexer.documents.get() + " documents indexed, " +
+                       indexer.skipped.get() + " skipped, from " + files.size() +
+                       " files in " + String.format("%.1f", seconds) + " s (" +
+                       String.format("%.0f", indexer.documents.get() / Math.max(seconds, 1e-3)) +
+                       " documents/s)");
+  }
+
+  /**
+   *  Open the index for writing.
+   */
+  private Indexer(Map<String, String> parameters) throws IOException {
+
+    EnglishAnalyzerConfigurable.StemmerType stemmer =
+      parameters.containsKey("indexStemmer") ?
+      EnglishAnalyzerConfigurable.StemmerType.valueOf
+        (parameters.get("indexStemmer").toUpperCase()) :
+      EnglishAnalyzerConfigurable.StemmerType.KSTEM;
+    String mode = parameters.containsKey("indexMode") ?
+      parameters.get("indexMode").toLowerCase() : "create";
+    double ramBuffer = parameters.containsKey("indexRamBufferSize") ?
+      Double.parseDouble(parameters.get("indexRamBufferSize")) : 256;
+    int queueSize = parameters.containsKey("indexQueueSize") ?
+      Integer.parseInt(parameters.get("indexQueueSize")) : 1024;
+
+    this.threads = parameters.containsKey("indexThreads") ?
+      Math.max(1, Integer.parseInt(parameters.get("indexThreads"))) :
+      Runtime.getRuntime().availableProcessors();
+    this.queue = new ArrayBlockingQueue<Record>(Math.max(1, queueSize));
+
+    //  Each text field is analyzed the way that queries are.
+
+    Map<String, Analyzer> analyzers = new HashMap<String, Analyzer>();
+
+    for (String field : TEXT_FIELDS) {
+      EnglishAnalyzerConfigurable analyzer =
+        new EnglishAnalyzerConfigurable(Version.LUCENE_43);
+
+      analyzer.setLowercase(true);
+      analyzer.setStopwordRemoval(true);
+      analyzer.setStemmer(stemmer);
+      analyzers.put(field, analyzer);
+    }
+
+    IndexWriterConfig config =
+      new IndexWriterConfig(Version.LUCENE_43,
+                            new PerFieldAnalyzerWrapper(new KeywordAnalyzer(), analyzers));
+
+    if (mode.equals("create")) {
+      config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    } else if (mode.equals("append")) {
+      config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+    } else {
+      throw new IllegalArgumentException("indexMode must be create or append.");
+    }
+
+    config.setSimilarity(new DocLenStoreSimilarity());
+    config.setRAMBufferSizeMB(ramBuffer);
+    config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    config.setMaxThreadStates(this.threads);
+    config.setMergePolicy(getMergePolicy(parameters));
+
+    this.writer =
+      new IndexWriter(FSDirectory.open(new File(parameters.get("indexPath"))), config);
+  }
+
+  /**
+   *  Get the merge policy that the parameters describe.
+   */
+  private static MergePolicy getMergePolicy(Map<String, String> parameters) {
+
+    String name = parameters.containsKey("indexMergePolicy") ?
+      parameters.get("indexMergePolicy").toLowerCase() : "tiered";
+    int mergeFactor = parameters.containsKey("indexMergeFactor") ?
+      Integer.parseInt(parameters.get("indexMergeFactor")) : 10;
+    double maxSegment = parameters.containsKey("indexMaxMergedSegmentSize") ?
+      Double.parseDouble(parameters.get("indexMaxMergedSegmentSize")) : 5120;
+
+    if (name.equals("tiered")) {
+      TieredMergePolicy p = new TieredMergePolicy();
+
+      p.setMaxMergeAtOnce(mergeFactor);
+      p.setSegmentsPerTier(mergeFactor);
+      p.setMaxMergedSegmentMB(maxSegment);
+      return p;
+    } else if (name.equals("logbytesize")) {
+      LogByteSizeMergePolicy p = new LogByteSizeMergePolicy();
+
+      p.setMergeFactor(mergeFactor);
+      p.setMaxMergeMB(maxSegment);
+      return p;
+    } else if (name.equals("none")) {
+      return NoMergePolicy.COMPOUND_FILES;
+    } else {
+      throw new IllegalArgumentException
+        ("indexMergePolicy must be tiered, logbytesize or none.");
+    }
+  }
+
+  /**
+   *  Add a file, or the files in a directory tree, to a list, in name
+   *  order.
+   */
+  private static void listFiles(File f, List<File> files) throws IOException {
+
+    if (f.isDirectory()) {
+      File[] children = f.listFiles();
+
+      if (children == null)
+        throw new IOException("Unable to read " + f);
+
+      Arrays.sort(children);
+
+      for (File child : children)
+        listFiles(child, files);
+    } else if (f.isFile()) {
+      files.add(f);
+    } else {
+      throw new FileNotFoundException(f.getPath());
+    }
+  }
+
+  /**
+   *  Index the documents in a list of files.  If an error occurs, the
+   *  documents that were added are discarded, and the error is thrown.
+   */
+  private void index(final List<File> files, final String format)
+    throws IOException {
+
+    List<Thread> workers = new ArrayList<Thread>();
+
+    workers.add(new Thread(new Runnable() {
+        public void run() {
+          read(files, format);
+        }
+      }, "Indexer-read"));
+
+    for (int i = 0; i < this.threads; i++) {
+      workers.add(new Thread(new Runnable() {
+          public void run() {
+            indexRecords();
+          }
+        }, "Indexer-" + i));
+    }
+
+    for (Thread t : workers) {
+      t.setDaemon(true);
+      t.start();
+    }
+
+    try {
+      for (Thread t : workers)
+        t.join();
+    } catch (InterruptedException ex) {
+      this.error.compareAndSet(null, ex);
+      Thread.currentThread().interrupt();
+    }
+
+    Throwable ex = this.error.get();
+
+    if (ex == null)
+      return;
+
+    this.writer.rollback();
+
+    if (ex instanceof IOException)
+      throw (IOException) ex;
+    else if (ex instanceof RuntimeException)
+      throw (RuntimeException) ex;
+    else if (ex instanceof Error)
+      throw (Error) ex;
+    else
+      throw new IOException(ex);
+  }
+
+  /**
+   *  Split the input files into documents, and put them in the queue.
+   */
+  private void read(List<File> files, String format) {
+
+    try {
+      try {
+        for (File file : files) {
+          if (this.error.get() != null)
+            break;
+
+          Input input = new Input(file);
+
+          try {
+            this.readFile(input, format);
+          } finally {
+            input.close();
+          }
+        }
+      } catch (Throwable ex) {
+        this.error.compareAndSet(null, ex);
+      }
+
+      this.queue.put(END);
+    } catch (InterruptedException ex) {
+      this.error.compareAndSet(null, ex);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   *  Split one input file into documents.
+   */
+  private void readFile(Input input, String format)
+    throws IOException, InterruptedException {
+
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    ByteArrayOutputStream doc = null;
+    Map<String, String> headers = null;
+
+    while ((this.error.get() == null) && input.readLine(line)) {
+      String s = new String(line.toByteArray(), LATIN1).trim();
+
+      if (format.equals("auto") && (s.length() > 0))
+        format = s.startsWith("WARC/") ? "warc" : "trec";
+
+      if (format.equals("trec")) {
+
+        //  <DOC> ... </DOC>
+
+        if (s.equalsIgnoreCase("<DOC>")) {
+          doc = new ByteArrayOutputStream();
+        } else if (s.equalsIgnoreCase("</DOC>") && (doc != null)) {
+          this.queue.put(new Record("trec", null, doc.toByteArray()));
+          doc = null;
+        } else if (doc != null) {
+          line.writeTo(doc);
+        }
+      } else {
+
+        //  WARC/1.0, header lines, a blank line, Content-Length bytes.
+
+        if (s.startsWith("WARC/")) {
+          headers = new HashMap<String, String>();
+        } else if ((headers != null) && (s.length() > 0)) {
+          int colon = s.indexOf(':');
+
+          if (colon > 0)
+            headers.put(s.substring(0, colon).trim().toLowerCase(),
+                        s.substring(colon + 1).trim());
+        } else if (headers != null) {
+          String length = headers.get("content-length");
+          byte[] content = input.readFully((length != null) ? Integer.parseInt(length) : 0);
+
+          if ("response".equalsIgnoreCase(headers.get("warc-type")))
+            this.queue.put(new Record("warc", headers, content));
+
+          headers = null;
+        }
+      }
+
+      line.reset();
+    }
+  }
+
+  /**
+   *  Take documents from the queue, and index them, until the queue
+   *  ends or an error occurs.
+   */
+  private void indexRecords() {
+
+    try {
+      Record r;
+
+      while ((r = this.queue.take()) != END) {
+        if (this.error.get() != null)
+          continue;		// Drain the queue, so that the reader ends
+
+        try {
+          Document d = r.format.equals("trec") ? parseTrec(r) : parseWarc(r);
+
+          if (d == null) {
+            this.skipped.incrementAndGet();
+          } else {
+            this.writer.addDocument(d);
+            this.documents.incrementAndGet();
+          }
+        } catch (Throwable ex) {
+          this.error.compareAndSet(null, ex);
+        }
+      }
+
+      this.queue.put(END);		// For the other threads
+    } catch (InterruptedException ex) {
+      this.error.compareAndSet(null, ex);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   *  Parse a TREC document:  its DOCNO, an optional DOCHDR (whose
+   *  first line is the URL) or URL element, INLINK elements, and text
+   *  or HTML.
+   *  @return The Lucene document, or null if there is no DOCNO.
+   */
+  private static Document parseTrec(Record r) {
+
+    String text = new String(r.content, UTF8);
+    String id = getElement(DOCNO, text);
+
+    if ((id == null) || (id.trim().length() == 0))
+      return null;
+
+    String url = getElement(URL, text);
+    String header = getElement(DOCHDR, text);
+    StringBuilder inlinks = new StringBuilder();
+    Matcher m = INLINK.matcher(text);
+
+    while (m.find())
+      inlinks.append(m.group(1)).append('\n');
+
+    if (header != null) {
+      String[] lines = header.trim().split("\\s+", 2);
+
+      if (url == null)
+        url = lines[0];
+    }
+
+    text = DOCNO.matcher(text).replaceAll(" ");
+    text = DOCHDR.matcher(text).replaceAll(" ");
+    text = URL.matcher(text).replaceAll(" ");
+    text = INLINK.matcher(text).replaceAll(" ");
+
+    return makeDocument(id.trim(), url, text, inlinks.toString());
+  }
+
+  /**
+   *  Parse the content of a WARC response record:  HTTP headers, then
+   *  HTML.  The id is the WARC-TREC-ID header (e.g., in ClueWeb), or
+   *  the WARC-Record-ID.
+   *  @return The Lucene document, or null if there is no id.
+   */
+  private static Document parseWarc(Record r) {
+
+    String id = r.headers.get("warc-trec-id");
+
+    if (id == null)
+      id = r.headers.get("warc-record-id");
+
+    if ((id == null) || (id.length() == 0))
+      return null;
+
+    if (id.startsWith("<") && id.endsWith(">"))
+      id = id.substring(1, id.length() - 1);
+
+    //  The HTTP headers end at the first blank line.  The charset is
+    //  in the Content-Type header, or in a meta tag.
+
+    byte[] b = r.content;
+    int body = 0;
+
+    for (int i = 0; i < b.length; i++) {
+      if ((b[i] == '\n') &&
+          (((i + 1 < b.length) && (b[i + 1] == '\n')) ||
+           ((i + 2 < b.length) && (b[i + 1] == '\r') && (b[i + 2] == '\n')))) {
+        body = (b[i + 1] == '\n') ? i + 2 : i + 3;
+        break;
+      }
+    }
+
+    String http = new String(b, 0, body, LATIN1);
+    Charset charset = getCharset(http);
+
+    if (charset == null)
+      charset = getCharset(new String(b, body, Math.min(b.length - body, 4096), LATIN1));
+
+    String html = new String(b, body, b.length - body, (charset != null) ? charset : UTF8);
+
+    return makeDocument(id, r.headers.get("warc-target-uri"), html, null);
+  }
+
+  /**
+   *  Get the charset that a Content-Type header or meta tag names.
+   *  @return The charset, or null if there isn't one that Java
+   *  supports.
+   */
+  private static Charset getCharset(String s) {
+
+    Matcher m = CHARSET.matcher(s);
+
+    try {
+      return m.find() ? Charset.forName(m.group(1)) : null;
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  /**
+   *  Make a Lucene document.  The title, keywords and body are found
+   *  in the HTML (or plain text).
+   */
+  private static Document makeDocument(String id, String url, String html,
+                                       String inlinks) {
+
+    html = COMMENT.matcher(html).replaceAll(" ");
+    html = SCRIPT.matcher(html).replaceAll(" ");
+    html = STYLE.matcher(html).replaceAll(" ");
+
+    String title = getElement(TITLE, html);
+
+    if (title == null)
+      title = getElement(HEADLINE, html);
+
+    StringBuilder keywords = new StringBuilder();
+    Matcher m = META.matcher(html);
+
+    while (m.find()) {
+      String tag = m.group();
+
+      if ("keywords".equalsIgnoreCase(getAttribute(tag, "name"))) {
+        String content = getAttribute(tag, "content");
+
+        if (content != null)
+          keywords.append(content).append('\n');
+      }
+    }
+
+    //  The body is the text after the <body> tag, if there is one.
+    //  Otherwise it is the whole document, without the HTML head.
+
+    String body;
+
+    m = BODY.matcher(html);
+
+    if (m.find())
+      body = html.substring(m.end());
+    else
+      body = HEAD.matcher(html).replaceAll(" ");
+
+    Document d = new Document();
+
+    d.add(new StringField("externalId", id, Field.Store.YES));
+    addText(d, "body", getText(body));
+    addText(d, "title", (title != null) ? getText(title) : null);
+    addText(d, "url", (url != null) ? NON_ALPHANUMERIC.matcher(url).replaceAll(" ") : null);
+    addText(d, "keywords", decodeEntities(keywords.toString()));
+    addText(d, "inlink", (inlinks != null) ? getText(inlinks) : null);
+    return d;
+  }
+
+  /**
+   *  Add a text field to a document, unless it is empty.
+   */
+  private static void addText(Document d, String field, String text) {
+    if ((text != null) && (text.trim().length() > 0))
+      d.add(new Field(field, text, TEXT_TYPE));
+  }
+
+  /**
+   *  Get the content of the first instance of an element, or null.
+   */
+  private static String getElement(Pattern element, String text) {
+    Matcher m = element.matcher(text);
+    return m.find() ? m.group(1) : null;
+  }
+
+  /**
+   *  Get the value of an attribute of an HTML tag, or null.
+   */
+  private static String getAttribute(String tag, String name) {
+
+    Matcher m = ATTRIBUTE.matcher(tag);
+
+    while (m.find()) {
+      if (m.group(1).equalsIgnoreCase(name))
+        return (m.group(2) != null) ? m.group(2) :
+          (m.group(3) != null) ? m.group(3) : m.group(4);
+    }
+
+    return null;
+  }
+
+  /**
+   *  Get the text of HTML:  tags are replaced by spaces, so that the
+   *  words on either side of them aren't joined, and entities are
+   *  decoded.
+   */
+  private static String getText(String html) {
+    return decodeEntities(TAG.matcher(html).replaceAll(" "));
+  }
+
+  /**
+   *  Decode HTML character entities.  Named entities other than the
+   *  common ones become spaces.
+   */
+  private static String decodeEntities(String text) {
+
+    if (text.indexOf('&') < 0)
+      return text;
+
+    Matcher m = ENTITY.matcher(text);
+    StringBuffer s = new StringBuffer();
+
+    while (m.find()) {
+      String e = m.group(1).toLowerCase();
+      String c = " ";
+
+      try {
+        if (e.startsWith("#x"))
+          c = new String(Character.toChars(Integer.parseInt(e.substring(2), 16)));
+        else if (e.startsWith("#"))
+          c = new String(Character.toChars(Integer.parseInt(e.substring(1))));
+        else if (e.equals("amp"))
+          c = "&";
+        else if (e.equals("quot"))
+          c = "\"";
+        else if (e.equals("apos"))
+          c = "'";
+      } catch (IllegalArgumentException ex) {
+        //  An invalid code point.  Use a space.
+      }
+
+      m.appendReplacement(s, Matcher.quoteReplacement(c));
+    }
+
+    m.appendTail(s);
+    return s.toString();
+  }
+
+  /**
+   *  A pattern that matches an element and captures its content.
+   */
+  private static Pattern element(String name) {
+    return Pattern.compile("<" + name + "\\b[^>]*>(.*?)</" + name + "\\s*>", FLAGS);
+  }
+}
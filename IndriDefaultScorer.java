@@ -0,0 +1,448 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ *  The Indri default scores of a score operator's arguments, compiled
+ *  into a flat program.
+ *  <p>
+ *  When an argument of #AND, #WAND or #WSUM doesn't match a document,
+ *  the Indri model uses the argument's default score, which depends
+ *  only on the document's field lengths.  Computing it by calling
+ *  getDefaultScore recursively costs a virtual call per operator, two
+ *  index lookups per SCORE operator (the field length and the
+ *  collection length), and a field name lookup per document length.
+ *  This class computes each SCORE operator's smoothing constants once,
+ *  reads each field's length once per document, and evaluates the
+ *  rest of the subtree with a loop over a small postfix program.
+ *  </p><p>
+ *  The program does the same arithmetic, in the same order, as the
+ *  recursive getDefaultScore methods, so scores are unchanged.  If the
+ *  model uses log-space scores, the program computes log-space default
+ *  scores, combining them the way the operators' getScore methods do.
+ *  If the model approximates scores with document length buckets, a
+ *  SCORE operator's default score is a lookup in its table.
+ *  </p><p>
+ *  Like the Qry objects that it is compiled from, a scorer keeps
+ *  per-document state, so it must be used by one thread at a time.
+ *  </p>
+ */
+public final class IndriDefaultScorer {
+
+  //  --------------- Constants and variables ---------------------
+
+  //  Instructions.  Each one pushes one value onto the stack.
+
+  private static final byte SCORE = 0;	// Smoothed default of one term
+  private static final byte ZERO = 1;	// A constant 0 (e.g., #OR)
+  private static final byte AND = 2;	// Combine the top n values
+  private static final byte WAND = 3;
+  private static final byte WSUM = 4;
+
+  private final RetrievalModelIndri model;
+  private final double mu;
+  private final boolean logSpace;
+
+  private final byte[] op;
+  private final int[] operand;		// SCORE: term; others: # args
+  private final int[] weightStart;	// WAND and WSUM:  weights index
+
+  /**
+   *  The program for argument i is instructions argStart[i] to
+   *  argStart[i+1]-1.  The last instruction combines the arguments.
+   */
+  private final int[] argStart;
+
+  //  Per-term constants.
+
+  private final double[] numerator;	// (1 - lambda) * mu * mle
+  private final double[] background;	// lambda * mle
+  private final int[] termField;	// Index into fields
+  private final double[][] table;	// By length bucket, or null
+
+  //  WAND:  weight / sumOfWeight.  WSUM:  weight, or weight /
+  //  sumOfWeight in log space.
+
+  private final double[] weights;
+  private final double[] sumOfWeights;	// WSUM, by instruction
+
+  //  Document lengths, read once per document per field.
+
+  private final NumericDocValues[] fieldLengths;
+  private final double[] docLen;
+  private int docLenDocid = Qry.INVALID_DOCID;
+
+  //  Document length buckets, if scores are approximate.
+
+  private final DocLengthBuckets[] fieldBuckets;
+  private final int[] docBucket;
+
+  private final double[] stack;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compile the default scores of a score operator's arguments.  The
+   *  arguments must be initialized, so that their collection
+   *  statistics are available.
+   *  @param q An #AND, #WAND or #WSUM query operator.
+   *  @param r The Indri retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException The query contains an operator
+   *    that doesn't have an Indri default score.
+   */
+  public IndriDefaultScorer(QrySop q, RetrievalModelIndri r)
+    throws IOException {
+
+    Compiler c = new Compiler(r);
+
+    this.model = r;
+    this.mu = r.mu;
+    this.logSpace = r.logSpace;
+
+    this.argStart = new int[q.args.size() + 1];
+
+    for (int i = 0; i < q.args.size(); i++) {
+      this.argStart[i] = c.op.size();
+      c.compile(q.args.get(i));
+    }
+
+    this.argStart[q.args.size()] = c.op.size();
+    c.compileCombine(q);
+
+    int n = c.op.size();
+
+    this.op = new byte[n];
+    this.operand = new int[n];
+    this.weightStart = new int[n];
+    this.sumOfWeights = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      this.op[i] = c.op.get(i);
+      this.operand[i] = c.operand.get(i);
+      this.weightStart[i] = c.weightStart.get(i);
+      this.sumOfWeights[i] = c.sumOfWeights.get(i);
+    }
+
+    this.numerator = toArray(c.numerator);
+    this.background = toArray(c.background);
+    this.weights = toArray(c.weights);
+
+    this.termField = new int[c.termField.size()];
+
+    for (int i = 0; i < this.termField.length; i++)
+      this.termField[i] = c.termField.get(i);
+
+    if (r.lengthBuckets > 0) {
+      this.table = c.table.toArray(new double[c.table.size()][]);
+      this.fieldBuckets = c.buckets.toArray(new DocLengthBuckets[c.buckets.size()]);
+      this.docBucket = new int[this.fieldBuckets.length];
+      this.fieldLengths = new NumericDocValues[0];
+    } else {
+      this.table = null;
+      this.fieldBuckets = null;
+      this.docBucket = null;
+      this.fieldLengths = new NumericDocValues[c.fields.size()];
+
+      for (int i = 0; i < this.fieldLengths.length; i++)
+        this.fieldLengths[i] = Idx.getFieldLengths(c.fields.get(i));
+    }
+
+    this.docLen = new double[this.fieldLengths.length];
+    this.stack = new double[n];
+  }
+
+  /**
+   *  Get the default score of one of the operator's arguments.
+   *  @param i The argument's index.
+   *  @param docid The document's internal document id.
+   *  @return The argument's default score.
+   */
+  public double getArgDefaultScore(int i, int docid) {
+    return this.run(this.argStart[i], this.argStart[i + 1], docid);
+  }
+
+  /**
+   *  Get the default score of the whole operator.
+   *  @param docid The document's internal document id.
+   *  @return The operator's default score.
+   */
+  public double getDefaultScore(int docid) {
+    return this.run(0, this.op.length, docid);
+  }
+
+  /**
+   *  Get the retrieval model that the constants were computed for.
+   *  @return The retrieval model.
+   */
+  public RetrievalModelIndri getModel() {
+    return this.model;
+  }
+
+  /**
+   *  Run part of the program.
+   *  @param from The first instruction.
+   *  @param to One past the last instruction.
+   *  @param docid The document's internal document id.
+   *  @return The value that the instructions leave on the stack.
+   */
+  private double run(int from, int to, int docid) {
+
+    if (docid != this.docLenDocid) {
+      for (int f = 0; f < this.docLen.length; f++)
+        this.docLen[f] = (int) this.fieldLengths[f].get(docid);
+      if (this.fieldBuckets != null) {
+        for (int f = 0; f < this.docBucket.length; f++)
+          this.docBucket[f] = this.fieldBuckets[f].getBucket(docid);
+      }
+      this.docLenDocid = docid;
+    }
+
+    double[] stack = this.stack;
+    int top = 0;
+
+    for (int pc = from; pc < to; pc++) {
+      switch (this.op[pc]) {
+
+      case SCORE: {
+        int t = this.operand[pc];
+
+        if (this.table != null) {
+          stack[top++] = this.table[t][this.docBucket[this.termField[t]]];
+          break;
+        }
+
+        double p = this.numerator[t] /
+          ((this.docLen[this.termField[t]]) + this.mu) + this.background[t];
+        stack[top++] = this.logSpace ? Math.log(p) : p;
+        break;
+      }
+
+      case ZERO:
+        stack[top++] = this.logSpace ? Double.NEGATIVE_INFINITY : 0.0;
+        break;
+
+      case AND: {
+        int n = this.operand[pc];
+        double score;
+
+        if (this.logSpace) {
+          double w = 1.0 / n;
+          score = 0.0;
+
+          for (int j = top - n; j < top; j++)
+            score += w * stack[j];
+        } else {
+          score = 1.0;
+
+          for (int j = top - n; j < top; j++)
+            score *= stack[j];
+
+          score = Math.pow(score, 1.0 / n);
+        }
+
+        top -= n;
+        stack[top++] = score;
+        break;
+      }
+
+      case WAND: {
+        int n = this.operand[pc];
+        int w = this.weightStart[pc];
+        double score;
+
+        if (this.logSpace) {
+          score = 0.0;
+
+          for (int j = top - n; j < top; j++, w++)
+            if (this.weights[w] != 0.0)
+              score += this.weights[w] * stack[j];
+        } else {
+          score = 1.0;
+
+          for (int j = top - n; j < top; j++)
+            score *= Math.pow(stack[j], this.weights[w++]);
+        }
+
+        top -= n;
+        stack[top++] = score;
+        break;
+      }
+
+      case WSUM: {
+        int n = this.operand[pc];
+        int w = this.weightStart[pc];
+        double score;
+
+        if (this.logSpace) {
+          score = QrySopWSum.logWeightedSum(stack, top - n, this.weights, w, n);
+        } else {
+          double sum = this.sumOfWeights[pc];
+          score = 0.0;
+
+          for (int j = top - n; j < top; j++)
+            score += (stack[j] * this.weights[w++] / sum);
+        }
+
+        top -= n;
+        stack[top++] = score;
+        break;
+      }
+
+      default:
+        throw new IllegalStateException("Unknown instruction " + this.op[pc]);
+      }
+    }
+
+    return stack[top - 1];
+  }
+
+  private static double[] toArray(List<Double> list) {
+    double[] a = new double[list.size()];
+
+    for (int i = 0; i < a.length; i++)
+      a[i] = list.get(i);
+
+    return a;
+  }
+
+  /**
+   *  Accumulates the program while the query tree is traversed.
+   */
+  private static class Compiler {
+
+    private final RetrievalModelIndri r;
+
+    private final List<Byte> op = new ArrayList<Byte>();
+    private final List<Integer> operand = new ArrayList<Integer>();
+    private final List<Integer> weightStart = new ArrayList<Integer>();
+    private final List<Double> sumOfWeights = new ArrayList<Double>();
+
+    private final List<Double> numerator = new ArrayList<Double>();
+    private final List<Double> background = new ArrayList<Double>();
+    private final List<Integer> termField = new ArrayList<Integer>();
+    private final List<String> fields = new ArrayList<String>();
+    private final List<double[]> table = new ArrayList<double[]>();
+    private final List<DocLengthBuckets> buckets = new ArrayList<DocLengthBuckets>();
+
+    private final List<Double> weights = new ArrayList<Double>();
+
+    private Compiler(RetrievalModelIndri r) {
+      this.r = r;
+    }
+
+    /**
+     *  Compile the default score of a query operator.
+     *  @param q The query operator.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void compile(Qry q) throws IOException {
+
+      if (q instanceof QrySopScore) {
+        QrySopScore s = (QrySopScore) q;
+
+        this.compileScore(s.getField(), s.getIndriDefaultNumerator(this.r),
+                          s.getIndriBackground(this.r),
+                          s.getIndriDefaultTable(this.r), s.getLengthBuckets());
+      } else if (q instanceof QrySopFields) {
+
+        //  One SCORE per field, combined like #WSUM.
+
+        QrySopFields s = (QrySopFields) q;
+
+        for (int i = 0; i < q.args.size(); i++)
+          this.compileScore(s.getField(i),
+                            s.getIndriDefaultNumerator(this.r, i),
+                            s.getIndriBackground(this.r, i),
+                            s.getIndriDefaultTable(this.r, i),
+                            s.getLengthBuckets(i));
+
+        this.compileCombine(q);
+      } else if ((q instanceof QrySopOr) || (q instanceof QrySopSum)) {
+        this.add(ZERO, 0, 0, 0.0);
+      } else {
+        for (Qry q_i : q.args)
+          this.compile(q_i);
+
+        this.compileCombine(q);
+      }
+    }
+
+    /**
+     *  Compile the default score of one term in one field.
+     *  @param field The field.
+     *  @param numerator (1 - lambda) * mu * mle.
+     *  @param background lambda * mle.
+     *  @param table The default scores by length bucket, or null.
+     *  @param buckets The field's length buckets, or null.
+     */
+    private void compileScore(String field, double numerator,
+                              double background, double[] table,
+                              DocLengthBuckets buckets) {
+
+      int f = this.fields.indexOf(field);
+
+      if (f < 0) {
+        f = this.fields.size();
+        this.fields.add(field);
+      }
+
+      this.add(SCORE, this.numerator.size(), 0, 0.0);
+      this.numerator.add(numerator);
+      this.background.add(background);
+      this.termField.add(f);
+
+      if (this.r.lengthBuckets > 0) {
+        this.table.add(table);
+
+        if (f == this.buckets.size())
+          this.buckets.add(buckets);
+      }
+    }
+
+    /**
+     *  Compile the instruction that combines the default scores of a
+     *  query operator's arguments, which are on the stack.
+     *  @param q The query operator.
+     */
+    private void compileCombine(Qry q) {
+
+      int n = q.args.size();
+
+      if (q instanceof QrySopAnd) {
+        this.add(AND, n, 0, 0.0);
+      } else if (q instanceof QrySopWAnd) {
+        QryWSop w = (QryWSop) q;
+
+        this.add(WAND, n, this.weights.size(), 0.0);
+
+        for (int i = 0; i < n; i++)
+          this.weights.add(w.getWeight(i) / w.sumOfWeight);
+      } else if ((q instanceof QrySopWSum) || (q instanceof QrySopFields)) {
+        QryWSop w = (QryWSop) q;
+
+        this.add(WSUM, n, this.weights.size(), w.sumOfWeight);
+
+        for (int i = 0; i < n; i++)
+          this.weights.add(this.r.logSpace ?
+                           w.getWeight(i) / w.sumOfWeight : w.getWeight(i));
+      } else {
+        throw new IllegalArgumentException
+          ("The Indri retrieval model doesn't support the " +
+           q.getDisplayName() + " operator.");
+      }
+    }
+
+    private void add(byte op, int operand, int weightStart, double sum) {
+      this.op.add(op);
+      this.operand.add(operand);
+      this.weightStart.add(weightStart);
+      this.sumOfWeights.add(sum);
+    }
+  }
+}
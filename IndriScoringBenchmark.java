@@ -0,0 +1,249 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  IndriScoringBenchmark compares Indri scoring with probabilities
+ *  (the default) and with log probabilities (Indri:logSpace=true) on
+ *  long, pseudo relevance feedback (PRF) queries.
+ *  <p>
+ *  Usage:  java IndriScoringBenchmark paramFile
+ *  </p>
+ *  <p>
+ *  The parameter file uses the QryEval syntax.  indexPath,
+ *  queryFilePath, Indri:mu, Indri:lambda, fbDocs, fbTerms, fbMu and
+ *  fbOrigWeight are required; use fbTerms=100 or more to get long
+ *  queries.  benchmarkRepetitions (default 3) is the number of times
+ *  each query is evaluated in each mode.
+ *  </p>
+ *  <p>
+ *  Each query in the query file is expanded the way QryEval expands
+ *  it.  Two queries are evaluated:  the expanded query (#wand of the
+ *  original and expansion queries), and an unweighted #and of the
+ *  expansion terms, which multiplies fbTerms probabilities before
+ *  taking the geometric mean.  For each, the benchmark reports
+ *  </p>
+ *  <ul>
+ *  <li>the evaluation time in each mode;
+ *  <li>the number of documents whose probability score is not a
+ *      normal, positive double (i.e., it underflowed), and the number
+ *      whose log score is not finite;
+ *  <li>the number of queries whose top 100 documents are not in the
+ *      same order in both modes; and
+ *  <li>the largest relative difference between a probability score
+ *      and the exp of the corresponding log score, over documents
+ *      whose probability score did not underflow.
+ *  </ul>
+ */
+public class IndriScoringBenchmark {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java IndriScoringBenchmark paramFile\n\n";
+
+  private static final int TOP_K = 100;
+
+  /**
+   *  Measurements for one query form in one mode.
+   */
+  private static class Stats {
+    long nanos = 0;
+    long documents = 0;
+    long underflows = 0;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+    String[] required = { "indexPath", "queryFilePath", "Indri:mu",
+                          "Indri:lambda", "fbDocs", "fbTerms", "fbMu",
+                          "fbOrigWeight" };
+
+    for (String p : required) {
+      if (!parameters.containsKey(p)) {
+        throw new IllegalArgumentException
+          ("Required parameter " + p + " was missing from the parameter file.");
+      }
+    }
+
+    int repetitions = 3;
+
+    if (parameters.containsKey("benchmarkRepetitions"))
+      repetitions = Integer.parseInt(parameters.get("benchmarkRepetitions"));
+
+    parameters.put("retrievalAlgorithm", "Indri");
+    parameters.put("Indri:logSpace", "false");
+    RetrievalModelIndri linear =
+      (RetrievalModelIndri) QryEval.initialize(parameters);
+    parameters.put("Indri:logSpace", "true");
+    RetrievalModelIndri log =
+      (RetrievalModelIndri) QryEval.initializeRetrievalModel(parameters);
+
+    double origWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+
+    //  Expand the queries.
+
+    List<String> qids = new ArrayList<String>();
+    List<String> prfQueries = new ArrayList<String>();
+    List<String> andQueries = new ArrayList<String>();
+    BufferedReader input =
+      new BufferedReader(new FileReader(parameters.get("queryFilePath")));
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        int d = line.indexOf(':');
+
+        if (d < 0) {
+          throw new IllegalArgumentException
+            ("Syntax error:  Missing ':' in query line.");
+        }
+
+        String qid = line.substring(0, d);
+        String query = line.substring(d + 1);
+
+        ScoreList r = QryEval.doQuery(QryEval.compileQuery(query, linear), linear);
+
+        if ((r == null) || (r.size() == 0))
+          continue;
+
+        r.sort();
+        String expansion = QryEval.expendQuery(r);
+
+        qids.add(qid);
+        prfQueries.add("#wand ( " + origWeight + " #and(" + query + ") " +
+                       (1 - origWeight) + " " + expansion + " )");
+        andQueries.add("#and ( " + expansionTerms(expansion) + " )");
+      }
+    } finally {
+      input.close();
+    }
+
+    System.out.println(qids.size() + " queries, fbTerms=" +
+                       parameters.get("fbTerms") + ", " + repetitions +
+                       " repetitions");
+
+    compare("expanded #wand", qids, prfQueries, linear, log, repetitions);
+    compare("#and of expansion terms", qids, andQueries, linear, log, repetitions);
+  }
+
+  /**
+   *  Evaluate a set of queries in both modes and report the results.
+   */
+  private static void compare(String name, List<String> qids,
+                              List<String> queries, RetrievalModelIndri linear,
+                              RetrievalModelIndri log, int repetitions)
+    throws IOException {
+
+    Stats linearStats = new Stats();
+    Stats logStats = new Stats();
+    int reordered = 0;
+    double maxRelativeError = 0;
+
+    for (int q = 0; q < queries.size(); q++) {
+      QryPlan linearPlan = QryEval.compileQuery(queries.get(q), linear);
+      QryPlan logPlan = QryEval.compileQuery(queries.get(q), log);
+
+      ScoreList linearResult = evaluate(linearPlan, linear, repetitions, linearStats);
+      ScoreList logResult = evaluate(logPlan, log, repetitions, logStats);
+
+      //  Both lists are in docid order before sorting.
+
+      for (int i = 0; i < linearResult.size(); i++) {
+        double p = linearResult.getDocidScore(i);
+        double l = logResult.getDocidScore(i);
+
+        if (!(p >= Double.MIN_NORMAL))
+          linearStats.underflows++;
+        else
+          maxRelativeError =
+            Math.max(maxRelativeError, Math.abs(Math.exp(l) - p) / p);
+
+        if (Double.isInfinite(l) || Double.isNaN(l))
+          logStats.underflows++;
+      }
+
+      linearResult.selectTop(TOP_K);
+      logResult.selectTop(TOP_K);
+
+      boolean same = (linearResult.size() == logResult.size());
+
+      for (int i = 0; same && (i < linearResult.size()); i++)
+        same = (linearResult.getDocid(i) == logResult.getDocid(i));
+
+      if (!same) {
+        reordered++;
+        System.out.println("  " + name + ":  query " + qids.get(q) +
+                           " top " + TOP_K + " differs");
+      }
+    }
+
+    System.out.println(name + ":");
+    report("probabilities", linearStats, queries.size() * repetitions);
+    report("log space", logStats, queries.size() * repetitions);
+    System.out.println("  queries with a different top " + TOP_K + ": " +
+                       reordered + " of " + queries.size());
+    System.out.println("  max relative error of exp (log score): " +
+                       maxRelativeError);
+  }
+
+  /**
+   *  Evaluate a plan several times, and return the last result.
+   */
+  private static ScoreList evaluate(QryPlan plan, RetrievalModel model,
+                                    int repetitions, Stats stats)
+    throws IOException {
+
+    ScoreList r = null;
+
+    for (int i = 0; i < repetitions; i++) {
+      long start = System.nanoTime();
+      r = QryEval.doQuery(plan, model);
+      stats.nanos += System.nanoTime() - start;
+    }
+
+    stats.documents += r.size();
+    return r;
+  }
+
+  private static void report(String mode, Stats stats, int evaluations) {
+    double ms = stats.nanos / 1e6;
+
+    System.out.println(String.format
+      ("  %-14s %10.1f ms  %8.1f queries/s  %10d documents  %8d %s",
+       mode, ms, evaluations / (ms / 1000), stats.documents,
+       stats.underflows,
+       mode.equals("log space") ? "not finite" : "underflowed"));
+  }
+
+  /**
+   *  Get the terms of an expansion query, without their weights.
+   */
+  private static String expansionTerms(String expansion) {
+    StringBuilder b = new StringBuilder();
+    String[] tokens = expansion.trim().split("\\s+");
+
+    //  "#wand (", then weight term pairs, then ")".
+
+    for (int i = 3; i < tokens.length - 1; i += 2)
+      b.append(tokens[i]).append(' ');
+
+    return b.toString().trim();
+  }
+}
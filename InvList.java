@@ -4,6 +4,7 @@
 
 import java.util.*;
 import java.io.*;
+import java.nio.IntBuffer;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.*;
@@ -14,11 +15,45 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored compressed, in blocks of BLOCK_SIZE postings.
+ *  Within a block, docids are delta coded (from the last docid of the
+ *  previous block), term frequencies are stored as tf-1, and each
+ *  document's positions are delta coded.  Each sequence of up to
+ *  BLOCK_SIZE values is bit packed with a bit width chosen for the
+ *  sequence (PFor):  values that don't fit are stored separately as
+ *  exceptions.  The last docid of each block is stored uncompressed,
+ *  as a skip pointer.  The last, partial block is kept uncompressed
+ *  until it is full.
+ *  </p><p>
+ *  Postings are read with a {@link Cursor}, which decodes one block at
+ *  a time into its own buffers, and decodes a block's positions only
+ *  if they are needed.  An inverted list that has been built may be
+ *  read by several cursors, in several threads, at once.
+ *  </p><p>
+ *  An inverted list can also be stored in, and read directly from, a
+ *  buffer outside the Java heap (see {@link PostingsCache}).  Only
+ *  the skip pointers and the partial block are copied to the heap;
+ *  the compressed blocks are decoded from the buffer.  Such a list
+ *  is read-only.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The number of postings in a compressed block.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  private static final int BLOCK_SHIFT = 7;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  //  The number of ints before the skip pointers in a stored list.
+
+  private static final int STORED_HEADER = 6;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -36,11 +71,29 @@ public class InvList {
    */
   public String field;
 
-  /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
-   */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  //  Compressed blocks.  Block b starts at data[blockOffset[b]].
+
+  private int[] data = new int[0];
+  private IntBuffer storedData = null;	// Replaces data if the list is stored
+  private int dataLength = 0;
+  private int[] blockOffset = new int[0];
+  private int[] blockLastDocid = new int[0];
+  private int blocks = 0;
+
+  //  The last, partial block.  Document i's positions are
+  //  tailPositions[tailPositionStart[i]] to
+  //  tailPositions[tailPositionStart[i+1]-1].
+
+  private final int[] tailDocids = new int[BLOCK_SIZE];
+  private final int[] tailTfs = new int[BLOCK_SIZE];
+  private final int[] tailPositionStart = new int[BLOCK_SIZE + 1];
+  private int[] tailPositions = new int[16];
+  private int tailSize = 0;
+
+  //  Scratch space for encode:  the number of values that need each
+  //  number of bits.
+
+  private int[] bitCounts = null;
 
   //  --------------- Nested classes --------------------------------
 
@@ -65,7 +118,7 @@ public class InvList {
      *  The locations where the term occurs in the specified field
      *  of the document.
      */
-    public Vector<Integer> positions = new Vector<Integer>();
+    public ArrayList<Integer> positions = new ArrayList<Integer>();
 
     public DocPosting(int d, int... locations) {
       this.docid = d;
@@ -82,6 +135,254 @@ public class InvList {
     }
   }
 
+  /**
+   *  A position in an inverted list, and the decoded block that
+   *  contains it.  Postings are addressed by their index in the list
+   *  (0 to df-1), as in the rest of the InvList interface.  A cursor
+   *  must be used by one thread at a time.
+   */
+  public final class Cursor {
+
+    private int block = -1;		// The decoded block, or -1
+    private int blockSize = 0;
+    private final int[] docids = new int[BLOCK_SIZE];
+    private final int[] tfs = new int[BLOCK_SIZE];
+    private final int[] positionStart = new int[BLOCK_SIZE + 1];
+    private int[] positions = new int[16];
+    private boolean positionsDecoded = false;
+
+    private Cursor() {
+    }
+
+    /**
+     *  Get the n'th document id from the inverted list.
+     *  @param n The index of the requested document.
+     *  @return The internal document id.
+     */
+    public int getDocid(int n) {
+      this.load(n >>> BLOCK_SHIFT);
+      return this.docids[n & BLOCK_MASK];
+    }
+
+    /**
+     *  Get the term frequency in the n'th document of the inverted list.
+     *  @param n The index of the requested document.
+     *  @return The document's term frequency.
+     */
+    public int getTf(int n) {
+      this.load(n >>> BLOCK_SHIFT);
+      return this.tfs[n & BLOCK_MASK];
+    }
+
+    /**
+     *  Get a location of the term in the n'th document of the inverted
+     *  list.
+     *  @param n The index of the requested document.
+     *  @param i The index of the location, 0 to tf-1.
+     *  @return The location.
+     */
+    public int getPosition(int n, int i) {
+      this.load(n >>> BLOCK_SHIFT);
+
+      if (!this.positionsDecoded)
+        this.decodePositions();
+
+      return this.positions[this.positionStart[n & BLOCK_MASK] + i];
+    }
+
+    /**
+     *  Find the first posting at or after posting n whose docid is at
+     *  least the specified docid.  The skip pointers locate the block
+     *  with a binary search, so only that block is decoded.  Within
+     *  the block, the search gallops forward from n, so the common
+     *  case, advancing to the next posting, is cheap.
+     *  @param n The index of the posting to start at.
+     *  @param docid The document's internal document id.
+     *  @return The index of the posting, or df if there is none.
+     */
+    public int find(int n, int docid) {
+
+      if (n >= InvList.this.df)
+        return n;
+
+      //  Find the first block, at or after n's, whose last docid is at
+      //  least docid.  Block number 'blocks' is the tail.
+
+      int b = n >>> BLOCK_SHIFT;
+
+      if (InvList.this.getLastDocid(b) < docid) {
+        if (b == InvList.this.blocks)
+          return InvList.this.df;	// The tail is the last block
+
+        int hi = InvList.this.blocks;
+
+        b++;
+
+        while (b < hi) {
+          int mid = (b + hi) >>> 1;
+
+          if (InvList.this.getLastDocid(mid) < docid)
+            b = mid + 1;
+          else
+            hi = mid;
+        }
+
+        if ((b == InvList.this.blocks) &&
+            ((InvList.this.tailSize == 0) ||
+             (InvList.this.getLastDocid(b) < docid)))
+          return InvList.this.df;
+
+        n = b << BLOCK_SHIFT;
+      }
+
+      this.load(b);
+
+      int lo = n & BLOCK_MASK;
+
+      if (this.docids[lo] >= docid)
+        return n;
+
+      //  Gallop, then binary search.  Invariant:  docids[lo] < docid,
+      //  and docids[hi] >= docid.  The block's last docid is at least
+      //  docid, so hi starts in range.
+
+      int step = 1;
+      int hi = lo + 1;
+      int last = this.blockSize - 1;
+
+      while (this.docids[hi] < docid) {
+        lo = hi;
+        step <<= 1;
+        hi = (last - lo > step) ? lo + step : last;
+      }
+
+      while (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.docids[mid] < docid)
+          lo = mid;
+        else
+          hi = mid;
+      }
+
+      return (b << BLOCK_SHIFT) + hi;
+    }
+
+    /**
+     *  Get the n'th posting, with its positions, as a DocPosting
+     *  object.  This allocates objects, so it is meant for debugging
+     *  and other occasional use.
+     *  @param n The index of the requested document.
+     *  @return The posting.
+     */
+    public DocPosting getPosting(int n) {
+      int[] locations = new int[this.getTf(n)];
+
+      for (int i = 0; i < locations.length; i++)
+        locations[i] = this.getPosition(n, i);
+
+      return new DocPosting(this.getDocid(n), locations);
+    }
+
+    /**
+     *  Decode a block's docids and term frequencies, unless it is
+     *  already decoded.
+     */
+    private void load(int b) {
+
+      if (b == this.block)
+        return;
+
+      if (b < InvList.this.blocks) {
+        int p = InvList.this.blockOffset[b];
+        int prev = (b == 0) ? 0 : InvList.this.blockLastDocid[b - 1];
+
+        IntBuffer stored = InvList.this.storedData;
+
+        if (stored == null) {
+          p = decode(InvList.this.data, p, BLOCK_SIZE, this.docids, 0);
+          decode(InvList.this.data, p, BLOCK_SIZE, this.tfs, 0);
+        } else {
+          p = decode(stored, p, BLOCK_SIZE, this.docids, 0);
+          decode(stored, p, BLOCK_SIZE, this.tfs, 0);
+        }
+
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+          prev += this.docids[i];
+          this.docids[i] = prev;
+          this.tfs[i]++;
+        }
+
+        this.blockSize = BLOCK_SIZE;
+      } else {
+        int size = InvList.this.tailSize;
+
+        System.arraycopy(InvList.this.tailDocids, 0, this.docids, 0, size);
+        System.arraycopy(InvList.this.tailTfs, 0, this.tfs, 0, size);
+        this.blockSize = size;
+      }
+
+      this.block = b;
+      this.positionsDecoded = false;
+    }
+
+    /**
+     *  Decode the positions of the current block.
+     */
+    private void decodePositions() {
+
+      int count = 0;
+
+      for (int i = 0; i < this.blockSize; i++) {
+        this.positionStart[i] = count;
+        count += this.tfs[i];
+      }
+
+      this.positionStart[this.blockSize] = count;
+
+      if (this.positions.length < count)
+        this.positions = new int[Math.max(count, 2 * this.positions.length)];
+
+      if (this.block < InvList.this.blocks) {
+
+        //  Skip the docids and tfs, then decode the position deltas in
+        //  groups of BLOCK_SIZE.
+
+        int p = InvList.this.blockOffset[this.block];
+        IntBuffer stored = InvList.this.storedData;
+
+        if (stored == null) {
+          p = skip(InvList.this.data, p);
+          p = skip(InvList.this.data, p);
+
+          for (int i = 0; i < count; i += BLOCK_SIZE)
+            p = decode(InvList.this.data, p, Math.min(BLOCK_SIZE, count - i),
+                       this.positions, i);
+        } else {
+          p = skip(stored, p);
+          p = skip(stored, p);
+
+          for (int i = 0; i < count; i += BLOCK_SIZE)
+            p = decode(stored, p, Math.min(BLOCK_SIZE, count - i),
+                       this.positions, i);
+        }
+
+        for (int d = 0; d < this.blockSize; d++) {
+          int prev = 0;
+
+          for (int i = this.positionStart[d]; i < this.positionStart[d + 1]; i++) {
+            prev += this.positions[i];
+            this.positions[i] = prev;
+          }
+        }
+      } else {
+        System.arraycopy(InvList.this.tailPositions, 0, this.positions, 0, count);
+      }
+
+      this.positionsDecoded = true;
+    }
+  }
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -115,33 +416,109 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    IndexReader reader = Idx.getIndexReader();
+
+    if (reader.docFreq(term) < 1)
       return;
 
     //  Lookup the inverted list.
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
+      MultiFields.getTermPositionsEnum(reader,
+				       MultiFields.getLiveDocs(reader),
 				       fieldString, termBytes);
 
-    //  Copy from Lucene inverted list format to our inverted list
-    //  format. This is a little inefficient, but allows query
-    //  operators such as #SYN and #NEAR/n to be insulated from the
-    //  details of Lucene inverted list implementations.
+    this.appendPostings(iList, 0);
+  }
+
+  /**
+   *  Get the part of an inverted list that is in one segment (leaf)
+   *  of the index.  Document ids are converted to index-wide internal
+   *  document ids, so they can be used with the rest of the index
+   *  (e.g., document lengths and external ids).  df and ctf are the
+   *  segment's values.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param leaf The segment.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString,
+                 AtomicReaderContext leaf) throws IOException {
+
+    this.field = new String (fieldString);
+
+    //  The segment's own postings enum avoids the overhead of merging
+    //  the postings of every segment.
+
+    DocsAndPositionsEnum iList =
+      leaf.reader().termPositionsEnum(new Term(fieldString, new BytesRef(termString)));
+
+    if (iList != null)
+      this.appendPostings(iList, leaf.docBase);
+  }
+
+  /**
+   *  Get an inverted list that was stored in a buffer by {@link #store}.
+   *  The compressed blocks are read from the buffer, which must not
+   *  change while the inverted list is in use.  The list is read-only.
+   *  @param fieldString The field that the term occurs in.
+   *  @param stored The stored list, starting at position 0.
+   */
+  InvList(String fieldString, IntBuffer stored) {
+
+    this.field = new String (fieldString);
+    this.df = stored.get(0);
+    this.ctf = stored.get(1);
+    this.blocks = stored.get(2);
+    this.dataLength = stored.get(3);
+    this.tailSize = stored.get(4);
+
+    int positions = stored.get(5);
+    int p = STORED_HEADER;
+
+    this.blockOffset = new int[this.blocks];
+    this.blockLastDocid = new int[this.blocks];
+    this.tailPositions = new int[positions];
+
+    p = get(stored, p, this.blockOffset);
+    p = get(stored, p, this.blockLastDocid);
+    p = get(stored, p, this.tailPositions);
+
+    for (int i = 0; i < this.tailSize; i++) {
+      this.tailDocids[i] = stored.get(p++);
+      this.tailTfs[i] = stored.get(p++);
+      this.tailPositionStart[i + 1] = this.tailPositionStart[i] + this.tailTfs[i];
+    }
+
+    stored.position(p);
+    this.storedData = stored.slice();
+    stored.position(0);
+  }
+
+  /**
+   *  Copy from Lucene inverted list format to our inverted list
+   *  format. This is a little inefficient, but allows query
+   *  operators such as #SYN and #NEAR/n to be insulated from the
+   *  details of Lucene inverted list implementations.
+   *  @param iList The Lucene inverted list.
+   *  @param docBase The amount to add to each of its document ids.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void appendPostings(DocsAndPositionsEnum iList, int docBase)
+    throws IOException {
 
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+      int start = this.reserveTailPositions(tf);
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.tailPositions[start + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      this.addTail(docBase + iList.docID(), tf);
     }
+
+    this.trimToSize();
   }
 
   /**
@@ -152,38 +529,120 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
+
+    if (this.storedData != null)
+      throw new UnsupportedOperationException
+        ("An inverted list that is read from a buffer is read-only.");
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.getLastDocid(this.blocks - ((this.tailSize == 0) ? 1 : 0)) >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    int tf = positions.size();
+    int start = this.reserveTailPositions(tf);
+
+    for (int j = 0; j < tf; j++)
+      this.tailPositions[start + j] = positions.get(j);
 
-    this.postings.add (p);
-    this.df ++;
-    this.ctf += p.tf;
+    this.addTail(docid, tf);
     return true;
   }
 
   /**
-   *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  Release the unused capacity of the compressed data, after the
+   *  last posting has been appended.
+   */
+  public void trimToSize() {
+    if (this.data.length > this.dataLength)
+      this.data = Arrays.copyOf(this.data, this.dataLength);
+    if (this.blockOffset.length > this.blocks) {
+      this.blockOffset = Arrays.copyOf(this.blockOffset, this.blocks);
+      this.blockLastDocid = Arrays.copyOf(this.blockLastDocid, this.blocks);
+    }
+    if (this.tailPositions.length > this.tailPositionStart[this.tailSize])
+      this.tailPositions = Arrays.copyOf
+        (this.tailPositions, this.tailPositionStart[this.tailSize]);
+  }
+
+  /**
+   *  Get a new cursor for reading the inverted list.
+   *  @return The cursor.
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.  This decodes a
+   *  block for each call; use a Cursor to iterate.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.cursor().getDocid(n);
   }
 
   /**
    *  Get the term frequency in the n'th document of the inverted list.
+   *  This decodes a block for each call; use a Cursor to iterate.
    *  @param n The index of the requested document term frequency.
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.cursor().getTf(n);
+  }
+
+  /**
+   *  Get the number of bytes that the postings use, not counting
+   *  fixed-size overhead.  This is handy for measuring compression.
+   *  @return The size of the postings, in bytes.
+   */
+  public long getSizeInBytes() {
+    return 4L * (this.dataLength + 2 * this.blocks +
+                 this.tailPositionStart[this.tailSize] + 3 * this.tailSize);
+  }
+
+  /**
+   *  Get the number of ints that {@link #store} writes.
+   *  @return The stored size of the inverted list, in ints.
+   */
+  int getStoredSize() {
+    return STORED_HEADER + 2 * this.blocks + this.tailPositionStart[this.tailSize] +
+      2 * this.tailSize + this.dataLength;
+  }
+
+  /**
+   *  Write the inverted list to a buffer, in the format that the
+   *  buffer constructor reads:  df, ctf, the number of blocks, the
+   *  size of the compressed data, the number of postings and
+   *  positions in the partial block, the skip pointers, the partial
+   *  block's positions, its docids and tfs (interleaved), and finally
+   *  the compressed blocks.
+   *  @param out Where to write the list, starting at its position.
+   */
+  void store(IntBuffer out) {
+
+    int positions = this.tailPositionStart[this.tailSize];
+
+    out.put(this.df).put(this.ctf).put(this.blocks).put(this.dataLength)
+      .put(this.tailSize).put(positions);
+    out.put(this.blockOffset, 0, this.blocks);
+    out.put(this.blockLastDocid, 0, this.blocks);
+    out.put(this.tailPositions, 0, positions);
+
+    for (int i = 0; i < this.tailSize; i++)
+      out.put(this.tailDocids[i]).put(this.tailTfs[i]);
+
+    if (this.storedData == null) {
+      out.put(this.data, 0, this.dataLength);
+    } else {
+      IntBuffer data = this.storedData.duplicate();
+      data.limit(this.dataLength);
+      out.put(data);
+    }
   }
 
   /**
@@ -193,15 +652,307 @@ public class InvList {
 
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
+    Cursor c = this.cursor();
+
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + c.getDocid(i) + ", tf: "
+          + c.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < c.getTf(i); j++) {
+        System.out.print(c.getPosition(i, j) + " ");
       }
 
       System.out.println();
     }
   }
+
+  /**
+   *  Get the last docid of a block; block number 'blocks' is the tail.
+   */
+  private int getLastDocid(int b) {
+    return (b < this.blocks) ?
+      this.blockLastDocid[b] : this.tailDocids[this.tailSize - 1];
+  }
+
+  /**
+   *  Make room for a posting's positions at the end of the tail.
+   *  @param tf The number of positions.
+   *  @return The index in tailPositions of the first position.
+   */
+  private int reserveTailPositions(int tf) {
+    int start = this.tailPositionStart[this.tailSize];
+
+    if (start + tf > this.tailPositions.length)
+      this.tailPositions = Arrays.copyOf
+        (this.tailPositions, Math.max(start + tf, 2 * this.tailPositions.length));
+
+    return start;
+  }
+
+  /**
+   *  Add a posting, whose positions are already in tailPositions, to
+   *  the tail.  Compress the tail if it is full.
+   */
+  private void addTail(int docid, int tf) {
+    int start = this.tailPositionStart[this.tailSize];
+
+    this.tailDocids[this.tailSize] = docid;
+    this.tailTfs[this.tailSize] = tf;
+    this.tailSize++;
+    this.tailPositionStart[this.tailSize] = start + tf;
+    this.df++;
+    this.ctf += tf;
+
+    if (this.tailSize == BLOCK_SIZE)
+      this.compressTail();
+  }
+
+  /**
+   *  Compress the full tail into a new block.
+   */
+  private void compressTail() {
+
+    int b = this.blocks;
+
+    if (b == this.blockOffset.length) {
+      this.blockOffset = Arrays.copyOf(this.blockOffset, Math.max(4, 2 * b));
+      this.blockLastDocid = Arrays.copyOf(this.blockLastDocid, Math.max(4, 2 * b));
+    }
+
+    this.blockOffset[b] = this.dataLength;
+    this.blockLastDocid[b] = this.tailDocids[BLOCK_SIZE - 1];
+
+    //  Delta code the docids and positions in place; the tail is
+    //  emptied afterwards.
+
+    int prev = (b == 0) ? 0 : this.blockLastDocid[b - 1];
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      int docid = this.tailDocids[i];
+      this.tailDocids[i] = docid - prev;
+      prev = docid;
+      this.tailTfs[i]--;
+
+      int last = 0;
+
+      for (int j = this.tailPositionStart[i]; j < this.tailPositionStart[i + 1]; j++) {
+        int position = this.tailPositions[j];
+        this.tailPositions[j] = position - last;
+        last = position;
+      }
+    }
+
+    this.encode(this.tailDocids, 0, BLOCK_SIZE);
+    this.encode(this.tailTfs, 0, BLOCK_SIZE);
+
+    int count = this.tailPositionStart[BLOCK_SIZE];
+
+    for (int i = 0; i < count; i += BLOCK_SIZE)
+      this.encode(this.tailPositions, i, Math.min(BLOCK_SIZE, count - i));
+
+    this.blocks++;
+    this.tailSize = 0;
+
+    if (this.tailPositions.length > 1024)
+      this.tailPositions = new int[16];
+  }
+
+  /**
+   *  Append a PFor group of up to BLOCK_SIZE values to data.  The
+   *  header is the bit width, the exception count << 8, and the
+   *  (compressed size of the packed values) << 16.  It is followed by
+   *  the packed low bits of every value, then the index and high bits
+   *  of each exception.  The bit width minimizes the group's size.
+   */
+  private void encode(int[] values, int from, int n) {
+
+    //  Count the values that need each number of bits.
+
+    if (this.bitCounts == null)
+      this.bitCounts = new int[33];
+
+    int[] count = this.bitCounts;
+
+    Arrays.fill(count, 0);
+
+    for (int i = from; i < from + n; i++)
+      count[32 - Integer.numberOfLeadingZeros(values[i])]++;
+
+    int bits = 32;
+    int best = Integer.MAX_VALUE;
+    int exceptions = 0;
+
+    for (int b = 32; b >= 0; b--) {
+      if (b < 32)
+        exceptions += count[b + 1];
+
+      int size = ((n * b + 31) >>> 5) + 2 * exceptions;
+
+      if (size < best) {
+        best = size;
+        bits = b;
+      }
+    }
+
+    exceptions = 0;
+
+    for (int b = bits + 1; b <= 32; b++)
+      exceptions += count[b];
+
+    int packed = (n * bits + 31) >>> 5;
+
+    this.ensureData(1 + packed + 2 * exceptions);
+
+    int p = this.dataLength;
+
+    this.data[p++] = bits | (exceptions << 8) | (packed << 16);
+
+    //  Pack the low bits of every value.
+
+    long mask = (bits == 32) ? 0xFFFFFFFFL : (1L << bits) - 1;
+    long buffer = 0;
+    int used = 0;
+
+    for (int i = from; i < from + n; i++) {
+      buffer |= ((values[i] & 0xFFFFFFFFL) & mask) << used;
+      used += bits;
+
+      if (used >= 32) {
+        this.data[p++] = (int) buffer;
+        buffer >>>= 32;
+        used -= 32;
+      }
+    }
+
+    if (used > 0)
+      this.data[p++] = (int) buffer;
+
+    //  Exceptions.
+
+    if (exceptions > 0) {
+      for (int i = from; i < from + n; i++) {
+        if ((values[i] >>> bits) != 0) {
+          this.data[p++] = i - from;
+          this.data[p++] = values[i] >>> bits;
+        }
+      }
+    }
+
+    this.dataLength = p;
+  }
+
+  private void ensureData(int n) {
+    if (this.dataLength + n > this.data.length)
+      this.data = Arrays.copyOf
+        (this.data, Math.max(this.dataLength + n, 2 * this.data.length));
+  }
+
+  /**
+   *  Decode a PFor group that was written by encode.
+   *  @param data The compressed data.
+   *  @param p The index of the group's header.
+   *  @param n The number of values in the group.
+   *  @param values Where to store the values.
+   *  @param from The index in values of the first value.
+   *  @return The index of the next group's header.
+   */
+  private static int decode(int[] data, int p, int n, int[] values, int from) {
+
+    int header = data[p++];
+    int bits = header & 0xFF;
+    int exceptions = (header >>> 8) & 0xFF;
+
+    if (bits == 0) {
+      Arrays.fill(values, from, from + n, 0);
+    } else {
+      long mask = (bits == 32) ? 0xFFFFFFFFL : (1L << bits) - 1;
+      long buffer = 0;
+      int available = 0;
+
+      for (int i = from; i < from + n; i++) {
+        if (available < bits) {
+          buffer |= (data[p++] & 0xFFFFFFFFL) << available;
+          available += 32;
+        }
+
+        values[i] = (int) (buffer & mask);
+        buffer >>>= bits;
+        available -= bits;
+      }
+    }
+
+    for (int e = 0; e < exceptions; e++) {
+      int i = from + data[p++];
+      values[i] |= data[p++] << bits;
+    }
+
+    return p;
+  }
+
+  /**
+   *  Skip a PFor group.
+   *  @param data The compressed data.
+   *  @param p The index of the group's header.
+   *  @return The index of the next group's header.
+   */
+  private static int skip(int[] data, int p) {
+    int header = data[p];
+    return p + 1 + (header >>> 16) + 2 * ((header >>> 8) & 0xFF);
+  }
+
+  /**
+   *  Decode a PFor group from a stored inverted list.  This is the
+   *  same as decode for an array; it is repeated so that neither
+   *  version pays for an indirection.
+   */
+  private static int decode(IntBuffer data, int p, int n, int[] values, int from) {
+
+    int header = data.get(p++);
+    int bits = header & 0xFF;
+    int exceptions = (header >>> 8) & 0xFF;
+
+    if (bits == 0) {
+      Arrays.fill(values, from, from + n, 0);
+    } else {
+      long mask = (bits == 32) ? 0xFFFFFFFFL : (1L << bits) - 1;
+      long buffer = 0;
+      int available = 0;
+
+      for (int i = from; i < from + n; i++) {
+        if (available < bits) {
+          buffer |= (data.get(p++) & 0xFFFFFFFFL) << available;
+          available += 32;
+        }
+
+        values[i] = (int) (buffer & mask);
+        buffer >>>= bits;
+        available -= bits;
+      }
+    }
+
+    for (int e = 0; e < exceptions; e++) {
+      int i = from + data.get(p++);
+      values[i] |= data.get(p++) << bits;
+    }
+
+    return p;
+  }
+
+  /**
+   *  Skip a PFor group in a stored inverted list.
+   */
+  private static int skip(IntBuffer data, int p) {
+    int header = data.get(p);
+    return p + 1 + (header >>> 16) + 2 * ((header >>> 8) & 0xFF);
+  }
+
+  /**
+   *  Read an array from a stored inverted list.
+   *  @return The index after the array.
+   */
+  private static int get(IntBuffer stored, int p, int[] values) {
+    for (int i = 0; i < values.length; i++)
+      values[i] = stored.get(p++);
+    return p;
+  }
 }
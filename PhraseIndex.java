@@ -0,0 +1,247 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  PhraseIndex is a sidecar file of precomputed inverted lists for
+ *  frequent proximity operators, e.g., #NEAR/1 (new york).  It is
+ *  built offline by {@link PhraseIndexBuilder} from a query log.
+ *  When a query operator's cache key (see QryIop.getCacheKey) is in
+ *  the phrase index, its inverted list is read from the sidecar
+ *  instead of being merged from its arguments' lists.  Keys include
+ *  the operator, its distance, and its terms and fields, so a list is
+ *  only substituted for exactly the same operator.
+ *  <p>
+ *  The sidecar is memory-mapped and read-only.  It records the index
+ *  version and size, and it is ignored if the index changes.  Its
+ *  lists use the InvList storage format; the file must be smaller
+ *  than 2 GB.
+ *  </p>
+ */
+public class PhraseIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x50485258;		// "PHRX"
+  private static final int FORMAT = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  //  The header holds the magic number, format, byte order, index
+  //  version, maxDoc and the number of lists.  The directory follows:
+  //  for each list, the key's length in bytes, the key (padded to a
+  //  multiple of 4 bytes), the list's offset in the file and its
+  //  length in ints.  The lists follow the directory.
+
+  private static final int HEADER = 28;
+
+  private final ByteBuffer buffer;
+  private final Map<String, int[]> lists;	// key -> {offset, length}
+
+  //  --------------- Methods ---------------------------------------
+
+  private PhraseIndex(ByteBuffer buffer, Map<String, int[]> lists) {
+    this.buffer = buffer;
+    this.lists = lists;
+  }
+
+  /**
+   *  Open a phrase index sidecar file.
+   *  @param reader The open index.
+   *  @param sidecar The sidecar file, or null.
+   *  @return The phrase index, or null if the sidecar is missing or
+   *  doesn't match the index.
+   */
+  public static PhraseIndex open(IndexReader reader, File sidecar) {
+
+    if ((sidecar == null) || !sidecar.canRead())
+      return null;
+
+    try {
+      FileInputStream in = new FileInputStream(sidecar);
+
+      try {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buf =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buf.order(ByteOrder.nativeOrder());
+
+        if ((buf.getInt() != MAGIC) ||
+            (buf.getInt() != FORMAT) ||
+            (buf.getInt() != byteOrder()) ||
+            (buf.getLong() != getIndexVersion(reader)) ||
+            (buf.getInt() != reader.maxDoc()))
+          return null;
+
+        int count = buf.getInt();
+        Map<String, int[]> lists = new HashMap<String, int[]>();
+
+        for (int i = 0; i < count; i++) {
+          byte[] key = new byte[buf.getInt()];
+
+          buf.get(key);
+          buf.position(align(buf.position()));
+
+          int offset = buf.getInt();
+          int length = buf.getInt();
+
+          if (offset + 4L * length > buf.capacity())
+            return null;
+
+          lists.put(new String(key, UTF8), new int[] { offset, length });
+        }
+
+        return new PhraseIndex(buf, lists);
+      } finally {
+        in.close();		// The mapping stays valid
+      }
+    } catch (IOException ex) {
+      return null;
+    } catch (RuntimeException ex) {
+      return null;		// A truncated or corrupt sidecar
+    }
+  }
+
+  /**
+   *  Get a precomputed inverted list.
+   *  @param key The query operator's cache key.
+   *  @param field The field of the list.
+   *  @return The list, or null if it isn't in the phrase index.
+   */
+  public InvList get(String key, String field) {
+
+    int[] list = this.lists.get(key);
+
+    if (list == null)
+      return null;
+
+    ByteBuffer b = this.buffer.duplicate();
+
+    b.position(list[0]);
+    b.limit(list[0] + 4 * list[1]);
+    return new InvList(field, b.slice().order(ByteOrder.nativeOrder()).asIntBuffer());
+  }
+
+  /**
+   *  Get the number of lists in the phrase index.
+   *  @return The number of lists.
+   */
+  public int size() {
+    return this.lists.size();
+  }
+
+  /**
+   *  Write a phrase index sidecar file.  The file is written to a
+   *  temporary name first so that a partial file is never opened.
+   *  @param reader The index that the lists were produced from.
+   *  @param sidecar The sidecar file.
+   *  @param lists The inverted lists, by cache key.
+   *  @throws IOException Error writing the file.
+   */
+  public static void write(IndexReader reader, File sidecar,
+                           Map<String, InvList> lists) throws IOException {
+
+    //  Lay out the directory, then the lists.
+
+    List<byte[]> keys = new ArrayList<byte[]>();
+    long size = HEADER;
+
+    for (String key : lists.keySet()) {
+      byte[] k = key.getBytes(UTF8);
+
+      keys.add(k);
+      size = align(size + 4 + k.length) + 8;
+    }
+
+    int[] offset = new int[keys.size()];
+    int i = 0;
+
+    for (InvList list : lists.values()) {
+      offset[i++] = (int) size;
+      size += 4L * list.getStoredSize();
+    }
+
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("The phrase index would be larger than 2 GB.");
+
+    ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.nativeOrder());
+
+    buf.putInt(MAGIC).putInt(FORMAT).putInt(byteOrder())
+      .putLong(getIndexVersion(reader)).putInt(reader.maxDoc())
+      .putInt(lists.size());
+
+    i = 0;
+
+    for (InvList list : lists.values()) {
+      byte[] k = keys.get(i);
+
+      buf.putInt(k.length).put(k);
+      buf.position(align(buf.position()));
+      buf.putInt(offset[i]).putInt(list.getStoredSize());
+      i++;
+    }
+
+    for (InvList list : lists.values()) {
+      IntBuffer out = buf.asIntBuffer();
+
+      list.store(out);
+      buf.position(buf.position() + 4 * out.position());
+    }
+
+    buf.flip();
+
+    File tmp = new File(sidecar.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+
+    try {
+      FileChannel channel = out.getChannel();
+
+      while (buf.hasRemaining())
+        channel.write(buf);
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(sidecar)) {
+      sidecar.delete();
+
+      if (!tmp.renameTo(sidecar)) {
+        tmp.delete();
+        throw new IOException("Unable to write " + sidecar);
+      }
+    }
+  }
+
+  private static int align(int bytes) {
+    return (bytes + 3) & ~3;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 3) & ~3L;
+  }
+
+  private static int byteOrder() {
+    return (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? 0 : 1;
+  }
+
+  /**
+   *  Get the version of an index.  Only DirectoryReaders have one.
+   */
+  private static long getIndexVersion(IndexReader reader) {
+    if (reader instanceof DirectoryReader)
+      return ((DirectoryReader) reader).getVersion();
+    else
+      return -1;
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  PhraseIndexBuilder mines a query log for frequent #NEAR/n and
+ *  #WINDOW/n operators over terms, evaluates them, and writes their
+ *  inverted lists to a {@link PhraseIndex} sidecar.  Later runs on the
+ *  same index with the same indexCachePath read those lists from the
+ *  sidecar instead of merging the terms' positional lists.
+ *  <p>
+ *  Usage:  java PhraseIndexBuilder paramFile
+ *  </p>
+ *  <p>
+ *  The parameter file uses the QryEval syntax.  Parameters:
+ *  </p>
+ *  <ul>
+ *  <li>indexPath:  The index (required).
+ *  <li>phraseLogPath:  The query log (required).  Each line is a
+ *      query, optionally preceded by "qid:", as in a query file.
+ *  <li>indexCachePath:  The directory where QryEval looks for the
+ *      sidecar, as indexCachePath/indexName.phrases.
+ *  <li>phraseIndexPath:  The sidecar to write (default is the file in
+ *      indexCachePath).  One of indexCachePath and phraseIndexPath
+ *      is required.
+ *  <li>phraseMinCount:  Operators that occur fewer times in the log
+ *      are not precomputed (default 2).
+ *  <li>phraseMaxLists:  The most operators to precompute; the most
+ *      frequent are chosen (default 10000).
+ *  <li>retrievalAlgorithm:  The retrieval model that the log's queries
+ *      are parsed and optimized for (default UnrankedBoolean); this
+ *      rarely matters.
+ *  </ul>
+ *  <p>
+ *  Queries are compiled exactly as QryEval compiles them, so the
+ *  operators that are counted are the ones that are evaluated.
+ *  </p>
+ */
+public class PhraseIndexBuilder {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java PhraseIndexBuilder paramFile\n\n";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+    if (!(parameters.containsKey("indexPath") &&
+          parameters.containsKey("phraseLogPath") &&
+          (parameters.containsKey("indexCachePath") ||
+           parameters.containsKey("phraseIndexPath")))) {
+      throw new IllegalArgumentException
+        ("Required parameters were missing from the parameter file.");
+    }
+
+    if (!parameters.containsKey("retrievalAlgorithm"))
+      parameters.put("retrievalAlgorithm", "UnrankedBoolean");
+
+    //  Don't read lists from an older phrase index or postings cache.
+
+    parameters.remove("postingsCachePath");
+    RetrievalModel model = QryEval.initialize(parameters);
+    Idx.closePhraseIndex();
+
+    File sidecar = parameters.containsKey("phraseIndexPath") ?
+      new File(parameters.get("phraseIndexPath")) :
+      Idx.getPhraseIndexFile();
+    int minCount = parameters.containsKey("phraseMinCount") ?
+      Integer.parseInt(parameters.get("phraseMinCount")) : 2;
+    int maxLists = parameters.containsKey("phraseMaxLists") ?
+      Integer.parseInt(parameters.get("phraseMaxLists")) : 10000;
+
+    //  Count the operators in the log.  One instance of each is kept,
+    //  to be evaluated later.
+
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    Map<String, QryIop> operators = new HashMap<String, QryIop>();
+    BufferedReader input =
+      new BufferedReader(new FileReader(parameters.get("phraseLogPath")));
+    int queries = 0;
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        String query = line.substring(line.indexOf(':') + 1).trim();
+
+        if (query.length() == 0)
+          continue;
+
+        QryPlan plan = QryEval.compileQuery(query, model);
+
+        queries++;
+
+        if (plan != null)
+          collect(plan.instantiate(), counts, operators);
+      }
+    } finally {
+      input.close();
+    }
+
+    //  Choose the most frequent operators.
+
+    List<String> keys = new ArrayList<String>();
+
+    for (Map.Entry<String, Integer> e : counts.entrySet())
+      if (e.getValue() >= minCount)
+        keys.add(e.getKey());
+
+    Collections.sort(keys, new Comparator<String>() {
+        public int compare(String a, String b) {
+          int c = counts.get(b).compareTo(counts.get(a));
+          return (c != 0) ? c : a.compareTo(b);
+        }
+      });
+
+    if (keys.size() > maxLists)
+      keys = keys.subList(0, maxLists);
+
+    //  Evaluate them.
+
+    Map<String, InvList> lists = new LinkedHashMap<String, InvList>();
+    long postings = 0;
+
+    for (String key : keys) {
+      QryIop q = operators.get(key);
+
+      q.initialize(model);
+      lists.put(key, q.invertedList);
+      postings += q.invertedList.df;
+    }
+
+    PhraseIndex.write(Idx.getIndexReader(), sidecar, lists);
+
+    System.out.println(queries + " queries, " + counts.size() +
+                       " distinct proximity operators, " + lists.size() +
+                       " precomputed (" + postings + " postings) in " +
+                       sidecar);
+  }
+
+  /**
+   *  Find the proximity operators over terms in a query tree.
+   */
+  private static void collect(Qry q, Map<String, Integer> counts,
+                              Map<String, QryIop> operators) {
+
+    if (((q instanceof QryIopNear) || (q instanceof QryIopWindow)) &&
+        allTerms(q)) {
+      String key = ((QryIop) q).getCacheKey();
+
+      if (key != null) {
+        Integer count = counts.get(key);
+
+        counts.put(key, (count == null) ? 1 : count + 1);
+
+        if (count == null)
+          operators.put(key, (QryIop) q);
+      }
+
+      return;
+    }
+
+    for (Qry q_i : q.args)
+      collect(q_i, counts, operators);
+  }
+
+  private static boolean allTerms(Qry q) {
+    for (Qry q_i : q.args)
+      if (!(q_i instanceof QryIopTerm))
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,488 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  PostingsCache keeps materialized inverted lists outside the Java
+ *  heap, in a memory-mapped arena file, so that a large cache doesn't
+ *  make garbage collection slower.  Query operators read cached lists
+ *  directly from the mapped file (see {@link InvList}).  Term lists
+ *  and derived lists (e.g., the results of #SYN and #NEAR/n) are
+ *  cached under a key that describes how they were produced.
+ *  <p>
+ *  The arena is divided into fixed-size regions.  Lists are allocated
+ *  sequentially in the current region; when it is full, the oldest
+ *  region becomes the current region, and the lists in it are
+ *  evicted (FIFO eviction, one region at a time).  Lists are never
+ *  moved or freed individually, so the allocator needs no free lists.
+ *  </p><p>
+ *  A region can't be reused while an InvList that reads from it is
+ *  reachable.  Each list that the cache returns is registered with a
+ *  weak reference; a region's lists are counted until the garbage
+ *  collector clears their references.  If every other region is in
+ *  use, new lists are not cached until one is free.
+ *  </p><p>
+ *  Each region records its own fill pointer, which is updated after a
+ *  list is written, so the arena describes itself.  When the arena
+ *  file is reopened with the same index, the cached lists are found
+ *  by scanning the regions; if the index has changed, the arena is
+ *  cleared.
+ *  </p><p>
+ *  When the index is refreshed (see Idx.refresh), the cache is
+ *  invalidated.  Lists are cached for one index version; queries
+ *  that still use an older version neither find nor store lists.
+ *  </p>
+ */
+public final class PostingsCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x50535443;		// "PSTC"
+  private static final int FORMAT = 1;
+  private static final int ENTRY_MAGIC = 0x454E5452;	// "ENTR"
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  //  The file header is a page, so regions are page aligned.  It holds
+  //  the magic number, format, byte order, index version, maxDoc,
+  //  region size and number of regions.
+
+  private static final int FILE_HEADER = 4096;
+
+  //  A region header holds the region's sequence number (long; 0 if
+  //  it is empty) and fill pointer (int).  Entries are int aligned.
+
+  private static final int REGION_HEADER = 16;
+
+  //  An entry header holds ENTRY_MAGIC, the key's length in bytes, and
+  //  the stored list's length in ints.  The key follows, padded to a
+  //  multiple of 4 bytes, then the list.
+
+  private static final int ENTRY_HEADER = 12;
+
+  /**
+   *  The largest region; a region is mapped as one buffer.
+   */
+  public static final int MAX_REGION_SIZE = 1 << 30;
+
+  private final File file;
+  private final int minDf;
+  private final Region[] regions;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private final ReferenceQueue<InvList> cleared = new ReferenceQueue<InvList>();
+  private final Set<Lease> leases = new HashSet<Lease>();
+  private final MappedByteBuffer header;
+
+  private long version;
+  private Region current;
+  private long sequence = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long stores = 0;
+  private long evictions = 0;
+
+  /**
+   *  A region of the arena.
+   */
+  private static class Region {
+    final int number;
+    final MappedByteBuffer buffer;
+    long sequence;
+    int fill;
+    int readers = 0;
+    final List<String> keys = new ArrayList<String>();
+
+    Region(int number, MappedByteBuffer buffer) {
+      this.number = number;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   *  A cached inverted list.
+   */
+  private static class Entry {
+    final Region region;
+    final int offset;		// The stored list's offset in the region
+    final int length;		// The stored list's length in ints
+
+    Entry(Region region, int offset, int length) {
+      this.region = region;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   *  A weak reference to an inverted list that reads from a region.
+   */
+  private static class Lease extends WeakReference<InvList> {
+    final Region region;
+
+    Lease(InvList list, Region region, ReferenceQueue<InvList> queue) {
+      super(list, queue);
+      this.region = region;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open an arena file, or create it if it doesn't exist or doesn't
+   *  match the index or the arena size.
+   *  @param file The arena file.
+   *  @param size The size of the arena, in bytes.
+   *  @param regionSize The size of a region, in bytes.  Larger lists
+   *  are not cached.
+   *  @param minDf Lists with a smaller df are not cached; they are
+   *  cheap to read from the index.
+   *  @param reader The index.
+   *  @throws IOException Error accessing the arena file.
+   */
+  public PostingsCache(File file, long size, int regionSize, int minDf,
+                       IndexReader reader) throws IOException {
+
+    if ((regionSize < 4096) || (regionSize > MAX_REGION_SIZE) ||
+        (regionSize % 4096 != 0)) {
+      throw new IllegalArgumentException
+        ("The region size must be a multiple of 4096, at most " +
+         MAX_REGION_SIZE + ".");
+    }
+
+    int count = (int) Math.max(2, size / regionSize);
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion() : -1;
+
+    this.file = file;
+    this.minDf = minDf;
+    this.version = version;
+    this.regions = new Region[count];
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer header =
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      this.header = header;
+
+      boolean valid =
+        (raf.length() == FILE_HEADER + (long) count * regionSize) &&
+        (header.getInt(0) == MAGIC) &&
+        (header.getInt(4) == FORMAT) &&
+        (header.getInt(8) == (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1)) &&
+        (header.getLong(12) == version) &&
+        (header.getInt(20) == reader.maxDoc()) &&
+        (header.getInt(24) == regionSize) &&
+        (header.getInt(28) == count);
+
+      if (!valid) {
+        header.putInt(0, 0);		// Invalid until the regions are cleared
+        header.force();
+        raf.setLength(FILE_HEADER + (long) count * regionSize);
+      }
+
+      for (int r = 0; r < count; r++) {
+        MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_WRITE,
+                      FILE_HEADER + (long) r * regionSize, regionSize);
+        buffer.order(ByteOrder.nativeOrder());
+        this.regions[r] = new Region(r, buffer);
+
+        if (!valid)
+          this.clear(this.regions[r], 0);
+      }
+
+      if (valid) {
+        this.load();
+      } else {
+        header.putInt(4, FORMAT);
+        header.putInt(8, ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+        header.putLong(12, version);
+        header.putInt(20, reader.maxDoc());
+        header.putInt(24, regionSize);
+        header.putInt(28, count);
+        header.putInt(0, MAGIC);
+        header.force();
+      }
+    } finally {
+      raf.close();		// The mappings stay valid
+    }
+
+    if (this.current == null) {
+      this.current = this.regions[0];
+      this.clear(this.current, ++this.sequence);
+    }
+  }
+
+  /**
+   *  Find the lists in an arena that was written by an earlier
+   *  process.  Regions are scanned from oldest to newest, so if a key
+   *  was stored twice, the newer list is used.
+   */
+  private void load() {
+
+    for (Region r : this.regions) {
+      r.sequence = r.buffer.getLong(0);
+      r.fill = r.buffer.getInt(8);
+    }
+
+    Region[] order = this.regions.clone();
+
+    Arrays.sort(order, new Comparator<Region>() {
+        public int compare(Region a, Region b) {
+          return Long.compare(a.sequence, b.sequence);
+        }
+      });
+
+    for (Region r : order) {
+      if (r.sequence == 0)
+        continue;
+
+      int p = REGION_HEADER;
+
+      while (p + ENTRY_HEADER <= r.fill) {
+        if (r.buffer.getInt(p) != ENTRY_MAGIC)
+          break;			// Corrupt; ignore the rest
+
+        int keyLength = r.buffer.getInt(p + 4);
+        int length = r.buffer.getInt(p + 8);
+        int offset = p + ENTRY_HEADER + align(keyLength);
+
+        if ((keyLength < 0) || (length < 0) ||
+            (offset + 4L * length > r.fill))
+          break;
+
+        byte[] key = new byte[keyLength];
+        ByteBuffer b = r.buffer.duplicate();
+
+        b.position(p + ENTRY_HEADER);
+        b.get(key);
+
+        String k = new String(key, UTF8);
+
+        this.entries.put(k, new Entry(r, offset, length));
+        r.keys.add(k);
+        p = offset + 4 * length;
+      }
+
+      this.sequence = r.sequence;
+      this.current = r;
+    }
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param key How the list was produced.
+   *  @param field The field of the list.
+   *  @param version The version of the index that the caller uses.
+   *  @return The list, or null if it isn't cached.
+   */
+  public synchronized InvList get(String key, String field, long version) {
+
+    Entry e = (version == this.version) ? this.entries.get(key) : null;
+
+    if (e == null) {
+      this.misses++;
+      return null;
+    }
+
+    ByteBuffer b = e.region.buffer.duplicate();
+
+    b.position(e.offset);
+    b.limit(e.offset + 4 * e.length);
+
+    InvList list =
+      new InvList(field, b.slice().order(ByteOrder.nativeOrder()).asIntBuffer());
+
+    this.leases.add(new Lease(list, e.region, this.cleared));
+    e.region.readers++;
+    this.hits++;
+    return list;
+  }
+
+  /**
+   *  Cache an inverted list, if it is large enough to be worth
+   *  caching and small enough to fit in a region.
+   *  @param key How the list was produced.
+   *  @param list The list.
+   *  @param version The version of the index that the list is from.
+   *  @return True if the list was cached.
+   */
+  public synchronized boolean put(String key, InvList list, long version) {
+
+    if ((version != this.version) ||
+        (list.df < this.minDf) || this.entries.containsKey(key))
+      return false;
+
+    byte[] keyBytes = key.getBytes(UTF8);
+    long size = ENTRY_HEADER + align(keyBytes.length) + 4L * list.getStoredSize();
+
+    if (size > this.current.buffer.capacity() - REGION_HEADER)
+      return false;
+
+    if (this.current.fill + size > this.current.buffer.capacity()) {
+      Region next = this.nextFreeRegion();
+
+      if (next == null)
+        return false;
+
+      this.clear(next, ++this.sequence);
+      this.current = next;
+    }
+
+    Region r = this.current;
+    int p = r.fill;
+    int offset = p + ENTRY_HEADER + align(keyBytes.length);
+    ByteBuffer b = r.buffer.duplicate();
+
+    b.position(p + ENTRY_HEADER);
+    b.put(keyBytes);
+    b.position(offset);
+    b.limit(offset + 4 * list.getStoredSize());
+    list.store(b.slice().order(ByteOrder.nativeOrder()).asIntBuffer());
+
+    r.buffer.putInt(p + 4, keyBytes.length);
+    r.buffer.putInt(p + 8, list.getStoredSize());
+    r.buffer.putInt(p, ENTRY_MAGIC);
+
+    //  The list is complete; make it visible to a later process.
+
+    r.fill = (int) (p + size);
+    r.buffer.putInt(8, r.fill);
+
+    this.entries.put(key, new Entry(r, offset, list.getStoredSize()));
+    r.keys.add(key);
+    this.stores++;
+    return true;
+  }
+
+  /**
+   *  Evict every list, because the index changed.  Regions that
+   *  inverted lists still read from are emptied, but they aren't
+   *  reused until the lists are unreachable.
+   *  @param reader The new version of the index.
+   */
+  public synchronized void invalidate(IndexReader reader) {
+
+    long version = (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getVersion() : -1;
+
+    //  The arena is invalid until the regions are cleared, so that a
+    //  crash doesn't leave old lists for the new version.
+
+    this.header.putInt(0, 0);
+
+    for (Region r : this.regions)
+      this.clear(r, 0);
+
+    this.version = version;
+    this.header.putLong(12, version);
+    this.header.putInt(20, reader.maxDoc());
+    this.header.putInt(0, MAGIC);
+
+    //  Start a new current region.  If every region is in use, the
+    //  current region is marked full until one is free.
+
+    Region next = this.nextFreeRegion();
+
+    if (next == null) {
+      this.current.fill = this.current.buffer.capacity();
+    } else {
+      this.clear(next, ++this.sequence);
+      this.current = next;
+    }
+  }
+
+  /**
+   *  Get the oldest region after the current region that no reachable
+   *  inverted list reads from.
+   *  @return The region, or null if all of them are in use.
+   */
+  private Region nextFreeRegion() {
+
+    Lease lease;
+
+    while ((lease = (Lease) this.cleared.poll()) != null) {
+      lease.region.readers--;
+      this.leases.remove(lease);
+    }
+
+    for (int i = 1; i < this.regions.length; i++) {
+      Region r = this.regions[(this.current.number + i) % this.regions.length];
+
+      if (r.readers == 0)
+        return r;
+    }
+
+    return null;
+  }
+
+  /**
+   *  Evict a region's lists, and start it over with a new sequence
+   *  number.
+   */
+  private void clear(Region r, long sequence) {
+
+    for (String key : r.keys) {
+      Entry e = this.entries.get(key);
+
+      if ((e != null) && (e.region == r)) {
+        this.entries.remove(key);
+        this.evictions++;
+      }
+    }
+
+    r.keys.clear();
+    r.sequence = sequence;
+    r.fill = REGION_HEADER;
+    r.buffer.putInt(8, r.fill);
+    r.buffer.putLong(0, sequence);
+  }
+
+  /**
+   *  Write the arena's changes to the file.  The operating system
+   *  writes them eventually; this is only needed to survive a crash.
+   */
+  public synchronized void force() {
+    for (Region r : this.regions)
+      r.buffer.force();
+  }
+
+  /**
+   *  Get cache statistics, for monitoring.
+   *  @return A string that describes the cache.
+   */
+  public synchronized String getStatistics() {
+
+    long used = 0;
+
+    for (Region r : this.regions)
+      used += r.fill - REGION_HEADER;
+
+    return String.format
+      ("postings cache %s:  %d lists, %.1f MB in %d regions, " +
+       "%d hits, %d misses, %d stored, %d evicted",
+       this.file, this.entries.size(), used / 1048576.0, this.regions.length,
+       this.hits, this.misses, this.stores, this.evictions);
+  }
+
+  private static int align(int bytes) {
+    return (bytes + 3) & ~3;
+  }
+}
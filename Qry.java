@@ -101,6 +101,20 @@ public abstract class Qry {
     private boolean matchStored = false;    // Operators can cache matches
     private int matchingDocid;
 
+    /**
+     *  The order in which docIteratorHasMatchAll visits the arguments,
+     *  cheapest first; null means argument order.  The args list itself
+     *  is never reordered, because weights and scores are tied to it.
+     */
+    private int[] docIteratorArgOrder = null;
+
+    /**
+     *  The cost estimate recorded by {@link QryOptimizer}, or -1 if the
+     *  query has not been optimized.  A cost of 0 means that the
+     *  operator can't match any document.
+     */
+    private long estimatedCost = -1;
+
     //  --------------- Methods ---------------------------------------
 
     /**
@@ -248,34 +262,56 @@ public abstract class Qry {
      */
     protected boolean docIteratorHasMatchAll(RetrievalModel r) {
 
+        int docid = this.docIteratorAdvanceArgsToMatchAll(r);
+
+        if (docid == Qry.INVALID_DOCID) {
+            return false;
+        }
+
+        docIteratorSetMatchCache(docid);
+        return true;
+    }
+
+    /**
+     *  Advance the query arguments until all of them match the same
+     *  document.  The intersection is driven by the cheapest argument
+     *  (see docIteratorOrderArgsByCost), so the others are probed only
+     *  at documents that it matches.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The matching docid, or INVALID_DOCID if no match is possible.
+     */
+    protected int docIteratorAdvanceArgsToMatchAll(RetrievalModel r) {
+
+        int[] order = this.docIteratorArgOrder;
         boolean matchFound = false;
+        int docid_0 = Qry.INVALID_DOCID;
 
         // Keep trying until a match is found or no match is possible.
 
         while (!matchFound) {
 
-            // Get the docid of the first query argument.
+            // Get the docid of the cheapest query argument.
 
-            Qry q_0 = this.args.get(0);
+            Qry q_0 = this.args.get((order == null) ? 0 : order[0]);
 
             if (!q_0.docIteratorHasMatch(r)) {
-                return false;
+                return Qry.INVALID_DOCID;
             }
 
-            int docid_0 = q_0.docIteratorGetMatch();
+            docid_0 = q_0.docIteratorGetMatch();
 
-            // Other query arguments must match the docid of the first query
-            // argument.
+            // Other query arguments must match the docid of the cheapest
+            // query argument.
 
             matchFound = true;
 
             for (int i = 1; i < this.args.size(); i++) {
-                Qry q_i = this.args.get(i);
+                Qry q_i = this.args.get((order == null) ? i : order[i]);
 
                 q_i.docIteratorAdvanceTo(docid_0);
 
                 if (!q_i.docIteratorHasMatch(r)) {    // If any argument is exhausted
-                    return false;                // there are no more matches.
+                    return Qry.INVALID_DOCID;        // there are no more matches.
                 }
 
                 int docid_i = q_i.docIteratorGetMatch();
@@ -286,13 +322,46 @@ public abstract class Qry {
                     break;
                 }
             }
+        }
 
-            if (matchFound) {
-                docIteratorSetMatchCache(docid_0);
+        return docid_0;
+    }
+
+    /**
+     *  Order the arguments that docIteratorHasMatchAll visits by
+     *  estimated cost, cheapest first.  Call this after the arguments
+     *  are initialized, so that their costs are known.
+     *  @param r The retrieval model that determines what is a match
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    protected void docIteratorOrderArgsByCost(RetrievalModel r)
+            throws IOException {
+
+        int n = this.args.size();
+        int[] order = new int[n];
+        long[] cost = new long[n];
+
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            cost[i] = this.args.get(i).getCost(r);
+        }
+
+        // Insertion sort; argument lists are short, and ties keep
+        // argument order.
+
+        for (int i = 1; i < n; i++) {
+            int o = order[i];
+            int j = i;
+
+            while ((j > 0) && (cost[order[j - 1]] > cost[o])) {
+                order[j] = order[j - 1];
+                j--;
             }
+
+            order[j] = o;
         }
 
-        return true;
+        this.docIteratorArgOrder = order;
     }
 
     /**
@@ -364,6 +433,58 @@ public abstract class Qry {
         this.docIteratorMatchCache = docid;
     }
 
+    /**
+     *  Estimate the cost of iterating over the documents that this
+     *  query operator matches, roughly the number of matches.  The
+     *  default is the sum of the arguments' costs, which is an upper
+     *  bound for operators that match any of their arguments.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getCost(RetrievalModel r) throws IOException {
+
+        long cost = 0;
+
+        for (int i = 0; i < this.args.size(); i++)
+            cost += this.args.get(i).getCost(r);
+
+        return cost;
+    }
+
+    /**
+     *  An instantiation of getCost for operators that match only when
+     *  all of their arguments match:  the cost of the cheapest argument.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    protected long getCostAll(RetrievalModel r) throws IOException {
+
+        long cost = Long.MAX_VALUE;
+
+        for (int i = 0; i < this.args.size(); i++)
+            cost = Math.min(cost, this.args.get(i).getCost(r));
+
+        return (this.args.size() == 0) ? 0 : cost;
+    }
+
+    /**
+     *  Get the cost estimate recorded by the query optimizer.
+     *  @return The estimated cost, or -1 if it is unknown.
+     */
+    public long getEstimatedCost() {
+        return this.estimatedCost;
+    }
+
+    /**
+     *  Record a cost estimate.
+     *  @param cost The estimated cost.
+     */
+    public void setEstimatedCost(long cost) {
+        this.estimatedCost = cost;
+    }
+
     /**
      *  Get the i'th query argument.  The main value of this method
      *  is that it casts the argument to the correct type.
@@ -392,6 +513,24 @@ public abstract class Qry {
      */
     public abstract void initialize(RetrievalModel r) throws IOException;
 
+    /**
+     *  Initialize the query operator (and its arguments) from another
+     *  instance of the same query plan that is already initialized.
+     *  Read-only data, e.g., inverted lists and collection statistics,
+     *  is shared with the other instance; iterators are independent,
+     *  so the two instances can be iterated by different threads.
+     *  @param other An initialized instance of the same query plan.
+     *  @param r A retrieval model that guides initialization
+     */
+    public void initializeFrom(Qry other, RetrievalModel r) {
+
+        for (int i = 0; i < this.args.size(); i++) {
+            this.args.get(i).initializeFrom(other.args.get(i), r);
+        }
+
+        this.docIteratorArgOrder = other.docIteratorArgOrder;
+    }
+
     /**
      *  Removes an argument from the list of query operator arguments.
      *  @param i The index of the query operator to remove.
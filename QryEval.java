@@ -6,16 +6,15 @@
 import java.io.*;
 import java.util.*;
 import java.io.PrintWriter;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.Version;
 
 /**
  * QryEval is a simple application that reads queries from a file,
@@ -57,20 +56,35 @@ public class QryEval {
     private static final String USAGE =
             "Usage:  java QryEval paramFile\n\n";
 
-    private static final EnglishAnalyzerConfigurable ANALYZER =
-            new EnglishAnalyzerConfigurable(Version.LUCENE_43);
+    private static volatile QueryAnalyzer ANALYZER =
+            new QueryAnalyzer(EnglishAnalyzerConfigurable.StemmerType.KSTEM, 10000);
     private static final String[] TEXT_FIELDS =
             {"body", "title", "url", "inlink"};
 
     private static PrintWriter writer;
     private static boolean fb = false;
     private static String fbRankingFile = "";
+    private static int fbRankingThreads = 1;
     private static String fbExpansionQueryFile = "";
     private static int fbDocs = -1;
     private static int fbTerms = -1;
     private static double fbMu =-1;
     private static double fbOrigWeight = -1;
     private static String globalExpandedQuery = "";
+
+    //  The optimizer's #SYN rewrite changes scores, so it is used only
+    //  if the parameter file asks for it (optimizeQuery=true).
+
+    private static boolean optimizeQuery = false;
+    private static boolean queryTermCacheStats = false;
+    private static int queryPartitions = 1;
+    private static boolean queryBySegment = false;
+    private static boolean queryBitsets = true;
+    private static ForkJoinPool queryPool = null;
+    private static volatile ResultCache resultCache = null;
+    private static File resultCachePath = null;
+    private static QueryPipeline queryPipeline = null;
+    private static IndexWarmer warmer = null;
     private static Map<String, ScoreList>scoreListData = new HashMap<>();
 
     //  --------------- Methods ---------------------------------------
@@ -97,16 +111,7 @@ public class QryEval {
         }
 
         Map<String, String> parameters = readParameterFile(args[0]);
-
-        //  Configure query lexical processing to match index lexical
-        //  processing.  Initialize the index and retrieval model.
-
-        ANALYZER.setLowercase(true);
-        ANALYZER.setStopwordRemoval(true);
-        ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
-
-        Idx.initialize(parameters.get("indexPath"));
-        RetrievalModel model = initializeRetrievalModel(parameters);
+        RetrievalModel model = initialize(parameters);
 //        File trecEval = new File(parameters.get("trecEvalOutputPath"));
  //       PrintStream out = new PrintStream(new FileOutputStream(trecEval));
         writer = new PrintWriter(parameters.get("trecEvalOutputPath"), "UTF-8");
@@ -114,6 +119,12 @@ public class QryEval {
         //  Perform experiments.
         if (fb && !fbRankingFile.equals(""))
             readDocumentRanking(fbRankingFile);
+
+        String warmup = awaitWarmup();
+
+        if (warmup != null)
+            System.out.println(warmup);
+
         processQueryFile(parameters.get("queryFilePath"), model);
 
         //  Clean up.
@@ -121,9 +132,164 @@ public class QryEval {
         timer.stop();
         //writer.print("Time: " + timer );
         System.out.println("Time: " + timer);
+
+        if (queryTermCacheStats)
+            System.out.println(ANALYZER.getStatistics());
+
+        if (queryPipeline != null)
+            System.out.println(queryPipeline.getStatistics());
+
+        if (resultCache != null)
+            System.out.println(resultCache.getStatistics());
+
+        saveResultCache();
+
         writer.close();
     }
 
+    /**
+     * Configure query lexical processing to match index lexical
+     * processing.  Initialize the index and retrieval model.
+     *
+     * @param parameters The parameters from the parameter file.
+     * @return The initialized retrieval model
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static RetrievalModel initialize(Map<String, String> parameters)
+            throws IOException {
+
+        //  Query terms must be stemmed the way the index was.  KSTEM is
+        //  the default; PORTER and NONE are also supported.
+
+        EnglishAnalyzerConfigurable.StemmerType stemmer =
+            parameters.containsKey("queryStemmer") ?
+            EnglishAnalyzerConfigurable.StemmerType.valueOf
+                (parameters.get("queryStemmer").toUpperCase()) :
+            EnglishAnalyzerConfigurable.StemmerType.KSTEM;
+        int termCacheSize = parameters.containsKey("queryTermCacheSize") ?
+            Integer.parseInt(parameters.get("queryTermCacheSize")) : 10000;
+
+        ANALYZER = new QueryAnalyzer(stemmer, termCacheSize);
+        queryTermCacheStats = parameters.containsKey("queryTermCacheStats") &&
+            !parameters.get("queryTermCacheStats").toLowerCase().equals("false");
+
+        //  Files derived from the index (e.g., the docid table) are
+        //  saved only if there is a cache directory for them.
+
+        Idx.initialize(parameters.get("indexPath"),
+                       parameters.get("indexCachePath"));
+
+        //  Optionally, cache inverted lists outside the Java heap.
+        //  Sizes are in megabytes.
+
+        if (parameters.containsKey("postingsCachePath")) {
+            long size = parameters.containsKey("postingsCacheSize") ?
+                Long.parseLong(parameters.get("postingsCacheSize")) : 1024;
+            int regionSize = parameters.containsKey("postingsCacheRegionSize") ?
+                Integer.parseInt(parameters.get("postingsCacheRegionSize")) : 64;
+            int minDf = parameters.containsKey("postingsCacheMinDf") ?
+                Integer.parseInt(parameters.get("postingsCacheMinDf")) : InvList.BLOCK_SIZE;
+
+            Idx.openPostingsCache(parameters.get("postingsCachePath"),
+                                  size << 20, regionSize << 20, minDf);
+        }
+
+        //  Optionally, cache query results.  The size is in megabytes.
+        //  Enough results are kept for trec_eval output and for query
+        //  expansion.
+
+        if (parameters.containsKey("resultCacheSize") ||
+            parameters.containsKey("resultCachePath")) {
+            long size = parameters.containsKey("resultCacheSize") ?
+                Long.parseLong(parameters.get("resultCacheSize")) : 64;
+            int depth = parameters.containsKey("resultCacheDepth") ?
+                Integer.parseInt(parameters.get("resultCacheDepth")) : 100;
+
+            if (size > 0) {
+                resultCache = new ResultCache(size << 20, Math.max(depth, fbDocs));
+
+                if (parameters.containsKey("resultCachePath")) {
+                    resultCachePath = new File(parameters.get("resultCachePath"));
+                    resultCache.load(resultCachePath);
+                }
+            }
+        }
+
+        //  Optionally, process query files in a pipeline of stages.
+
+        if (parameters.containsKey("queryPipeline") &&
+            !parameters.get("queryPipeline").toLowerCase().equals("false")) {
+            int parseThreads = parameters.containsKey("queryPipelineParseThreads") ?
+                Integer.parseInt(parameters.get("queryPipelineParseThreads")) : 1;
+            int fetchThreads = parameters.containsKey("queryPipelineFetchThreads") ?
+                Integer.parseInt(parameters.get("queryPipelineFetchThreads")) : 2;
+            int scoreThreads = parameters.containsKey("queryPipelineScoreThreads") ?
+                Integer.parseInt(parameters.get("queryPipelineScoreThreads")) : 1;
+            int queueSize = parameters.containsKey("queryPipelineQueueSize") ?
+                Integer.parseInt(parameters.get("queryPipelineQueueSize")) : 16;
+
+            queryPipeline = new QueryPipeline(parseThreads, fetchThreads,
+                                              scoreThreads, queueSize, fb);
+        }
+
+        //  Optionally, refresh the index periodically, so that queries
+        //  see documents that are added while they run.  The interval
+        //  is in seconds.
+
+        if (parameters.containsKey("indexRefreshInterval")) {
+            long interval = Long.parseLong(parameters.get("indexRefreshInterval"));
+
+            if (interval > 0)
+                Idx.startRefresh(interval);
+        }
+
+        RetrievalModel model = initializeRetrievalModel(parameters);
+
+        //  Optionally, start reading the inverted lists of the terms in
+        //  a query log, so that the index is warm when queries start.
+        //  The size is in megabytes, and the time is in seconds.
+
+        if (parameters.containsKey("warmupQueryFile")) {
+            int threads = parameters.containsKey("warmupThreads") ?
+                Integer.parseInt(parameters.get("warmupThreads")) : 2;
+            long size = parameters.containsKey("warmupSize") ?
+                Long.parseLong(parameters.get("warmupSize")) : 1024;
+            long time = parameters.containsKey("warmupTime") ?
+                Long.parseLong(parameters.get("warmupTime")) : 60;
+
+            warmer = new IndexWarmer(threads, size << 20, time * 1000);
+            warmer.start(new File(parameters.get("warmupQueryFile")), model);
+        }
+
+        return model;
+    }
+
+    /**
+     * Wait for the index warm-up that initialize started, if any, to
+     * finish or reach its time limit.
+     *
+     * @return The warm-up statistics, or null if there is no warm-up.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static String awaitWarmup() throws IOException {
+        if (warmer == null)
+            return null;
+
+        warmer.await();
+        return warmer.getStatistics();
+    }
+
+    /**
+     * Save the result cache, if it is enabled and has a
+     * resultCachePath, so that later runs can use it.
+     *
+     * @throws IOException Error writing the file.
+     */
+    static void saveResultCache() throws IOException {
+        if ((resultCache != null) && (resultCachePath != null))
+            resultCache.save(resultCachePath);
+    }
+
     /**
      * Allocate the retrieval model and initialize it using parameters
      * from the parameter file.
@@ -131,7 +297,7 @@ public class QryEval {
      * @return The initialized retrieval model
      * @throws IOException Error accessing the Lucene index.
      */
-    private static RetrievalModel initializeRetrievalModel(Map<String, String> parameters)
+    static RetrievalModel initializeRetrievalModel(Map<String, String> parameters)
             throws IOException {
 
         RetrievalModel model = null;
@@ -145,11 +311,14 @@ public class QryEval {
             String k_1 = parameters.get("BM25:k_1");
             String b = parameters.get("BM25:b");
             String k_3 = parameters.get("BM25:k_3");
-            model = new RetrievalModelBM25(k_1, b, k_3);
+            String lengthBuckets = parameters.get("BM25:lengthBuckets");
+            model = new RetrievalModelBM25(k_1, b, k_3, lengthBuckets);
         } else if (modelString.equals("indri")) {
             String mu = parameters.get("Indri:mu");
             String lambda = parameters.get("Indri:lambda");
-            model = new RetrievalModelIndri(mu, lambda);
+            String logSpace = parameters.get("Indri:logSpace");
+            String lengthBuckets = parameters.get("Indri:lengthBuckets");
+            model = new RetrievalModelIndri(mu, lambda, logSpace, lengthBuckets);
         } else {
             throw new IllegalArgumentException
                     ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
@@ -167,185 +336,11 @@ public class QryEval {
      */
     static Qry parseQuery(String qString, RetrievalModel model) throws IOException {
 
-        //  Add a default query operator to every query. This is a tiny
-        //  bit of inefficiency, but it allows other code to assume
-        //  that the query will return document ids and scores.
+        //  The parser wraps the query in the default query operator, so
+        //  that other code can assume that the query will return
+        //  document ids and scores.
 
-        String defaultOp = model.defaultQrySopName();
-        qString = defaultOp + "(" + qString + ")";
-
-        //  Simple query tokenization.  Terms like "near-death" are handled later.
-
-        StringTokenizer tokens = new StringTokenizer(qString, "\t\n\r ,()", true);
-        String token = null;
-
-        //  This is a simple, stack-based parser.  These variables record
-        //  the parser's state.
-
-        Qry currentOp = null;
-        Stack<Qry> opStack = new Stack<Qry>();
-        boolean weightExpected = false;
-        Stack<Double> weightStack = new Stack<>();
-
-        //  Each pass of the loop processes one token. The query operator
-        //  on the top of the opStack is also stored in currentOp to
-        //  make the code more readable.
-
-        while (tokens.hasMoreTokens()) {
-
-            token = tokens.nextToken();
-            //System.out.println(token);
-
-            if (token.matches("[ ,(\t\n\r]")) {
-                continue;
-            } else if (token.equals(")")) {    // Finish current query op.
-
-                // If the current query operator is not an argument to another
-                // query operator (i.e., the opStack is empty when the current
-                // query operator is removed), we're done (assuming correct
-                // syntax - see below).
-                if (currentOp instanceof QryWSop) {
-                    ArrayList<Double> weightArray = new ArrayList<>();
-                    double sum = 0;
-                    for (int i = 0; i < currentOp.args.size(); i ++) {
-                        double weight = weightStack.peek();
-                        sum += weight;
-                        weightArray.add(weight);
-                        weightStack.pop();
-                    }
-                    ((QryWSop)currentOp).setWeightArray(weightArray);
-                    ((QryWSop)currentOp).setSumOfWeight(sum);
-                }
-
-                opStack.pop();
-
-                if (opStack.empty())
-                    break;
-
-                // Not done yet.  Add the current operator as an argument to
-                // the higher-level operator, and shift processing back to the
-                // higher-level operator.
-                Qry arg = currentOp;
-                currentOp = opStack.peek();
-                currentOp.appendArg(arg);
-                if (currentOp instanceof QryWSop)
-                    weightExpected = true;
-
-            } else if (token.equalsIgnoreCase("#or")) {
-                currentOp = new QrySopOr();
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-            } else if (token.equalsIgnoreCase("#and")) {
-                currentOp = new QrySopAnd();
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-            } else if (token.equalsIgnoreCase("#wand")) {
-                currentOp = new QrySopWAnd();
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-                weightExpected = true;
-            } else if (token.equalsIgnoreCase("#sum")) {
-                currentOp = new QrySopSum();
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-            } else if (token.equalsIgnoreCase("#wsum")) {
-                currentOp = new QrySopWSum();
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-                weightExpected = true;
-            } else if (token.toLowerCase().contains("#near")) {
-                int delimiter = token.indexOf('/');
-                if (delimiter < 0)
-                    throw new IllegalArgumentException("Near Operator needs a parameter");
-                int dis = Integer.parseInt(token.substring(delimiter + 1));
-
-                currentOp = new QryIopNear(dis);
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-            } else if (token.toLowerCase().contains("#window")) {
-                int delimiter = token.indexOf('/');
-                if (delimiter < 0)
-                    throw new IllegalArgumentException("Near Operator needs a parameter");
-                int dis = Integer.parseInt(token.substring(delimiter + 1));
-
-                currentOp = new QryIopWindow(dis);
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-            } else if (token.equalsIgnoreCase("#syn")) {
-                currentOp = new QryIopSyn();
-                currentOp.setDisplayName(token);
-                opStack.push(currentOp);
-            } else {
-                if (currentOp instanceof QryWSop) {
-                    try {
-                        if (weightExpected) {
-                            double weight = Double.parseDouble(token);
-                        /*if (weight < 1 && weight >= 0) {
-                            weightStack.push(weight);
-                            continue;
-                        }*/
-                            weightStack.push(weight);
-                            weightExpected = false;
-                            continue;
-                        }
-                    } catch (NumberFormatException e) {
-
-                    }
-                }
-
-
-
-                //  Split the token into a term and a field.
-
-                int delimiter = token.indexOf('.');
-                String field = null;
-                String term = null;
-                if (!fb) {
-                    if (delimiter < 0) {
-                        field = "body";
-                        term = token;
-                    } else {
-                        field = token.substring(delimiter + 1).toLowerCase();
-                        term = token.substring(0, delimiter);
-                    }
-                    if ((field.compareTo("url") != 0) &&
-                            (field.compareTo("keywords") != 0) &&
-                            (field.compareTo("title") != 0) &&
-                            (field.compareTo("body") != 0) &&
-                            (field.compareTo("inlink") != 0)) {
-                        throw new IllegalArgumentException("Error: Unknown field " + token);
-                    }
-                } else {
-                    term = token;
-                    field = "body";
-                }
-
-                //  Lexical processing, stopwords, stemming.  A loop is used
-                //  just in case a term (e.g., "near-death") gets tokenized into
-                //  multiple terms (e.g., "near" and "death").
-
-                String t[] = tokenizeQuery(term);
-                if (currentOp instanceof QryWSop)
-                    weightExpected = true;
-
-                for (int j = 0; j < t.length; j++) {
-                    Qry termOp = new QryIopTerm(t[j], field);
-                    currentOp.appendArg(termOp);
-                }
-                if (currentOp instanceof QryWSop && t.length == 0)
-                    weightStack.pop();
-            }
-        }
-
-
-        //  A broken structured query can leave unprocessed tokens on the opStack,
-
-        if (tokens.hasMoreTokens()) {
-            throw new IllegalArgumentException
-                    ("Error:  Query syntax is incorrect.  " + qString);
-        }
-
-        return currentOp;
+        return new QryParser(qString, model.defaultQrySopName(), fb).parse();
     }
 
     /**
@@ -417,6 +412,57 @@ public class QryEval {
                 + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
     }
 
+    /**
+     * Optimize a parsed query.  Remove query operators (except SCORE
+     * operators) that have only 1 argument, then, if enabled, let the
+     * query optimizer rewrite the query tree.  If not, only the
+     * rewrites that the model requires are applied (see
+     * QryOptimizer.rewriteRequired).
+     *
+     * @param q     The parsed query.
+     * @param model The retrieval model that the query will be evaluated with.
+     * @return The optimized query
+     * @throws IOException Error accessing the index
+     */
+    static Qry optimizeQuery(Qry q, RetrievalModel model) throws IOException {
+
+        if (q.args.size() == 1) {
+            Qry q_0 = q.args.get(0);
+
+            if (q_0 instanceof QrySop) {
+                q = q_0;
+            }
+        }
+
+        while ((q != null) && parseQueryCleanup(q))
+            ;
+
+        if (optimizeQuery && (q != null)) {
+            q = QryOptimizer.optimize(q, model);
+
+            while (parseQueryCleanup(q))
+                ;
+        } else if (q != null) {
+            q = QryOptimizer.rewriteRequired(q, model);
+        }
+
+        return q;
+    }
+
+    /**
+     * Parse and optimize a query, and compile it into a plan that can
+     * be evaluated (and cached) independently of this call.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model that the query will be evaluated with.
+     * @return The query plan
+     * @throws IOException Error accessing the index
+     */
+    static QryPlan compileQuery(String qString, RetrievalModel model)
+            throws IOException {
+        return QryPlan.compile(optimizeQuery(parseQuery(qString, model), model));
+    }
+
     /**
      * Process one query.
      *
@@ -427,36 +473,64 @@ public class QryEval {
      */
     static ScoreList processQuery(String qid, String qString, RetrievalModel model)
             throws IOException {
+        return processQuery(qid, qString, compileQuery(qString, model), model);
+    }
 
-        Qry q = parseQuery(qString, model);
+    /**
+     * Process one query that is already compiled.
+     *
+     * @param qString A string that contains a query.
+     * @param plan    The query's plan, from compileQuery.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @return Search results
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qid, String qString, QryPlan plan,
+                                  RetrievalModel model)
+            throws IOException {
 
-        // Optimize the query.  Remove query operators (except SCORE
-        // operators) that have only 1 argument. This improves efficiency
-        // and readability a bit.
+        //  Both passes of query expansion use the same version of the
+        //  index, even if it is refreshed meanwhile.
 
-        if (q.args.size() == 1) {
-            Qry q_0 = q.args.get(0);
+        Idx.Generation g = Idx.acquire();
+        Idx.Generation previous = Idx.pin(g);
 
-            if (q_0 instanceof QrySop) {
-                q = q_0;
-            }
+        try {
+            return processPinnedQuery(qid, qString, plan, model);
+        } finally {
+            Idx.pin(previous);
+            Idx.release(g);
         }
+    }
 
-        while ((q != null) && parseQueryCleanup(q))
-            ;
+    /**
+     * Process one compiled query with the thread's index generation.
+     */
+    private static ScoreList processPinnedQuery(String qid, String qString,
+                                                QryPlan plan, RetrievalModel model)
+            throws IOException {
 
         // Show the query that is evaluated
 
-        //System.out.println("    --> " + q);
+        //System.out.println("    --> " + plan);
 
         //judge if needed to do query expansion
        if (fb == false) {
-           return doQuery(q, model);
+           return doQuery(plan, model);
        } else {
            ScoreList r = new ScoreList();
            if (fbRankingFile.equals("")) {
-               r = doQuery(q, model);
+               r = doQuery(plan, model);
                r.sort();
+
+               //  Query expansion weights documents by their scores, which
+               //  must be probabilities.
+
+               if ((model instanceof RetrievalModelIndri) &&
+                       ((RetrievalModelIndri) model).logSpace) {
+                   for (int i = 0; i < r.size(); i++)
+                       r.setDocidScore(i, Math.exp(r.getDocidScore(i)));
+               }
            } else {
                if (!scoreListData.containsKey(qid))
                    throw new IOException("Error in ranking file!");
@@ -464,23 +538,12 @@ public class QryEval {
            }
            String defaultOp = model.defaultQrySopName();
            qString = defaultOp + "(" + qString + ")";
-           String expendedQuery = expendQuery(q, r);
+           String expendedQuery = expendQuery(r);
            String newQuery = "#wand ( " + String.valueOf(fbOrigWeight) + " " + qString + " "
                    + String.valueOf(1 - fbOrigWeight) + " " + expendedQuery + " )";
            //System.out.println(newQuery);
 
-           Qry newQ = parseQuery(newQuery, model);
-           if (newQ.args.size() == 1) {
-               Qry q_0 = newQ.args.get(0);
-
-               if (q_0 instanceof QrySop) {
-                   newQ = q_0;
-               }
-           }
-
-           while ((newQ != null) && parseQueryCleanup(newQ))
-               ;
-           r = doQuery(newQ, model);
+           r = doQuery(compileQuery(newQuery, model), model);
            return r;
        }
     }
@@ -488,16 +551,14 @@ public class QryEval {
     /**
      * Expand query
      *
-     * @param oldQuery
      * @param scorelist of documents
      */
-    static String expendQuery(Qry q, ScoreList r) throws IOException{
+    static String expendQuery(ScoreList r) throws IOException{
         Map<String, Double>data = new HashMap<>();
         Map<String, ArrayList<Integer>>record = new TreeMap<>();
         Map<String, Double>pleData = new TreeMap<>();
         Map<Integer,TermVector>termVectorMap = new TreeMap<>();
-        r.sort();
-        //r.truncate(fbDocs);
+        r.selectTop(fbDocs);
         for (int i = 0; i < fbDocs && i < r.size(); i ++) {
             TermVector tmpVector = new TermVector(r.getDocid(i), "body");
             termVectorMap.put(r.getDocid(i), tmpVector);
@@ -581,48 +642,439 @@ public class QryEval {
     }
 
     /**
-     * Read document ranking from fbInitialRankingFile
+     * Read document ranking from fbInitialRankingFile.  Only the top
+     * fbDocs documents of each query are kept, because those are the
+     * only ones that query expansion uses.
      *
      * @param fileName
      * @throws IOException Error accessing the Lucene index.
      */
 
     static void readDocumentRanking(String fileName) throws IOException {
-        File documentFile = new File(fileName);
+        scoreListData.putAll(
+                RankingFileReader.read(fileName, fbDocs, fbRankingThreads));
+    }
+    /**
+     * Evaluate a query plan.  If the result cache is enabled (see
+     * {@link ResultCache}), a cached result is returned if there is
+     * one; it has only the best resultCacheDepth documents, sorted.
+     *
+     * @param plan
+     * @param model
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList doQuery(QryPlan plan, RetrievalModel model) throws IOException{
+        if (plan == null)
+            return null;
 
-        if (!documentFile.canRead()) {
-            throw new IllegalArgumentException
-                    ("Can't read " + fileName);
+        Idx.Generation g = Idx.acquire();
+        Idx.Generation previous = Idx.pin(g);
+
+        try {
+            return doCachedQuery(plan, model);
+        } finally {
+            Idx.pin(previous);
+            Idx.release(g);
+        }
+    }
+
+    /**
+     * Evaluate a query plan with the thread's index generation, using
+     * the result cache if it is enabled.
+     */
+    private static ScoreList doCachedQuery(QryPlan plan, RetrievalModel model)
+            throws IOException {
+
+        ResultCache cache = resultCache;
+
+        if (cache == null)
+            return evaluatePlan(plan, model);
+
+        String key = ResultCache.getKey(plan, model);
+        ScoreList r = cache.get(key);
+
+        if (r == null) {
+            r = evaluatePlan(plan, model);
+            cache.put(key, r);
         }
+
+        return r;
+    }
+
+    /**
+     * Instantiate a query plan and materialize its inverted lists, so
+     * that the I/O-bound part of evaluation can be done ahead of
+     * scoring, e.g., by another thread (see QueryPipeline).  This is
+     * only done for queries that are evaluated document-at-a-time over
+     * the whole index and that are not in the result cache.
+     *
+     * @param plan
+     * @param model
+     * @return The initialized instance, for doQuery(QryPlan,
+     *         RetrievalModel, Qry); or null if the query should be
+     *         evaluated by doQuery(QryPlan, RetrievalModel).
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static Qry prefetchQuery(QryPlan plan, RetrievalModel model) throws IOException {
+        if ((plan == null) || queryBySegment ||
+                (queryBitsets && (model instanceof RetrievalModelUnrankedBoolean)))
+            return null;
+
+        ResultCache cache = resultCache;
+
+        if ((cache != null) && cache.contains(ResultCache.getKey(plan, model)))
+            return null;
+
+        Qry q = plan.instantiate();
+
+        if (q.args.size() > 0)          // Ignore empty queries
+            q.initialize(model);
+
+        return q;
+    }
+
+    /**
+     * Evaluate a query plan, given the instance that prefetchQuery
+     * initialized.  The result is cached if the result cache is
+     * enabled.
+     *
+     * @param plan
+     * @param model
+     * @param q     The initialized instance, or null to evaluate the
+     *              plan with doQuery(QryPlan, RetrievalModel).
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList doQuery(QryPlan plan, RetrievalModel model, Qry q) throws IOException{
+        if (q == null)
+            return doQuery(plan, model);
+
+        ScoreList r;
+
+        if (q.args.size() == 0)         // Ignore empty queries
+            r = new ScoreList();
+        else if (queryPartitions > 1)
+            r = doQuery(plan, q, model, queryPartitions);
+        else
+            r = doQuery(q, model, 0, Integer.MAX_VALUE);
+
+        ResultCache cache = resultCache;
+
+        if (cache != null)
+            cache.put(ResultCache.getKey(plan, model), r);
+
+        return r;
+    }
+
+    /**
+     * Evaluate a query plan.  Each call evaluates a fresh instance of
+     * the plan, so a plan may be evaluated by several threads at once.
+     * Unranked Boolean queries are evaluated with bitsets (see
+     * {@link BooleanBitsetEvaluator}) unless queryBitsets is false.
+     * Otherwise, if queryBySegment is set, the query is evaluated in
+     * parallel over the segments of the index; otherwise, if
+     * queryPartitions is greater than 1, it is evaluated in parallel
+     * over that many docid ranges.
+     *
+     * @param plan
+     * @param model
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static ScoreList evaluatePlan(QryPlan plan, RetrievalModel model)
+            throws IOException {
+        if (queryBitsets && (model instanceof RetrievalModelUnrankedBoolean)) {
+            ScoreList r = BooleanBitsetEvaluator.evaluate(plan.instantiate(), model);
+
+            if (r != null)
+                return r;
+        }
+
+        if (queryBySegment)
+            return doQueryBySegment(plan, model);
+        else if (queryPartitions > 1)
+            return doQuery(plan, model, queryPartitions);
+        else
+            return doQuery(plan.instantiate(), model);
+    }
+
+    /**
+     * Evaluate a query plan in parallel.  The docid space is split into
+     * ranges, and each range is evaluated by its own instance of the
+     * plan.  The inverted lists are materialized once and shared by all
+     * of the instances, so df, ctf, and the other collection statistics
+     * are the same as in serial evaluation, and so are the scores.  The
+     * results are concatenated in docid order, so the result is the
+     * same list that serial evaluation produces.
+     *
+     * @param plan
+     * @param model
+     * @param partitions The number of docid ranges.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList doQuery(final QryPlan plan, final RetrievalModel model,
+                             int partitions) throws IOException {
+
+        Qry q = plan.instantiate();
+
+        if (q.args.size() == 0)         // Ignore empty queries
+            return new ScoreList();
+
+        q.initialize(model);
+        return doQuery(plan, q, model, partitions);
+    }
+
+    /**
+     * Evaluate an initialized instance of a query plan in parallel over
+     * docid ranges (see doQuery(QryPlan, RetrievalModel, int)).
+     *
+     * @param plan
+     * @param q          An initialized instance of the plan.
+     * @param model
+     * @param partitions The number of docid ranges.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static ScoreList doQuery(final QryPlan plan, final Qry q,
+                                     final RetrievalModel model, int partitions)
+            throws IOException {
+
         ScoreList r = new ScoreList();
+        int maxDoc = Idx.getMaxDoc();
+        partitions = Math.max(1, Math.min(partitions, maxDoc));
 
-        Scanner scan = new Scanner(documentFile);
-        String line = null;
-        String qid = "-1";
-        do {
-            line = scan.nextLine();
-            String[] pair = line.split(" ");
-            try{
-                String cur_qid = pair[0].trim();
-                if (!cur_qid.equals(qid)) {
-                    if (!qid.equals("-1")) {
-                        scoreListData.put(qid, r);
-                        qid = cur_qid;
-                        r = new ScoreList();
-                    } else {
-                        qid = cur_qid;
+        List<Callable<ScoreList>> ranges = new ArrayList<Callable<ScoreList>>();
+
+        for (int i = 0; i < partitions; i++) {
+            final int start = (int) ((long) maxDoc * i / partitions);
+            final int end = (int) ((long) maxDoc * (i + 1) / partitions);
+            final boolean first = (i == 0);
+
+            ranges.add(new Callable<ScoreList>() {
+                public ScoreList call() throws IOException {
+                    Qry q_i = q;
+
+                    if (!first) {
+                        q_i = plan.instantiate();
+                        q_i.initializeFrom(q, model);
                     }
+
+                    return doQuery(q_i, model, start, end);
+                }
+            });
+        }
+
+        for (ScoreList range : invokeAll(ranges))
+            r.addAll(range);
+
+        return r;
+    }
+
+    /**
+     * Evaluate a query plan in parallel over the segments (leaves) of
+     * the index.  Each segment is evaluated by its own instance of the
+     * plan, which reads only that segment's postings, without the
+     * overhead of merging the postings of all segments.  The instances
+     * are initialized in parallel.  Then the segments' df and ctf are
+     * added up, so that the scores use the same collection statistics
+     * as serial evaluation.  Then the segments are evaluated in
+     * parallel, and their results are concatenated in docid order.
+     *
+     * @param plan
+     * @param model
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static ScoreList doQueryBySegment(QryPlan plan, final RetrievalModel model)
+            throws IOException {
+
+        List<AtomicReaderContext> leaves = Idx.getIndexReader().leaves();
+
+        if (leaves.size() <= 1)
+            return doQuery(plan.instantiate(), model);
+
+        final Qry[] segments = new Qry[leaves.size()];
+
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = plan.instantiate(leaves.get(i));
+
+        ScoreList r = new ScoreList();
+
+        if (segments[0].args.size() == 0)       // Ignore empty queries
+            return r;
+
+        List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
+
+        for (int i = 0; i < segments.length; i++) {
+            final Qry q_i = segments[i];
+
+            tasks.add(new Callable<ScoreList>() {
+                public ScoreList call() throws IOException {
+                    q_i.initialize(model);
+                    return null;
+                }
+            });
+        }
+
+        invokeAll(tasks);
+        setCollectionStatistics(segments);
+
+        tasks.clear();
+
+        for (int i = 0; i < segments.length; i++) {
+            final Qry q_i = segments[i];
+
+            tasks.add(new Callable<ScoreList>() {
+                public ScoreList call() throws IOException {
+                    return doQuery(q_i, model, 0, Integer.MAX_VALUE);
                 }
-                int docid = Idx.getInternalDocid(pair[2].trim());
-                r.add(docid, Double.parseDouble(pair[4].trim()));
-            } catch (Exception e) {
-                throw new IOException("Get internalDocid error");
+            });
+        }
+
+        for (ScoreList segment : invokeAll(tasks))
+            r.addAll(segment);
+
+        return r;
+    }
+
+    /**
+     * Give each QryIop operator in per-segment instances of a query
+     * plan the df and ctf of the whole index.  QryIop operators that
+     * are arguments of other QryIop operators aren't scored, so they
+     * are skipped.
+     *
+     * @param segments Initialized instances of the same operator, one per segment.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static void setCollectionStatistics(Qry[] segments) throws IOException {
+
+        if (segments[0] instanceof QryIop) {
+            int df = 0;
+            int ctf = 0;
+
+            for (Qry q_i : segments) {
+                df += ((QryIop) q_i).invertedList.df;
+                ctf += ((QryIop) q_i).invertedList.ctf;
             }
-        } while (scan.hasNext());
-        if (!qid.equals("-1"))
-            scoreListData.put(qid, r);
-        scan.close();
+
+            for (Qry q_i : segments)
+                ((QryIop) q_i).setCollectionStatistics(df, ctf);
+        } else {
+            Qry[] args = new Qry[segments.length];
+
+            for (int i = 0; i < segments[0].args.size(); i++) {
+                for (int j = 0; j < segments.length; j++)
+                    args[j] = segments[j].args.get(i);
+
+                setCollectionStatistics(args);
+            }
+        }
     }
+
+    /**
+     * Run tasks on the query thread pool, and wait for all of them.
+     * The tasks use the caller's index generation.
+     *
+     * @param tasks
+     * @return The tasks' results, in task order.
+     * @throws IOException A task failed.
+     */
+    private static List<ScoreList> invokeAll(List<Callable<ScoreList>> tasks)
+            throws IOException {
+
+        List<ScoreList> results = new ArrayList<ScoreList>(tasks.size());
+        List<Callable<ScoreList>> pinned =
+            new ArrayList<Callable<ScoreList>>(tasks.size());
+        final Idx.Generation g = Idx.acquire();
+
+        for (final Callable<ScoreList> task : tasks) {
+            pinned.add(new Callable<ScoreList>() {
+                public ScoreList call() throws Exception {
+                    Idx.Generation previous = Idx.pin(g);
+
+                    try {
+                        return task.call();
+                    } finally {
+                        Idx.pin(previous);
+                    }
+                }
+            });
+        }
+
+        try {
+            for (Future<ScoreList> task : getQueryPool().invokeAll(pinned))
+                results.add(task.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Query evaluation was interrupted.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else
+                throw new IOException(cause);
+        } finally {
+            Idx.release(g);
+        }
+
+        return results;
+    }
+
+    /**
+     * Evaluate an initialized query over the documents in [start, end).
+     *
+     * @param q
+     * @param model
+     * @param start The first docid of the range.
+     * @param end The docid after the last docid of the range.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    private static ScoreList doQuery(Qry q, RetrievalModel model, int start, int end)
+            throws IOException {
+
+        ScoreList r = new ScoreList();
+
+        q.docIteratorAdvanceTo(start);
+
+        while (q.docIteratorHasMatch(model)) {
+            int docid = q.docIteratorGetMatch();
+
+            if (docid >= end)
+                break;
+
+            double score = getDocumentScore(q, model);
+            r.add(docid, score);
+            q.docIteratorAdvancePast(docid);
+        }
+
+        return r;
+    }
+
+    /**
+     * Get the score of the document that an initialized query matches.
+     * Log-space Indri scores are rounded, so that ties are the same as
+     * in linear mode (see RetrievalModelIndri.roundLogScore).
+     */
+    private static double getDocumentScore(Qry q, RetrievalModel model)
+            throws IOException {
+
+        double score = ((QrySop) q).getScore(model);
+
+        if ((model instanceof RetrievalModelIndri) &&
+                ((RetrievalModelIndri) model).logSpace)
+            score = RetrievalModelIndri.roundLogScore(score);
+
+        return score;
+    }
+
+    /**
+     * Get the thread pool that evaluates docid ranges.
+     */
+    private static synchronized ForkJoinPool getQueryPool() {
+        if (queryPool == null)
+            queryPool = new ForkJoinPool();
+        return queryPool;
+    }
+
     /**
      * Use query to do query
      *
@@ -641,7 +1093,7 @@ public class QryEval {
 
                 while (q.docIteratorHasMatch(model)) {
                     int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
+                    double score = getDocumentScore(q, model);
                     //writer.printf("%d,%.12f\n", docid, score);
                     r.add(docid, score);
                     q.docIteratorAdvancePast(docid);
@@ -671,6 +1123,11 @@ public class QryEval {
 
             input = new BufferedReader(new FileReader(queryFilePath));
 
+            if (queryPipeline != null) {
+                queryPipeline.run(input, model);
+                return;
+            }
+
             //  Each pass of the loop processes one query.
 
             while ((qLine = input.readLine()) != null) {
@@ -690,14 +1147,25 @@ public class QryEval {
 
                 ScoreList r = null;
 
-                r = processQuery(qid, query, model);
-                if (fb) {
-                    printExpandedQuery(qid);
-                }
+                //  The query uses one version of the index from start
+                //  to finish.
+
+                Idx.Generation g = Idx.acquire();
+                Idx.Generation previous = Idx.pin(g);
 
-                if (r != null) {
-                    printTrecEvalResults(qid, r);
-                    //printResults(qid, r);
+                try {
+                    r = processQuery(qid, query, model);
+                    if (fb) {
+                        printExpandedQuery(qid);
+                    }
+
+                    if (r != null) {
+                        printTrecEvalResults(qid, r);
+                        //printResults(qid, r);
+                    }
+                } finally {
+                    Idx.pin(previous);
+                    Idx.release(g);
                 }
             }
         } catch (IOException ex) {
@@ -713,12 +1181,33 @@ public class QryEval {
      * @throws IOException Error accessing the Lucene index.
      */
     static void printExpandedQuery(String qid) throws IOException{
+        printExpandedQuery(qid, globalExpandedQuery);
+    }
+
+    /**
+     * Print an expanded query
+     *
+     * @param qid           qid of the original query
+     * @param expandedQuery the expanded query, from getExpandedQuery
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static void printExpandedQuery(String qid, String expandedQuery) throws IOException{
         PrintWriter writer;
         writer = new PrintWriter(fbExpansionQueryFile, "UTF-8");
-        writer.printf(qid + ": " + globalExpandedQuery + "\n");
+        writer.printf(qid + ": " + expandedQuery + "\n");
         writer.close();
     }
 
+    /**
+     * Get the expanded query of the last query that processQuery
+     * expanded.
+     *
+     * @return The expanded query.
+     */
+    static String getExpandedQuery() {
+        return globalExpandedQuery;
+    }
+
     /**
      * Print the query results in trec_eval format
      * <p>
@@ -731,15 +1220,27 @@ public class QryEval {
      * @throws IOException Error accessing the Lucene index.
      */
     static void printTrecEvalResults(String queryName, ScoreList result) throws IOException {
+        printTrecEvalResults(queryName, result, writer);
+    }
 
-        result.sort();
-        result.truncate(100);
+    /**
+     * Print the query results in trec_eval format to the specified writer.
+     *
+     * @param queryName Original query.
+     * @param result    A list of document ids and scores
+     * @param out       Where to print the results.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static void printTrecEvalResults(String queryName, ScoreList result, PrintWriter out)
+            throws IOException {
+
+        result.selectTop(100);
 
         if (result.size() < 1) {
-            writer.println(queryName + " Q0 dummy 1 0 ls");
+            out.println(queryName + " Q0 dummy 1 0 ls");
         } else {
             for (int i = 0; i < result.size(); i++) {
-                writer.printf(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " "
+                out.printf(queryName + " Q0 " + result.getExternalDocid(i) + " "
                         + (i + 1) + " " + "%.12f" + " " + "ls\n", result.getDocidScore(i));
             }
         }
@@ -764,7 +1265,7 @@ public class QryEval {
             System.out.println("\tNo results.");
         } else {
             for (int i = 0; i < result.size(); i++) {
-                System.out.println("\t" + i + ":  " + Idx.getExternalDocid(result.getDocid(i)) + ", "
+                System.out.println("\t" + i + ":  " + result.getExternalDocid(i) + ", "
                         + result.getDocidScore(i));
             }
         }
@@ -781,6 +1282,34 @@ public class QryEval {
     private static Map<String, String> readParameterFile(String parameterFileName)
             throws IOException {
 
+        Map<String, String> parameters = readParameters(parameterFileName);
+
+        if (!(parameters.containsKey("indexPath") &&
+                parameters.containsKey("queryFilePath") &&
+                parameters.containsKey("trecEvalOutputPath") &&
+                parameters.containsKey("retrievalAlgorithm") ||
+                (parameters.containsKey("BM25:k_1") &&
+                parameters.containsKey("BM25:k_3") &&
+                parameters.containsKey("BM25:b")) || (
+                parameters.containsKey("Indri:mu") &&
+                parameters.containsKey("Indri:lambda")))) {
+            throw new IllegalArgumentException
+                    ("Required parameters were missing from the parameter file.");
+        }
+
+        return parameters;
+    }
+
+    /**
+     * Read the specified parameter file, and set the options that
+     * QryEval uses itself (feedback and query optimization).  No
+     * parameters are required.
+     *
+     * @return The parameters, in <key, value> format.
+     */
+    static Map<String, String> readParameters(String parameterFileName)
+            throws IOException {
+
         Map<String, String> parameters = new HashMap<String, String>();
 
         File parameterFile = new File(parameterFileName);
@@ -803,6 +1332,8 @@ public class QryEval {
             fb = true;
         if (parameters.containsKey("fbInitialRankingFile"))
             fbRankingFile = parameters.get("fbInitialRankingFile");
+        if (parameters.containsKey("fbInitialRankingThreads"))
+            fbRankingThreads = Integer.parseInt(parameters.get("fbInitialRankingThreads"));
         if (parameters.containsKey(("fbExpansionQueryFile")))
             fbExpansionQueryFile = parameters.get("fbExpansionQueryFile");
         if (parameters.containsKey("fbDocs"))
@@ -813,51 +1344,35 @@ public class QryEval {
             fbMu = Double.parseDouble(parameters.get("fbMu"));
         if (parameters.containsKey("fbOrigWeight"))
             fbOrigWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
-
-        if (!(parameters.containsKey("indexPath") &&
-                parameters.containsKey("queryFilePath") &&
-                parameters.containsKey("trecEvalOutputPath") &&
-                parameters.containsKey("retrievalAlgorithm") ||
-                (parameters.containsKey("BM25:k_1") &&
-                parameters.containsKey("BM25:k_3") &&
-                parameters.containsKey("BM25:b")) || (
-                parameters.containsKey("Indri:mu") &&
-                parameters.containsKey("Indri:lambda")))) {
-            throw new IllegalArgumentException
-                    ("Required parameters were missing from the parameter file.");
-        }
+        if (parameters.containsKey("queryPartitions"))
+            queryPartitions = Integer.parseInt(parameters.get("queryPartitions"));
+        if (parameters.containsKey("queryBySegment"))
+            queryBySegment = !parameters.get("queryBySegment").toLowerCase().equals("false");
+        if (parameters.containsKey("queryBitsets"))
+            queryBitsets = !parameters.get("queryBitsets").toLowerCase().equals("false");
+        if (parameters.containsKey("optimizeQuery"))
+            optimizeQuery = !parameters.get("optimizeQuery").toLowerCase().equals("false");
+        if (parameters.containsKey("optimizeQueryDebug") &&
+                !parameters.get("optimizeQueryDebug").toLowerCase().equals("false"))
+            QryOptimizer.setDebugLog(System.err);
 
         return parameters;
     }
 
     /**
      * Given a query string, returns the terms one at a time with stopwords
-     * removed and the terms stemmed using the Krovetz stemmer.
+     * removed and the terms stemmed using the configured stemmer (the
+     * Krovetz stemmer by default).
      * <p>
-     * Use this method to process raw query terms.
+     * Use this method to process raw query terms.  Results are cached
+     * (see {@link QueryAnalyzer}), so the array must not be modified.
      *
      * @param query String containing query
      * @return Array of query tokens
      * @throws IOException Error accessing the Lucene index.
      */
     static String[] tokenizeQuery(String query) throws IOException {
-
-        TokenStreamComponents comp =
-                ANALYZER.createComponents("dummy", new StringReader(query));
-        TokenStream tokenStream = comp.getTokenStream();
-
-        CharTermAttribute charTermAttribute =
-                tokenStream.addAttribute(CharTermAttribute.class);
-        tokenStream.reset();
-
-        List<String> tokens = new ArrayList<String>();
-
-        while (tokenStream.incrementToken()) {
-            String term = charTermAttribute.toString();
-            tokens.add(term);
-        }
-
-        return tokens.toArray(new String[tokens.size()]);
+        return ANALYZER.analyze(query);
     }
 
 }
@@ -55,6 +55,21 @@ public abstract class QryIop extends Qry {
      */
     protected InvList invertedList = null;
 
+    /**
+     *  The cursor that decodes invertedList for this operator's
+     *  iterators, or null if it hasn't been needed yet.  The inverted
+     *  list may be shared (see initializeFrom), but each operator has
+     *  its own cursor.
+     */
+    private InvList.Cursor cursor = null;
+
+    /**
+     *  The df and ctf that are used for scoring, or -1 if they are the
+     *  inverted list's df and ctf.
+     */
+    private int statDf = -1;
+    private int statCtf = -1;
+
     /**
      *  The index of the document that the docIterator points to now.
      */
@@ -72,9 +87,10 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvancePast(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
-            this.docIteratorIndex++;
+        if (docid == Integer.MAX_VALUE) {
+            this.docIteratorIndex = this.invertedList.df;
+        } else {
+            this.docIteratorIndex = this.docIteratorFind(docid + 1);
         }
 
         this.locIteratorIndex = 0;
@@ -87,20 +103,40 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvanceTo(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
-            this.docIteratorIndex++;
-        }
-
+        this.docIteratorIndex = this.docIteratorFind(docid);
         this.locIteratorIndex = 0;
     }
 
+    /**
+     *  Find the first posting at or after the docIterator whose docid
+     *  is at least the specified docid.  The inverted list's skip
+     *  pointers locate the block that contains it, so skipping far
+     *  ahead in a long inverted list (e.g., when a rare term drives an
+     *  intersection) decodes only that block.
+     *  @param docid The document's internal document id
+     *  @return The index of the posting, or df if there is none.
+     */
+    private int docIteratorFind(int docid) {
+        return this.getCursor().find(this.docIteratorIndex, docid);
+    }
+
+    /**
+     *  Get the cursor for this operator's inverted list.
+     *  @return The cursor.
+     */
+    private InvList.Cursor getCursor() {
+        if (this.cursor == null) {
+            this.cursor = this.invertedList.cursor();
+        }
+        return this.cursor;
+    }
+
     /**
      *  Advance the query operator's internal iterator beyond the
      *  any possible document.
      */
     public void docIteratorFinish() {
-        this.docIteratorIndex = this.invertedList.postings.size();
+        this.docIteratorIndex = this.invertedList.df;
     }
 
     /**
@@ -111,16 +147,37 @@ public abstract class QryIop extends Qry {
      *  @return The internal id of the current document.
      */
     public int docIteratorGetMatch() {
-        return this.invertedList.getDocid(this.docIteratorIndex);
+        return this.getCursor().getDocid(this.docIteratorIndex);
     }
 
     /**
      *  Return the postings for the document that the docIterator points to
      *  now, or throw an error if the docIterator doesn't point at a document.
+     *  This allocates a new object; query operators should use
+     *  docIteratorGetMatchTf and docIteratorGetMatchPosition.
      *  @return A document posting.
      */
     public InvList.DocPosting docIteratorGetMatchPosting() {
-        return this.invertedList.postings.get(docIteratorIndex);
+        return this.getCursor().getPosting(this.docIteratorIndex);
+    }
+
+    /**
+     *  Return the term frequency in the document that the docIterator
+     *  points to now.
+     *  @return The term frequency.
+     */
+    public int docIteratorGetMatchTf() {
+        return this.getCursor().getTf(this.docIteratorIndex);
+    }
+
+    /**
+     *  Return a location in the document that the docIterator points
+     *  to now.
+     *  @param i The index of the location, 0 to tf-1.
+     *  @return The location.
+     */
+    public int docIteratorGetMatchPosition(int i) {
+        return this.getCursor().getPosition(this.docIteratorIndex, i);
     }
 
     /**
@@ -139,7 +196,22 @@ public abstract class QryIop extends Qry {
      *  @return The collection term frequency (ctf).
      */
     public int getCtf() {
-        return this.invertedList.ctf;
+        return (this.statCtf >= 0) ? this.statCtf : this.invertedList.ctf;
+    }
+
+    /**
+     *  Estimate the cost of iterating over this query operator's
+     *  inverted list.  After initialization, the cost is the df.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getCost(RetrievalModel r) throws IOException {
+        if (this.invertedList != null) {
+            return this.invertedList.df;
+        } else {
+            return super.getCost(r);
+        }
     }
 
     /**
@@ -149,7 +221,26 @@ public abstract class QryIop extends Qry {
      *  @return The document frequency (df).
      */
     public int getDf() {
-        return this.invertedList.df;
+        return (this.statDf >= 0) ? this.statDf : this.invertedList.df;
+    }
+
+    /**
+     *  Set the collection statistics that are used for scoring, and
+     *  the idf and average field length that depend on them.  Usually
+     *  they are the df and ctf of the inverted list.  When the inverted
+     *  list covers just one segment of the index, they are the totals
+     *  over all segments, so that scores don't depend on segmentation.
+     *  @param df The document frequency.
+     *  @param ctf The collection term frequency.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void setCollectionStatistics(int df, int ctf) throws IOException {
+        this.statDf = df;
+        this.statCtf = ctf;
+
+        double tmp = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
+        this.idf = tmp > 0 ? tmp : 0;
+        this.avgLen = Idx.getSumOfFieldLengths(this.field) / (double) Idx.getDocCount(this.field);
     }
 
     /**
@@ -167,23 +258,101 @@ public abstract class QryIop extends Qry {
      */
     protected abstract void evaluate() throws IOException;
 
+    /**
+     *  Evaluate the query operator with a retrieval model.  Operators
+     *  that need the model to produce their inverted lists override
+     *  this method.
+     *  @param r A retrieval model
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    protected void evaluate(RetrievalModel r) throws IOException {
+        this.evaluate();
+    }
+
+    /**
+     *  Get a key that identifies this operator's inverted list in the
+     *  postings cache:  the operator, its parameters and the keys of
+     *  its arguments.  Operators whose lists can't be cached return
+     *  null.
+     *  @return The key, or null.
+     */
+    protected String getCacheKey() {
+        return null;
+    }
+
+    /**
+     *  Get a cache key for an operator whose inverted list depends only
+     *  on its arguments' lists.
+     *  @param operator The operator and its parameters, e.g., "#near/3".
+     *  @return The key, or null if an argument's list can't be cached.
+     */
+    protected String getCacheKey(String operator) {
+
+        StringBuilder b = new StringBuilder(operator).append('(');
+
+        for (int i = 0; i < this.args.size(); i++) {
+            String key = ((QryIop) this.args.get(i)).getCacheKey();
+
+            if (key == null)
+                return null;
+            if (i > 0)
+                b.append(' ');
+            b.append(key);
+        }
+
+        return b.append(')').toString();
+    }
+
     /**
      *  Initialize the query operator (and its arguments), including any
      *  internal iterators; this method must be called before iteration
-     *  can begin.
-     *  @param r A retrieval model (that is ignored)
+     *  can begin.  If the operator's inverted list is in the phrase
+     *  index or the postings cache, the arguments, which are only
+     *  needed to produce it, are not initialized.
+     *  @param r A retrieval model
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        //  Initialize the query arguments (if any).
-
-        for (Qry q_i : this.args) {
-            ((QryIop) q_i).initialize(r);
+        PhraseIndex phrases = Idx.getPhraseIndex();
+        PostingsCache cache = Idx.getPostingsCache();
+        String key = ((phrases != null) || (cache != null)) ?
+            this.getCacheKey() : null;
+        InvList cached = null;
+
+        if (key != null) {
+            if (phrases != null)
+                cached = phrases.get(key, this.field);
+            if ((cached == null) && (cache != null))
+                cached = cache.get(key, this.field, Idx.getIndexVersion());
         }
 
-        //  Evaluate the operator.
+        if (cached != null) {
+            this.invertedList = cached;
+            this.cursor = null;
+            this.setCollectionStatistics(cached.df, cached.ctf);
+        } else if (this.isKnownEmpty()) {
 
-        this.evaluate();
+            //  The query optimizer showed that this operator can't match
+            //  any document, so don't materialize its arguments.
+
+            this.invertedList = new InvList(this.field);
+            this.cursor = null;
+        } else {
+
+            //  Initialize the query arguments (if any).
+
+            for (Qry q_i : this.args) {
+                ((QryIop) q_i).initialize(r);
+            }
+
+            //  Evaluate the operator.
+
+            this.evaluate(r);
+            this.cursor = null;
+
+            if ((key != null) && (cache != null))
+                cache.put(key, this.invertedList, Idx.getIndexVersion());
+        }
 
         //  Initialize the internal iterators.
 
@@ -191,6 +360,38 @@ public abstract class QryIop extends Qry {
         this.locIteratorIndex = 0;
     }
 
+    /**
+     *  Initialize the query operator from another instance of the same
+     *  query plan that is already initialized.  The inverted list is
+     *  shared, so the arguments, which were only needed to produce it,
+     *  are not initialized.
+     *  @param other An initialized instance of the same query plan.
+     *  @param r A retrieval model (that is ignored)
+     */
+    public void initializeFrom(Qry other, RetrievalModel r) {
+
+        QryIop o = (QryIop) other;
+
+        this.invertedList = o.invertedList;
+        this.cursor = null;
+        this.idf = o.idf;
+        this.avgLen = o.avgLen;
+        this.statDf = o.statDf;
+        this.statCtf = o.statCtf;
+
+        this.docIteratorIndex = 0;
+        this.locIteratorIndex = 0;
+    }
+
+    /**
+     *  True if the query optimizer recorded that this operator, which
+     *  has arguments, can't match any document.
+     *  @return True if the operator's inverted list must be empty.
+     */
+    protected boolean isKnownEmpty() {
+        return (this.getEstimatedCost() == 0) && (this.args.size() > 0);
+    }
+
     /**
      *  Advance the query operator's internal iterator to the
      *  next location.
@@ -205,11 +406,10 @@ public abstract class QryIop extends Qry {
      *  @param loc The location to advance beyond.
      */
     public void locIteratorAdvancePast(int loc) {
-        int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-        Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+        int tf = this.docIteratorGetMatchTf();
 
         while ((this.locIteratorIndex < tf) &&
-                (positions.get(this.locIteratorIndex) <= loc)) {
+                (this.docIteratorGetMatchPosition(this.locIteratorIndex) <= loc)) {
             locIteratorIndex++;
         }
     }
@@ -219,8 +419,7 @@ public abstract class QryIop extends Qry {
      *  any possible location.
      */
     public void locIteratorFinish() {
-        this.locIteratorIndex =
-                this.invertedList.postings.get(this.docIteratorIndex).tf;
+        this.locIteratorIndex = this.docIteratorGetMatchTf();
     }
 
     /**
@@ -231,8 +430,7 @@ public abstract class QryIop extends Qry {
      *  @return The internal id of the current document.
      */
     public int locIteratorGetMatch() {
-        Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-        return locations.get(this.locIteratorIndex);
+        return this.docIteratorGetMatchPosition(this.locIteratorIndex);
     }
 
     /**
@@ -241,8 +439,7 @@ public abstract class QryIop extends Qry {
      *  @return True if the iterator currently points to a location.
      */
     public boolean locIteratorHasMatch() {
-        return (this.locIteratorIndex <
-                this.invertedList.getTf(this.docIteratorIndex));
+        return (this.locIteratorIndex < this.docIteratorGetMatchTf());
     }
 
 }
@@ -30,6 +30,29 @@ public class QryIopNear extends QryIop {
     //public boolean docIteratorHasMatch (RetrievalModel r) {
    // }
 
+    /**
+     *  Get the distance parameter of this operator.
+     *  @return The distance.
+     */
+    public int getDistance() {
+        return this.dis;
+    }
+
+    /**
+     *  Estimate the cost of iterating over this query operator's
+     *  inverted list.  Before initialization, the estimate is the cost
+     *  of the rarest argument, because every argument must match.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getCost(RetrievalModel r) throws IOException {
+        if (this.invertedList == null)
+            return this.getCostAll(r);
+        else
+            return super.getCost(r);
+    }
+
     /**
      *  Initialize the query operator (and its arguments), including any
      *  internal iterators; this method must be called before iteration
@@ -38,13 +61,27 @@ public class QryIopNear extends QryIop {
      */
     public void initialize(RetrievalModel r) throws IOException {
         super.initialize(r);
+        this.setCollectionStatistics(this.invertedList.df, this.invertedList.ctf);
+    }
 
+    /**
+     *  Evaluate the query operator by merging its arguments' lists.
+     *  @param r A retrieval model
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    protected void evaluate(RetrievalModel r) throws IOException {
+        this.evaluate();
         initializeNear(r);
-        int df = this.invertedList.df;
-        double tmp = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
-        this.idf = tmp > 0 ? tmp : 0;
-        this.avgLen = Idx.getSumOfFieldLengths(this.field) / (double) Idx.getDocCount(this.field);
+        this.invertedList.trimToSize();
+    }
 
+    /**
+     *  Get a key that identifies this operator's inverted list in the
+     *  postings cache.
+     *  @return The key, or null.
+     */
+    protected String getCacheKey() {
+        return this.getCacheKey("#near/" + this.dis);
     }
     /**
     * Initialize the Near's inverted list by merging its parameters'
@@ -58,14 +95,21 @@ public class QryIopNear extends QryIop {
             throw new IllegalArgumentException("Near should have at least two parameters");
         int []pos = new int[size];
         QryIop q = (QryIop)this.args.get(0);
-        while (q.docIteratorHasMatch(r)) {
+
+        //  Only documents that contain every argument can match, so
+        //  intersect the arguments first, driven by the rarest one.
+        //  Positions are still merged in argument order.
+
+        this.docIteratorOrderArgsByCost(r);
+
+        int doc_id;
+        while ((doc_id = this.docIteratorAdvanceArgsToMatchAll(r)) != Qry.INVALID_DOCID) {
             SortedSet<Integer> posSet = new TreeSet<Integer>();
-            int doc_id = q.docIteratorGetMatch(); //get the fist doc_id
-            InvList.DocPosting posting = q.docIteratorGetMatchPosting(); //get the inverted list
+            int tf = q.docIteratorGetMatchTf();
             for (int i = 0; i < size; i ++)
                 pos[i] = 0;
-            for (int i = pos[0]; i < posting.positions.size();) {
-                int tmp = posting.positions.get(i);
+            for (int i = pos[0]; i < tf;) {
+                int tmp = q.docIteratorGetMatchPosition(i);
                 int re = recursiveMerge(tmp, doc_id, 1, r, pos);
                 if (re >= 0) { //re represents the last position of the marged list
                     posSet.add(re);
@@ -82,7 +126,8 @@ public class QryIopNear extends QryIop {
             }
             if (posSet.size() >= 1)
                 this.invertedList.appendPosting(doc_id, new ArrayList<Integer>(posSet));
-            q.docIteratorAdvancePast(doc_id);
+            for (Qry q_i : this.args)
+                q_i.docIteratorAdvancePast(doc_id);
         }
 
     }
@@ -100,11 +145,10 @@ public class QryIopNear extends QryIop {
         q.docIteratorAdvanceTo(doc_id);
         if (!q.docIteratorHasMatch(r) || q.docIteratorGetMatch() != doc_id)
             return -2;
-        InvList.DocPosting postions = q.docIteratorGetMatchPosting();
-        int size = postions.positions.size();
+        int size = q.docIteratorGetMatchTf();
         int i = loopPos[pos];
         for (i = loopPos[pos]; i < size; i ++) {
-            int tmp = postions.positions.get(i);
+            int tmp = q.docIteratorGetMatchPosition(i);
             if (tmp - lastIndex <= this.dis && tmp > lastIndex) {
                 int re = recursiveMerge(tmp, doc_id, pos + 1, r, loopPos);
                 if (re >= 0) {
@@ -9,6 +9,15 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  Get a key that identifies this operator's inverted list in the
+   *  postings cache.
+   *  @return The key, or null.
+   */
+  protected String getCacheKey () {
+    return this.getCacheKey ("#syn");
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -58,9 +67,10 @@ public class QryIopSyn extends QryIop {
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
+          QryIop iop_i = (QryIop) q_i;
+          int tf = iop_i.docIteratorGetMatchTf ();
+          for (int j = 0; j < tf; j++)
+            positions.add (iop_i.docIteratorGetMatchPosition (j));
           q_i.docIteratorAdvancePast (minDocid);
 	}
       }
@@ -69,10 +79,8 @@ public class QryIopSyn extends QryIop {
       this.invertedList.appendPosting (minDocid, positions);
     }
 
-    int df = this.invertedList.df;
-    double tmp = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
-    this.idf = tmp > 0 ? tmp : 0;
-    this.avgLen = Idx.getSumOfFieldLengths(this.field) / (double) Idx.getDocCount(this.field);
+    this.invertedList.trimToSize ();
+    this.setCollectionStatistics(this.invertedList.df, this.invertedList.ctf);
   }
 
 }
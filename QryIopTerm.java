@@ -5,6 +5,8 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.AtomicReaderContext;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
@@ -17,6 +19,18 @@ public class QryIopTerm extends QryIop {
 
     private String term;
 
+    /**
+     *  The df from the term dictionary, looked up on demand so that
+     *  the query optimizer can estimate costs before initialization.
+     */
+    private long dfEstimate = -1;
+
+    /**
+     *  The index segment to read the inverted list from, or null to
+     *  read it from the whole index.
+     */
+    private AtomicReaderContext leaf = null;
+
     /**
      *  The term is assumed to match the body field.
      *  @param termString A term string.
@@ -40,17 +54,62 @@ public class QryIopTerm extends QryIop {
         this.avgLen = 0;
     }
 
+    /**
+     *  Restrict the term's inverted list to one segment of the index.
+     *  This must be called before the operator is initialized.
+     *  @param leaf The segment, or null for the whole index.
+     */
+    public void setLeaf(AtomicReaderContext leaf) {
+        this.leaf = leaf;
+    }
+
+    /**
+     *  Get the term string.
+     *  @return The term string.
+     */
+    public String getTerm() {
+        return this.term;
+    }
+
+    /**
+     *  Estimate the cost of iterating over this term's inverted list.
+     *  Before initialization, the df is read from the term dictionary.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getCost(RetrievalModel r) throws IOException {
+        if (this.invertedList != null) {
+            return super.getCost(r);
+        }
+
+        if (this.dfEstimate < 0) {
+            this.dfEstimate = Idx.getDocFreq(this.field, this.term);
+        }
+
+        return this.dfEstimate;
+    }
+
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
      *  @throws IOException Error accessing the Lucene index.
      */
     protected void evaluate() throws IOException {
-        this.invertedList = new InvList(this.term, this.field);
-        int df = this.invertedList.df;
-        double tmp = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
-        this.idf = tmp > 0 ? tmp : 0;
-        this.avgLen = Idx.getSumOfFieldLengths(this.field) / (double) Idx.getDocCount(this.field);
+        if (this.leaf == null)
+            this.invertedList = new InvList(this.term, this.field);
+        else
+            this.invertedList = new InvList(this.term, this.field, this.leaf);
+        this.setCollectionStatistics(this.invertedList.df, this.invertedList.ctf);
+    }
+
+    /**
+     *  Get a key that identifies this term's inverted list in the
+     *  postings cache.  Lists of one segment are not cached.
+     *  @return The key, or null.
+     */
+    protected String getCacheKey() {
+        return (this.leaf == null) ? (this.term + "." + this.field) : null;
     }
 
     /**
@@ -0,0 +1,425 @@
+/**
+ * Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A query optimizer that rewrites a parsed query tree before it is
+ *  initialized, to make it cheaper to evaluate.  QryEval uses it only
+ *  if optimizeQuery=true.  The rewrites preserve the meaning of the
+ *  query, except that a #SYN that repeats a term counts it once, so
+ *  the scores of such queries change:
+ *  <ul>
+ *  <li>Nested operators of the same type are flattened when the
+ *      operator is associative for the retrieval model, e.g.,
+ *      #AND (a #AND (b c)) becomes #AND (a b c) for the Boolean models,
+ *      #SUM inside #SUM for BM25, and #SYN inside #SYN for any model.
+ *      For Indri, a #WSUM inside a #WSUM (or #WAND inside #WAND) is
+ *      merged into its parent by multiplying the weights through.
+ *  <li>Duplicate arguments are removed where the operator is
+ *      idempotent (#SYN, and Boolean #AND/#OR).  Duplicate arguments of
+ *      #WSUM and #WAND are merged into one argument with the combined
+ *      weight.
+ *  <li>Every node is annotated with an estimated cost from the term
+ *      dictionary (see {@link Qry#getCost}).  A node with cost 0 can't
+ *      match anything; #NEAR and #WINDOW nodes with an argument of
+ *      df 0 are not materialized, and such nodes are dropped from
+ *      disjunctions (#OR, #SUM, #SYN) that have other arguments.
+ *  <li>A #WSUM that scores one term in several fields, e.g.,
+ *      #WSUM (0.3 apple.title 0.7 apple.body), is replaced by a
+ *      {@link QrySopFields} operator, which scores the fields in one
+ *      pass.  For Indri the scores are the same; for BM25, which has
+ *      no #WSUM, the template is scored with BM25F.
+ *  </ul>
+ *  <p>
+ *  The FIELDS rewrite for BM25 is not optional, because BM25 can't
+ *  evaluate the #WSUM; QryEval applies it with {@link #rewriteRequired}
+ *  when queries are not optimized.
+ *  </p>
+ *  <p>
+ *  If a debug log is set, the plan is written to it before and after
+ *  optimization.
+ *  </p>
+ */
+public class QryOptimizer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static PrintStream debugLog = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Write query plans to a log before and after optimization.
+   *  @param log The log, or null to disable logging.
+   */
+  public static void setDebugLog(PrintStream log) {
+    QryOptimizer.debugLog = log;
+  }
+
+  /**
+   *  Optimize a query tree.
+   *  @param q The query tree.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The optimized query tree.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static Qry optimize(Qry q, RetrievalModel r) throws IOException {
+
+    if (debugLog != null) {
+      debugLog.println("Plan before optimization:");
+      debugLog.print(explain(q, r));
+    }
+
+    optimizeNode(q, r);
+    q = rewriteFields(q, r);
+
+    if (debugLog != null) {
+      debugLog.println("Plan after optimization:");
+      debugLog.print(explain(q, r));
+    }
+
+    return q;
+  }
+
+  /**
+   *  Apply only the rewrites that a query needs to be evaluated with a
+   *  retrieval model, without optimizing it:  for BM25, fielded #WSUM
+   *  templates are replaced by FIELDS operators.
+   *  @param q The query tree.
+   *  @param r The retrieval model that the query will be evaluated with.
+   *  @return The rewritten query tree.
+   */
+  public static Qry rewriteRequired(Qry q, RetrievalModel r) {
+    return (r instanceof RetrievalModelBM25) ? rewriteFields(q, r) : q;
+  }
+
+  /**
+   *  Optimize a subtree, bottom up.
+   */
+  private static void optimizeNode(Qry q, RetrievalModel r)
+    throws IOException {
+
+    for (int i = 0; i < q.args.size(); i++)
+      optimizeNode(q.args.get(i), r);
+
+    flattenArgs(q, r);
+    removeDuplicateArgs(q, r);
+    removeEmptyArgs(q, r);
+
+    q.setEstimatedCost(q.getCost(r));
+  }
+
+  /**
+   *  Replace fielded #WSUM templates by FIELDS operators, top down.
+   *  This runs after the other rewrites, so that #WSUM operators are
+   *  flattened the same way whether or not they are templates.
+   *  @return The rewritten subtree.
+   */
+  private static Qry rewriteFields(Qry q, RetrievalModel r) {
+
+    if (isFieldsTemplate(q, r)) {
+      QrySopFields fields = new QrySopFields();
+      List<Double> weights = new ArrayList<Double>();
+
+      fields.setDisplayName("#FIELDS");
+
+      for (int i = 0; i < q.args.size(); i++) {
+        fields.args.add(q.args.get(i).args.get(0));
+        weights.add(((QryWSop) q).getWeight(i));
+      }
+
+      fields.setWeights(weights);
+      fields.setEstimatedCost(q.getEstimatedCost());
+      return fields;
+    }
+
+    for (int i = 0; i < q.args.size(); i++)
+      q.args.set(i, rewriteFields(q.args.get(i), r));
+
+    return q;
+  }
+
+  /**
+   *  True if q is a #WSUM of at least two SCORE operators over the same
+   *  term in different fields, and the model can score it as FIELDS.
+   */
+  private static boolean isFieldsTemplate(Qry q, RetrievalModel r) {
+
+    if (!((q instanceof QrySopWSum) &&
+          ((r instanceof RetrievalModelIndri) ||
+           (r instanceof RetrievalModelBM25)) &&
+          (q.args.size() > 1) &&
+          ((QryWSop) q).hasWeightPerArg()))
+      return false;
+
+    String term = null;
+    Set<String> fields = new HashSet<String>();
+
+    for (Qry q_i : q.args) {
+      if (!((q_i instanceof QrySopScore) &&
+            (q_i.args.get(0) instanceof QryIopTerm)))
+        return false;
+
+      QryIopTerm t = (QryIopTerm) q_i.args.get(0);
+
+      if (term == null)
+        term = t.getTerm();
+      else if (!term.equals(t.getTerm()))
+        return false;
+
+      if (!fields.add(t.getField()))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Replace arguments that have the same type as q by their own
+   *  arguments, when that doesn't change the meaning of q.
+   */
+  private static void flattenArgs(Qry q, RetrievalModel r) {
+
+    boolean weighted = (q instanceof QryWSop);
+
+    if (!isAssociative(q, r) ||
+        (weighted && !((QryWSop) q).hasWeightPerArg()))
+      return;
+
+    ArrayList<Qry> args = new ArrayList<Qry>();
+    ArrayList<Double> weights = new ArrayList<Double>();
+    boolean changed = false;
+
+    for (int i = 0; i < q.args.size(); i++) {
+      Qry q_i = q.args.get(i);
+      double w_i = weighted ? ((QryWSop) q).getWeight(i) : 1.0;
+
+      if ((q_i.getClass() == q.getClass()) &&
+          (q_i.args.size() > 0) &&
+          (!weighted || ((QryWSop) q_i).hasWeightPerArg())) {
+
+        //  #WSUM (w_i #WSUM (v_j a_j ...)) contributes a_j with weight
+        //  w_i * v_j / sum(v).  The same holds for #WAND, where the
+        //  weights are exponents.
+
+        for (int j = 0; j < q_i.args.size(); j++) {
+          args.add(q_i.args.get(j));
+
+          if (weighted) {
+            QryWSop ws = (QryWSop) q_i;
+            weights.add(w_i * ws.getWeight(j) / ws.sumOfWeight);
+          }
+        }
+
+        changed = true;
+      } else {
+        args.add(q_i);
+        weights.add(w_i);
+      }
+    }
+
+    if (changed)
+      replaceArgs(q, args, weights);
+  }
+
+  /**
+   *  Remove arguments that are identical to an earlier argument, when
+   *  that doesn't change the meaning of q.  For #WSUM and #WAND, the
+   *  weight of the duplicate is added to the earlier argument.
+   */
+  private static void removeDuplicateArgs(Qry q, RetrievalModel r) {
+
+    boolean weighted = (q instanceof QryWSop);
+    boolean idempotent =
+      (q instanceof QryIopSyn) ||
+      (isBoolean(r) && ((q instanceof QrySopAnd) || (q instanceof QrySopOr)));
+
+    if (!(idempotent ||
+          (weighted && ((QryWSop) q).hasWeightPerArg() &&
+           (r instanceof RetrievalModelIndri))))
+      return;
+
+    ArrayList<Qry> args = new ArrayList<Qry>();
+    ArrayList<Double> weights = new ArrayList<Double>();
+    Map<String, Integer> seen = new HashMap<String, Integer>();
+
+    for (int i = 0; i < q.args.size(); i++) {
+      Qry q_i = q.args.get(i);
+      String key = signature(q_i);
+      Integer first = seen.get(key);
+
+      if (first == null) {
+        seen.put(key, args.size());
+        args.add(q_i);
+        weights.add(weighted ? ((QryWSop) q).getWeight(i) : 1.0);
+      } else if (weighted) {
+        weights.set(first, weights.get(first) + ((QryWSop) q).getWeight(i));
+      }
+    }
+
+    if (args.size() < q.args.size())
+      replaceArgs(q, args, weights);
+  }
+
+  /**
+   *  Remove arguments that can't match any document from operators
+   *  that match any of their arguments.  The last argument is never
+   *  removed, because an operator without arguments is deleted by
+   *  QryEval.parseQueryCleanup, which could make its parent match
+   *  more documents.
+   */
+  private static void removeEmptyArgs(Qry q, RetrievalModel r)
+    throws IOException {
+
+    boolean disjunctive =
+      (q instanceof QryIopSyn) ||
+      (!(r instanceof RetrievalModelIndri) &&
+       ((q instanceof QrySopOr) || (q instanceof QrySopSum)));
+
+    if (!disjunctive)
+      return;
+
+    for (int i = q.args.size() - 1; i >= 0; i--) {
+      if ((q.args.size() > 1) && (q.args.get(i).getEstimatedCost() == 0))
+        q.removeArg(i);
+    }
+  }
+
+  /**
+   *  True if q (a op (b op c)) == q (a b c) for the retrieval model.
+   */
+  private static boolean isAssociative(Qry q, RetrievalModel r) {
+
+    if (q instanceof QryIopSyn)
+      return true;
+
+    if (isBoolean(r))
+      return (q instanceof QrySopAnd) || (q instanceof QrySopOr);
+
+    if (r instanceof RetrievalModelBM25)
+      return (q instanceof QrySopSum);
+
+    if (r instanceof RetrievalModelIndri)
+      return (q instanceof QrySopWSum) || (q instanceof QrySopWAnd);
+
+    return false;
+  }
+
+  private static boolean isBoolean(RetrievalModel r) {
+    return (r instanceof RetrievalModelUnrankedBoolean) ||
+      (r instanceof RetrievalModelRankedBoolean);
+  }
+
+  /**
+   *  Replace the arguments (and, for weighted operators, the weights)
+   *  of a query operator.
+   */
+  private static void replaceArgs(Qry q, List<Qry> args, List<Double> weights) {
+
+    q.args.clear();
+    q.args.addAll(args);
+
+    if (q instanceof QryWSop)
+      ((QryWSop) q).setWeights(weights);
+  }
+
+  /**
+   *  A string that is the same for two subtrees if and only if they
+   *  are structurally identical.  Display names are ignored.
+   *  @param q The query tree.
+   *  @return The signature.
+   */
+  static String signature(Qry q) {
+
+    StringBuilder b = new StringBuilder();
+    appendSignature(q, b);
+    return b.toString();
+  }
+
+  private static void appendSignature(Qry q, StringBuilder b) {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+      b.append(t.getTerm()).append('.').append(t.getField());
+      return;
+    }
+
+    if (q instanceof QryIopNear) {
+      b.append("#near/").append(((QryIopNear) q).getDistance());
+    } else if (q instanceof QryIopWindow) {
+      b.append("#window/").append(((QryIopWindow) q).getDistance());
+    } else if (q instanceof QryIopSyn) {
+      b.append("#syn");
+    } else if (q instanceof QrySopScore) {
+      b.append("#score");
+    } else if (q instanceof QrySopAnd) {
+      b.append("#and");
+    } else if (q instanceof QrySopOr) {
+      b.append("#or");
+    } else if (q instanceof QrySopSum) {
+      b.append("#sum");
+    } else if (q instanceof QrySopWAnd) {
+      b.append("#wand");
+    } else if (q instanceof QrySopWSum) {
+      b.append("#wsum");
+    } else if (q instanceof QrySopFields) {
+      b.append("#fields");
+    } else {
+      b.append(q.getClass().getName()).append('@')
+        .append(System.identityHashCode(q));
+    }
+
+    boolean weighted =
+      (q instanceof QryWSop) && ((QryWSop) q).hasWeightPerArg();
+
+    b.append('(');
+
+    for (int i = 0; i < q.args.size(); i++) {
+      if (i > 0)
+        b.append(' ');
+      if (weighted)
+        b.append(((QryWSop) q).getWeight(i)).append(' ');
+      appendSignature(q.args.get(i), b);
+    }
+
+    b.append(')');
+  }
+
+  /**
+   *  Describe a query plan, one operator per line, with the estimated
+   *  cost of each operator.
+   *  @param q The query tree.
+   *  @param r The retrieval model.
+   *  @return The plan description.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String explain(Qry q, RetrievalModel r) throws IOException {
+
+    StringBuilder b = new StringBuilder();
+    explain(q, r, "    ", "", b);
+    return b.toString();
+  }
+
+  private static void explain(Qry q, RetrievalModel r, String indent,
+                              String weight, StringBuilder b)
+    throws IOException {
+
+    String name = ((q instanceof QryIopTerm) || (q instanceof QryIopNear)) ?
+      q.toString() : q.getDisplayName();
+    long cost = (q.getEstimatedCost() >= 0) ? q.getEstimatedCost() : q.getCost(r);
+
+    b.append(indent).append(weight).append(name)
+      .append("  [cost ").append(cost).append("]\n");
+
+    boolean weighted =
+      (q instanceof QryWSop) && ((QryWSop) q).hasWeightPerArg();
+
+    for (int i = 0; i < q.args.size(); i++) {
+      String w = weighted ? (((QryWSop) q).getWeight(i) + " ") : "";
+      explain(q.args.get(i), r, indent + "  ", w, b);
+    }
+  }
+}
@@ -0,0 +1,376 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/**
+ *  QryParser converts a query string into a query tree.  It is a
+ *  hand-written lexer and recursive-descent parser that makes one
+ *  pass over the characters of the query, without regular
+ *  expressions or intermediate token strings for delimiters and
+ *  operator tests.
+ *  <p>
+ *  The query language is forgiving, and the parser accepts exactly
+ *  what the original stack-based parser accepted, with the same
+ *  results:
+ *  </p>
+ *  <ul>
+ *  <li>The query is wrapped in the retrieval model's default operator.
+ *  <li>Tokens are separated by whitespace, ',', '(' and ')'.  Only ')'
+ *      matters; an operator's arguments start right after its name.
+ *  <li>A token that contains #near or #window (in any case) is a
+ *      proximity operator, and its distance follows the '/'.
+ *  <li>Inside #wand and #wsum, a weight is expected before each
+ *      argument.  The weights of all open operators share one stack,
+ *      and an operator takes one weight per argument from the top of
+ *      the stack when it is closed.  A term that is analyzed into no
+ *      terms (e.g., a stopword) discards its weight.
+ *  <li>A term may have a field suffix (e.g., apple.title), unless the
+ *      query is a feedback expansion query.  Only url, keywords,
+ *      title, body and inlink are valid.
+ *  <li>If the query ends while an operator is open, the innermost
+ *      open operator is the result.  If the default operator is
+ *      closed before the query ends, the query is an error.
+ *  </ul>
+ *  <p>
+ *  A parser is used for one query.
+ *  </p>
+ */
+public class QryParser {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String[] FIELDS =
+    { "url", "keywords", "title", "body", "inlink" };
+
+  //  Token types.
+
+  private static final int END = 0;
+  private static final int CLOSE = 1;
+  private static final int WORD = 2;
+
+  private final String query;
+  private final String defaultOp;
+  private final boolean expansionQuery;
+
+  //  Lexer state.  The tokens are the default operator, the tokens of
+  //  the query, and a closing ')'.  A WORD token is
+  //  query[tokenStart, tokenEnd).
+
+  private int position = 0;
+  private boolean closePending = true;
+  private int tokenStart;
+  private int tokenEnd;
+
+  //  Parser state.  weights is a stack of the weights of all open
+  //  #wand and #wsum operators.  If truncated is set, the query ended
+  //  while an operator was open.
+
+  private double[] weights = new double[8];
+  private int weightCount = 0;
+  private boolean weightExpected = false;
+  private boolean truncated = false;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a parser for a query.
+   *  @param query The query string.
+   *  @param defaultOp The name of the retrieval model's default
+   *  operator, e.g., "#and".
+   *  @param expansionQuery True if the query is a feedback expansion
+   *  query, whose terms don't have field suffixes.
+   */
+  public QryParser(String query, String defaultOp, boolean expansionQuery) {
+    this.query = query;
+    this.defaultOp = defaultOp;
+    this.expansionQuery = expansionQuery;
+  }
+
+  /**
+   *  Parse the query.
+   *  @return The query tree.
+   *  @throws IOException Error analyzing a query term.
+   */
+  public Qry parse() throws IOException {
+
+    Qry root = this.parseOperator(this.newOperator(this.defaultOp, 0,
+                                                   this.defaultOp.length()));
+
+    if (this.truncated)
+      return root;
+
+    //  The default operator was closed.  Nothing may follow it.
+
+    if ((this.position < this.query.length()) || this.closePending) {
+      throw new IllegalArgumentException
+        ("Error:  Query syntax is incorrect.  " +
+         this.defaultOp + "(" + this.query + ")");
+    }
+
+    return root;
+  }
+
+  /**
+   *  Parse the arguments of an operator, up to its ')'.
+   *  @param op The operator.
+   *  @return The operator, or if the query ends before the operator is
+   *  closed, the innermost open operator.
+   */
+  private Qry parseOperator(Qry op) throws IOException {
+
+    while (true) {
+      int type = this.nextToken();
+
+      if (type == END) {
+        this.truncated = true;
+        return op;
+      }
+
+      if (type == CLOSE) {
+        if (op instanceof QryWSop)
+          this.setWeights((QryWSop) op);
+        return op;
+      }
+
+      Qry arg = this.newOperator(this.query, this.tokenStart, this.tokenEnd);
+
+      if (arg != null) {
+        arg = this.parseOperator(arg);
+
+        if (this.truncated)
+          return arg;
+
+        op.appendArg(arg);
+
+        if (op instanceof QryWSop)
+          this.weightExpected = true;
+      } else {
+        this.parseWeightOrTerm(op);
+      }
+    }
+  }
+
+  /**
+   *  Create the operator that a token names.
+   *  @return The operator, or null if the token isn't an operator.
+   */
+  private Qry newOperator(String s, int start, int end) {
+
+    int length = end - start;
+    Qry op;
+
+    if (equalsIgnoreCase(s, start, length, "#or")) {
+      op = new QrySopOr();
+    } else if (equalsIgnoreCase(s, start, length, "#and")) {
+      op = new QrySopAnd();
+    } else if (equalsIgnoreCase(s, start, length, "#wand")) {
+      op = new QrySopWAnd();
+      this.weightExpected = true;
+    } else if (equalsIgnoreCase(s, start, length, "#sum")) {
+      op = new QrySopSum();
+    } else if (equalsIgnoreCase(s, start, length, "#wsum")) {
+      op = new QrySopWSum();
+      this.weightExpected = true;
+    } else if (containsIgnoreCase(s, start, end, "#near")) {
+      op = new QryIopNear(distance(s, start, end));
+    } else if (containsIgnoreCase(s, start, end, "#window")) {
+      op = new QryIopWindow(distance(s, start, end));
+    } else if (equalsIgnoreCase(s, start, length, "#syn")) {
+      op = new QryIopSyn();
+    } else {
+      return null;
+    }
+
+    op.setDisplayName(s.substring(start, end));
+    return op;
+  }
+
+  /**
+   *  Get the distance of a #near/n or #window/n token.
+   */
+  private static int distance(String s, int start, int end) {
+
+    int delimiter = s.indexOf('/', start);
+
+    if ((delimiter < 0) || (delimiter >= end))
+      throw new IllegalArgumentException("Near Operator needs a parameter");
+
+    return Integer.parseInt(s.substring(delimiter + 1, end));
+  }
+
+  /**
+   *  Process a token that isn't an operator:  a weight, if op is a
+   *  weighted operator that expects one, otherwise a term.
+   */
+  private void parseWeightOrTerm(Qry op) throws IOException {
+
+    String token = this.query.substring(this.tokenStart, this.tokenEnd);
+
+    if ((op instanceof QryWSop) && this.weightExpected) {
+      try {
+        double weight = Double.parseDouble(token);
+
+        if (this.weightCount == this.weights.length)
+          this.weights = Arrays.copyOf(this.weights, 2 * this.weightCount);
+
+        this.weights[this.weightCount++] = weight;
+        this.weightExpected = false;
+        return;
+      } catch (NumberFormatException e) {
+        //  Not a weight, so it is a term.
+      }
+    }
+
+    //  Split the token into a term and a field.
+
+    String term;
+    String field;
+
+    if (this.expansionQuery) {
+      term = token;
+      field = "body";
+    } else {
+      int delimiter = token.indexOf('.');
+
+      if (delimiter < 0) {
+        term = token;
+        field = "body";
+      } else {
+        term = token.substring(0, delimiter);
+        field = null;
+
+        String suffix = token.substring(delimiter + 1).toLowerCase();
+
+        for (String f : FIELDS) {
+          if (f.equals(suffix)) {
+            field = f;
+            break;
+          }
+        }
+
+        if (field == null)
+          throw new IllegalArgumentException("Error: Unknown field " + token);
+      }
+    }
+
+    //  Lexical processing, stopwords, stemming.  A term (e.g.,
+    //  "near-death") may be tokenized into several terms (e.g., "near"
+    //  and "death"), or none.
+
+    String t[] = QryEval.tokenizeQuery(term);
+
+    if (op instanceof QryWSop)
+      this.weightExpected = true;
+
+    for (int j = 0; j < t.length; j++)
+      op.appendArg(new QryIopTerm(t[j], field));
+
+    if ((op instanceof QryWSop) && (t.length == 0))
+      this.popWeight();
+  }
+
+  /**
+   *  Give a weighted operator that is being closed one weight per
+   *  argument from the top of the weight stack.  The weight array is
+   *  stored in reverse order (see QryWSop.getWeight).
+   */
+  private void setWeights(QryWSop op) {
+
+    ArrayList<Double> weightArray = new ArrayList<Double>(op.args.size());
+    double sum = 0;
+
+    for (int i = 0; i < op.args.size(); i++) {
+      double weight = this.popWeight();
+      sum += weight;
+      weightArray.add(weight);
+    }
+
+    op.setWeightArray(weightArray);
+    op.setSumOfWeight(sum);
+  }
+
+  private double popWeight() {
+    if (this.weightCount == 0)
+      throw new EmptyStackException();
+    return this.weights[--this.weightCount];
+  }
+
+  /**
+   *  Advance to the next token that isn't skipped (whitespace, ',' and
+   *  '(').
+   *  @return The token type.
+   */
+  private int nextToken() {
+
+    String s = this.query;
+    int n = s.length();
+    int p = this.position;
+
+    while ((p < n) && isSkipped(s.charAt(p)))
+      p++;
+
+    if (p == n) {
+      this.position = p;
+
+      if (this.closePending) {
+        this.closePending = false;
+        return CLOSE;
+      }
+
+      return END;
+    }
+
+    if (s.charAt(p) == ')') {
+      this.position = p + 1;
+      return CLOSE;
+    }
+
+    this.tokenStart = p;
+
+    while ((p < n) && !isDelimiter(s.charAt(p)))
+      p++;
+
+    this.tokenEnd = p;
+    this.position = p;
+    return WORD;
+  }
+
+  private static boolean isSkipped(char c) {
+    return (c == ' ') || (c == ',') || (c == '(') ||
+      (c == '\t') || (c == '\n') || (c == '\r');
+  }
+
+  private static boolean isDelimiter(char c) {
+    return isSkipped(c) || (c == ')');
+  }
+
+  private static boolean equalsIgnoreCase(String s, int start, int length,
+                                          String name) {
+    return (length == name.length()) &&
+      s.regionMatches(true, start, name, 0, length);
+  }
+
+  /**
+   *  True if s[start, end), lower-cased, contains a lower-case name.
+   *  Lower-casing a non-ASCII character may change the length of the
+   *  string, so such tokens are lower-cased the slow way.
+   */
+  private static boolean containsIgnoreCase(String s, int start, int end,
+                                            String name) {
+
+    for (int i = start; i < end; i++)
+      if (s.charAt(i) >= 0x80)
+        return s.substring(start, end).toLowerCase().contains(name);
+
+    for (int i = start; i + name.length() <= end; i++)
+      if (s.regionMatches(true, i, name, 0, name.length()))
+        return true;
+
+    return false;
+  }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+import org.apache.lucene.index.AtomicReaderContext;
+
+/**
+ *  An immutable query plan:  the structure of a parsed (and usually
+ *  optimized) query tree, without any iteration state.
+ *  <p>
+ *  Query operators (Qry objects) keep their docIterator, locIterator
+ *  and materialized inverted lists in the operator itself, so a Qry
+ *  tree can be evaluated only once, by one thread.  A QryPlan can be
+ *  shared.  Each evaluation calls {@link #instantiate} to get a fresh
+ *  tree of Qry operators that acts as that evaluation's cursors:
+ *  </p>
+ *  <pre>
+ *    QryPlan plan = QryPlan.compile (q);       // Once
+ *    ...
+ *    Qry cursors = plan.instantiate ();         // Per evaluation
+ *    cursors.initialize (r);
+ *    while (cursors.docIteratorHasMatch (r)) ...
+ *  </pre>
+ *  <p>
+ *  Any number of threads may instantiate and evaluate the same plan
+ *  concurrently, and plans may be cached.  The cost estimates
+ *  recorded by the query optimizer are part of the plan, so an
+ *  instantiated tree skips the same empty operators that the
+ *  optimized tree would.
+ *  </p><p>
+ *  Instantiation is a deep copy:  the per-evaluation state (e.g.,
+ *  docIteratorMatchCache, QryIop's docIteratorIndex and
+ *  locIteratorIndex, and the materialized inverted lists) is still
+ *  kept in the operators, not in a separate context, so each
+ *  evaluation, and each partition or segment of a partitioned one,
+ *  allocates a new tree.  It does not parse, optimize, or read the
+ *  index, so it is cheap compared with evaluating the query.
+ *  </p>
+ */
+public final class QryPlan {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The kinds of query operators that a plan can describe.
+   */
+  private enum Op {
+    TERM, SYN, NEAR, WINDOW, SCORE, AND, OR, SUM, WAND, WSUM, FIELDS
+  }
+
+  private final Op op;
+  private final String displayName;
+  private final String term;		// TERM only
+  private final String field;		// QryIop operators only
+  private final int distance;		// NEAR and WINDOW only
+  private final double[] weights;	// WAND, WSUM and FIELDS; in argument order
+  private final long estimatedCost;
+  private final QryPlan[] args;
+
+  //  --------------- Methods ---------------------------------------
+
+  private QryPlan(Op op, Qry q, String term, String field, int distance,
+                  double[] weights, QryPlan[] args) {
+    this.op = op;
+    this.displayName = q.getDisplayName();
+    this.term = term;
+    this.field = field;
+    this.distance = distance;
+    this.weights = weights;
+    this.estimatedCost = q.getEstimatedCost();
+    this.args = args;
+  }
+
+  /**
+   *  Make a plan from a query tree.  The tree should be in its final
+   *  form (i.e., cleaned up and optimized), and it should not have
+   *  been initialized.  The tree is not modified.
+   *  @param q The query tree.
+   *  @return The plan, or null if q is null.
+   *  @throws IllegalArgumentException The tree contains an operator
+   *    that plans don't support.
+   */
+  public static QryPlan compile(Qry q) {
+
+    if (q == null)
+      return null;
+
+    QryPlan[] args = new QryPlan[q.args.size()];
+
+    for (int i = 0; i < args.length; i++)
+      args[i] = compile(q.args.get(i));
+
+    String field = (q instanceof QryIop) ? ((QryIop) q).getField() : null;
+    double[] weights = null;
+
+    if (q instanceof QryWSop) {
+      QryWSop w = (QryWSop) q;
+
+      if (!w.hasWeightPerArg()) {
+        throw new IllegalArgumentException
+          ("Can't plan " + q.getDisplayName() +
+           ":  the number of weights and arguments differ.");
+      }
+
+      weights = new double[args.length];
+
+      for (int i = 0; i < weights.length; i++)
+        weights[i] = w.getWeight(i);
+    }
+
+    if (q instanceof QryIopTerm) {
+      return new QryPlan(Op.TERM, q, ((QryIopTerm) q).getTerm(), field, 0,
+                         null, args);
+    } else if (q instanceof QryIopSyn) {
+      return new QryPlan(Op.SYN, q, null, field, 0, null, args);
+    } else if (q instanceof QryIopNear) {
+      return new QryPlan(Op.NEAR, q, null, field,
+                         ((QryIopNear) q).getDistance(), null, args);
+    } else if (q instanceof QryIopWindow) {
+      return new QryPlan(Op.WINDOW, q, null, field,
+                         ((QryIopWindow) q).getDistance(), null, args);
+    } else if (q instanceof QrySopScore) {
+      return new QryPlan(Op.SCORE, q, null, null, 0, null, args);
+    } else if (q instanceof QrySopAnd) {
+      return new QryPlan(Op.AND, q, null, null, 0, null, args);
+    } else if (q instanceof QrySopOr) {
+      return new QryPlan(Op.OR, q, null, null, 0, null, args);
+    } else if (q instanceof QrySopSum) {
+      return new QryPlan(Op.SUM, q, null, null, 0, null, args);
+    } else if (q instanceof QrySopWAnd) {
+      return new QryPlan(Op.WAND, q, null, null, 0, weights, args);
+    } else if (q instanceof QrySopWSum) {
+      return new QryPlan(Op.WSUM, q, null, null, 0, weights, args);
+    } else if (q instanceof QrySopFields) {
+      return new QryPlan(Op.FIELDS, q, null, null, 0, weights, args);
+    } else {
+      throw new IllegalArgumentException
+        ("Can't plan query operators of type " + q.getClass().getName());
+    }
+  }
+
+  /**
+   *  Create a new, uninitialized query tree for one evaluation of
+   *  the plan.
+   *  @return The query tree.
+   */
+  public Qry instantiate() {
+    return this.instantiate(null);
+  }
+
+  /**
+   *  Create a new, uninitialized query tree for one evaluation of
+   *  the plan over one segment (leaf) of the index.  Its inverted
+   *  lists contain only that segment's postings, and its df and ctf
+   *  are the segment's; see {@link QryIop#setCollectionStatistics}.
+   *  @param leaf The segment, or null for the whole index.
+   *  @return The query tree.
+   */
+  public Qry instantiate(AtomicReaderContext leaf) {
+
+    Qry q;
+
+    switch (this.op) {
+    case TERM:
+      q = new QryIopTerm(this.term, this.field);
+      ((QryIopTerm) q).setLeaf(leaf);
+      break;
+    case SYN:    q = new QryIopSyn(); break;
+    case NEAR:   q = new QryIopNear(this.distance); break;
+    case WINDOW: q = new QryIopWindow(this.distance); break;
+    case SCORE:  q = new QrySopScore(); break;
+    case AND:    q = new QrySopAnd(); break;
+    case OR:     q = new QrySopOr(); break;
+    case SUM:    q = new QrySopSum(); break;
+    case WAND:   q = new QrySopWAnd(); break;
+    case WSUM:   q = new QrySopWSum(); break;
+    case FIELDS: q = new QrySopFields(); break;
+    default:
+      throw new IllegalStateException("Unknown operator " + this.op);
+    }
+
+    q.setDisplayName(this.displayName);
+    q.setEstimatedCost(this.estimatedCost);
+
+    if (q instanceof QryIop)
+      ((QryIop) q).field = this.field;
+
+    //  The plan was compiled from a well-formed tree, so the arguments
+    //  are added directly; appendArg's checks and implied SCORE
+    //  operators are already reflected in the plan.
+
+    q.args.ensureCapacity(this.args.length);
+
+    for (int i = 0; i < this.args.length; i++)
+      q.args.add(this.args[i].instantiate(leaf));
+
+    if (this.weights != null) {
+      List<Double> w = new ArrayList<Double>(this.weights.length);
+
+      for (int i = 0; i < this.weights.length; i++)
+        w.add(this.weights[i]);
+
+      ((QryWSop) q).setWeights(w);
+    }
+
+    return q;
+  }
+
+  /**
+   *  Get a string version of this plan, in query syntax.  Two plans
+   *  with the same structure have the same string, so it can be used
+   *  as a cache key.
+   *  @return The string version of this plan.
+   */
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder();
+    this.toString(b);
+    return b.toString();
+  }
+
+  private void toString(StringBuilder b) {
+
+    if (this.op == Op.TERM) {
+      b.append(this.term).append('.').append(this.field);
+      return;
+    }
+
+    b.append('#').append(this.op.name().toLowerCase());
+
+    if ((this.op == Op.NEAR) || (this.op == Op.WINDOW))
+      b.append('/').append(this.distance);
+
+    b.append('(');
+
+    for (int i = 0; i < this.args.length; i++) {
+      if (i > 0)
+        b.append(' ');
+      if (this.weights != null)
+        b.append(this.weights[i]).append(' ');
+      this.args[i].toString(b);
+    }
+
+    b.append(')');
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  QryServer is a resident query server.  It opens the index once and
+ *  then answers queries until it is stopped, so the IndexReader,
+ *  DocLengthStore, DocidTable and JIT stay warm between queries.
+ *  <p>
+ *  Usage:  java QryServer paramFile
+ *  </p>
+ *  <p>
+ *  The parameter file uses the QryEval syntax.  indexPath and
+ *  retrievalAlgorithm (and the model's parameters) are required;
+ *  queryFilePath and trecEvalOutputPath are ignored.  If there is a
+ *  warmupQueryFile (see IndexWarmer), warm-up finishes before the
+ *  first request is read.  Additional parameters:
+ *  </p>
+ *  <ul>
+ *  <li>serverPort:  Listen on this port of the loopback interface.  If
+ *      it is not set, requests are read from stdin and responses are
+ *      written to stdout.
+ *  <li>serverThreads:  The number of queries that are evaluated
+ *      concurrently.  The default is the number of processors.
+ *  <li>serverFormat:  trec (default) or json.
+ *  <li>serverPlanCacheSize:  The number of query plans to cache
+ *      (default 1024), so that repeated queries are not parsed and
+ *      optimized again.  0 disables the cache.
+ *  </ul>
+ *  <p>
+ *  Each request is one line in the query file format, qid:query.  It
+ *  may be preceded by whitespace-separated name=value parameters
+ *  that override the server's retrieval model parameters or format
+ *  for that request, e.g.,
+ *  </p>
+ *  <pre>
+ *  retrievalAlgorithm=BM25 BM25:k_1=1.2 BM25:b=0.75 BM25:k_3=0 format=json 10:obama family tree
+ *  </pre>
+ *  <p>
+ *  A trec response is the trec_eval lines that QryEval would write,
+ *  followed by an empty line.  A json response is a single line.
+ *  Requests on one connection are evaluated concurrently, but their
+ *  responses are written in request order.  Query expansion (fb) is
+ *  not supported in server mode.
+ *  </p>
+ */
+public class QryServer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java QryServer paramFile\n\n";
+
+  /**
+   *  The maximum number of requests from one connection that may be
+   *  waiting for evaluation or output.
+   */
+  private static final int MAX_PENDING = 1024;
+
+  private static final Set<String> MODEL_PARAMETERS = new HashSet<String>(
+    Arrays.asList("retrievalAlgorithm", "BM25:k_1", "BM25:b", "BM25:k_3",
+                  "BM25:lengthBuckets", "Indri:mu", "Indri:lambda",
+                  "Indri:logSpace", "Indri:lengthBuckets"));
+
+  /**
+   *  A marker that ends a connection's queue of pending responses.
+   */
+  private static final Future<String> END_OF_REQUESTS =
+    new FutureTask<String>(new Callable<String>() {
+        public String call() {
+          return null;
+        }
+      });
+
+  private final Map<String, String> parameters;
+  private final RetrievalModel model;
+  private final String format;
+  private final ExecutorService workers;
+
+  /**
+   *  Recently used query plans, keyed by index version, retrieval
+   *  model class and query string.  Access is synchronized on the map.
+   */
+  private final Map<String, QryPlan> plans;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+    if (!(parameters.containsKey("indexPath") &&
+          parameters.containsKey("retrievalAlgorithm"))) {
+      throw new IllegalArgumentException
+        ("Required parameters were missing from the parameter file.");
+    }
+
+    if (parameters.containsKey("fb") &&
+        !parameters.get("fb").toLowerCase().equals("false")) {
+      throw new IllegalArgumentException
+        ("Query expansion (fb) is not supported in server mode.");
+    }
+
+    RetrievalModel model = QryEval.initialize(parameters);
+    String warmup = QryEval.awaitWarmup();
+
+    if (warmup != null)
+      System.err.println(warmup);
+
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    if (parameters.containsKey("serverThreads"))
+      threads = Integer.parseInt(parameters.get("serverThreads"));
+
+    QryServer server = new QryServer(parameters, model, threads);
+
+    try {
+      if (parameters.containsKey("serverPort")) {
+        server.listen(Integer.parseInt(parameters.get("serverPort")));
+      } else {
+        server.serve(new InputStreamReader(System.in, "UTF-8"),
+                     new OutputStreamWriter(System.out, "UTF-8"));
+      }
+    } finally {
+      server.shutdown();
+      QryEval.saveResultCache();
+    }
+  }
+
+  /**
+   *  @param parameters The server's parameters.
+   *  @param model The default retrieval model.
+   *  @param threads The number of queries to evaluate concurrently.
+   */
+  public QryServer(Map<String, String> parameters, RetrievalModel model,
+                   int threads) {
+
+    this.parameters = parameters;
+    this.model = model;
+    this.workers = Executors.newFixedThreadPool(Math.max(1, threads));
+
+    if (parameters.containsKey("serverFormat"))
+      this.format = parameters.get("serverFormat").toLowerCase();
+    else
+      this.format = "trec";
+
+    final int planCacheSize =
+      parameters.containsKey("serverPlanCacheSize") ?
+      Integer.parseInt(parameters.get("serverPlanCacheSize")) : 1024;
+
+    this.plans = new LinkedHashMap<String, QryPlan>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, QryPlan> e) {
+          return size() > planCacheSize;
+        }
+      };
+  }
+
+  /**
+   *  Accept connections on a loopback port until the process is
+   *  stopped.  Each connection is served by its own thread.
+   *  @param port The port.
+   *  @throws IOException Unable to listen on the port.
+   */
+  public void listen(int port) throws IOException {
+
+    ServerSocket listener =
+      new ServerSocket(port, 50, InetAddress.getByName(null));
+    ExecutorService connections = Executors.newCachedThreadPool();
+
+    System.err.println("QryServer listening on port " + listener.getLocalPort());
+
+    try {
+      while (true) {
+        final Socket socket = listener.accept();
+
+        connections.execute(new Runnable() {
+            public void run() {
+              try {
+                serve(new InputStreamReader(socket.getInputStream(), "UTF-8"),
+                      new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+              } catch (IOException ex) {
+                ex.printStackTrace();
+              } finally {
+                try {
+                  socket.close();
+                } catch (IOException ex) {
+                  //  Nothing else to do.
+                }
+              }
+            }
+          });
+      }
+    } finally {
+      connections.shutdownNow();
+      listener.close();
+    }
+  }
+
+  /**
+   *  Answer requests from a stream until it ends.  Requests are
+   *  evaluated by the worker pool; a separate thread writes the
+   *  responses in request order.
+   *  @param in Where requests are read.
+   *  @param out Where responses are written.
+   *  @throws IOException Error reading requests.
+   */
+  public void serve(Reader in, Writer out) throws IOException {
+
+    final BlockingQueue<Future<String>> pending =
+      new ArrayBlockingQueue<Future<String>>(MAX_PENDING);
+    final PrintWriter output = new PrintWriter(new BufferedWriter(out));
+
+    Thread responder = new Thread(new Runnable() {
+        public void run() {
+          try {
+            Future<String> response;
+
+            while ((response = pending.take()) != END_OF_REQUESTS) {
+              output.print(getResponse(response));
+
+              //  Flush when the client has nothing else coming soon,
+              //  so that interactive clients see each answer at once.
+
+              if (pending.isEmpty())
+                output.flush();
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          } finally {
+            output.flush();
+          }
+        }
+      }, "QryServer-responder");
+
+    responder.start();
+
+    BufferedReader input = new BufferedReader(in);
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        if (line.trim().length() == 0)
+          continue;
+
+        final String request = line;
+
+        pending.put(this.workers.submit(new Callable<String>() {
+            public String call() {
+              return processRequest(request);
+            }
+          }));
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        pending.put(END_OF_REQUESTS);
+        responder.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   *  Stop the worker pool.  Queries that are already running finish.
+   */
+  public void shutdown() {
+    this.workers.shutdown();
+  }
+
+  /**
+   *  Evaluate one request and format the response.  Errors are
+   *  reported in the response, so that one bad request doesn't end
+   *  the connection.
+   *  @param line The request.
+   *  @return The response.
+   */
+  String processRequest(String line) {
+
+    String qid = "";
+    String format = this.format;
+
+    try {
+
+      //  Leading name=value tokens are request parameters.  A qid
+      //  never contains '=', so the first token without one starts
+      //  the query.
+
+      Map<String, String> options = new HashMap<String, String>();
+      int start = 0;
+
+      while (true) {
+        while ((start < line.length()) && Character.isWhitespace(line.charAt(start)))
+          start++;
+
+        int end = start;
+
+        while ((end < line.length()) && !Character.isWhitespace(line.charAt(end)))
+          end++;
+
+        int eq = line.indexOf('=', start);
+
+        if ((eq < 0) || (eq >= end))
+          break;
+
+        options.put(line.substring(start, eq), line.substring(eq + 1, end));
+        start = end;
+      }
+
+      if (options.containsKey("format"))
+        format = options.get("format").toLowerCase();
+
+      int d = line.indexOf(':', start);
+
+      if (d < 0) {
+        throw new IllegalArgumentException
+          ("Syntax error:  Missing ':' in query line.");
+      }
+
+      qid = line.substring(start, d).trim();
+
+      String query = line.substring(d + 1);
+      RetrievalModel model = getRetrievalModel(options);
+
+      //  The request uses one version of the index, even if the index
+      //  is refreshed while it runs.
+
+      Idx.Generation g = Idx.acquire();
+      Idx.Generation previous = Idx.pin(g);
+
+      try {
+        ScoreList r = QryEval.doQuery(getPlan(query, model), model);
+
+        if (r == null)
+          r = new ScoreList();
+
+        return formatResults(qid, r, format);
+      } finally {
+        Idx.pin(previous);
+        Idx.release(g);
+      }
+    } catch (Exception ex) {
+      return formatError(qid, ex, format);
+    }
+  }
+
+  /**
+   *  Get the retrieval model for a request.  If the request doesn't
+   *  override any model parameters, the server's model is used.
+   */
+  private RetrievalModel getRetrievalModel(Map<String, String> options)
+    throws IOException {
+
+    if (Collections.disjoint(options.keySet(), MODEL_PARAMETERS))
+      return this.model;
+
+    Map<String, String> p = new HashMap<String, String>(this.parameters);
+
+    for (String name : MODEL_PARAMETERS) {
+      if (options.containsKey(name))
+        p.put(name, options.get(name));
+    }
+
+    return QryEval.initializeRetrievalModel(p);
+  }
+
+  /**
+   *  Get the plan for a query, from the cache if possible.  The plan
+   *  depends on the retrieval model's class (its default operator and
+   *  optimization rules), but not on its parameters.  It depends on
+   *  the index too, because the optimizer uses term statistics.
+   */
+  private QryPlan getPlan(String query, RetrievalModel model)
+    throws IOException {
+
+    String key = Idx.getIndexVersion() + "\t" + model.getClass().getName() +
+      '\t' + query;
+    QryPlan plan;
+
+    synchronized (this.plans) {
+      plan = this.plans.get(key);
+    }
+
+    if (plan == null) {
+      plan = QryEval.compileQuery(query, model);
+
+      synchronized (this.plans) {
+        this.plans.put(key, plan);
+      }
+    }
+
+    return plan;
+  }
+
+  /**
+   *  Format the results of a query.
+   */
+  private static String formatResults(String qid, ScoreList r, String format)
+    throws IOException {
+
+    StringWriter s = new StringWriter();
+    PrintWriter out = new PrintWriter(s);
+
+    if (format.equals("json")) {
+      r.selectTop(100);
+
+      out.print("{\"qid\":" + jsonString(qid) + ",\"results\":[");
+
+      for (int i = 0; i < r.size(); i++) {
+        if (i > 0)
+          out.print(',');
+        out.print("{\"docid\":" + jsonString(r.getExternalDocid(i)) +
+                  ",\"rank\":" + (i + 1) +
+                  ",\"score\":" + String.format("%.12f", r.getDocidScore(i)) + "}");
+      }
+
+      out.print("]}\n");
+    } else {
+      QryEval.printTrecEvalResults(qid, r, out);
+      out.print('\n');
+    }
+
+    out.flush();
+    return s.toString();
+  }
+
+  /**
+   *  Format an error response.
+   */
+  private static String formatError(String qid, Exception ex, String format) {
+
+    String message = ex.getClass().getName() +
+      ((ex.getMessage() != null) ? (": " + ex.getMessage()) : "");
+
+    if (format.equals("json"))
+      return "{\"qid\":" + jsonString(qid) + ",\"error\":" + jsonString(message) + "}\n";
+    else
+      return "# " + qid + " error: " + message.replace('\n', ' ') + "\n\n";
+  }
+
+  /**
+   *  Wait for a response.  A request that failed outside of
+   *  processRequest still gets an error response.
+   */
+  private String getResponse(Future<String> response)
+    throws InterruptedException {
+
+    try {
+      return response.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      Exception e = (cause instanceof Exception) ? (Exception) cause : ex;
+      return formatError("", e, this.format);
+    }
+  }
+
+  /**
+   *  Quote a string for JSON.
+   */
+  private static String jsonString(String s) {
+
+    if (s == null)
+      return "null";
+
+    StringBuilder b = new StringBuilder(s.length() + 2);
+    b.append('"');
+
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+
+      switch (c) {
+      case '"':  b.append("\\\""); break;
+      case '\\': b.append("\\\\"); break;
+      case '\n': b.append("\\n"); break;
+      case '\r': b.append("\\r"); break;
+      case '\t': b.append("\\t"); break;
+      default:
+        if (c < 0x20)
+          b.append(String.format("\\u%04x", (int) c));
+        else
+          b.append(c);
+      }
+    }
+
+    return b.append('"').toString();
+  }
+}
@@ -38,4 +38,25 @@ public abstract class QrySop extends Qry {
   }
 
   public abstract double getDefaultScore(RetrievalModel r, int docid) throws IOException;
+
+  /**
+   *  The compiled Indri default scores of this operator's arguments,
+   *  or null if they haven't been needed yet.
+   */
+  private IndriDefaultScorer indriDefaults = null;
+
+  /**
+   *  Get the compiled Indri default scores of this operator's
+   *  arguments.  They are compiled on first use, after the arguments'
+   *  collection statistics are final.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The compiled default scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected IndriDefaultScorer getIndriDefaults(RetrievalModel r) throws IOException {
+    if ((this.indriDefaults == null) || (this.indriDefaults.getModel() != r)) {
+      this.indriDefaults = new IndriDefaultScorer(this, (RetrievalModelIndri) r);
+    }
+    return this.indriDefaults;
+  }
 }
@@ -21,6 +21,34 @@ public class QrySopAnd extends QrySop {
             return this.docIteratorHasMatchAll(r);
     }
 
+    /**
+     *  Initialize the query operator (and its arguments).  For the
+     *  Boolean retrieval models, AND is an intersection, so it is driven
+     *  from its rarest argument.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        if (!(r instanceof RetrievalModelIndri))
+            this.docIteratorOrderArgsByCost(r);
+    }
+
+    /**
+     *  Estimate the cost of iterating over the documents that this
+     *  query operator matches.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public long getCost(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelIndri)
+            return super.getCost(r);
+        else
+            return this.getCostAll(r);
+    }
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -47,13 +75,7 @@ public class QrySopAnd extends QrySop {
      *  @throws IOException Error accessing the Lucene index
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        double lambda = ((RetrievalModelIndri) r).lambda;
-        double mu = ((RetrievalModelIndri) r).mu;
-        double score = 1.0;
-        for (Qry q_i : this.args) {
-            score *= ((QrySop)q_i).getDefaultScore(r, docid);
-        }
-        return Math.pow(score, 1.0 / this.args.size());
+        return this.getIndriDefaults(r).getDefaultScore(docid);
     }
 
     /**
@@ -98,16 +120,43 @@ public class QrySopAnd extends QrySop {
      *  @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri(RetrievalModel r) throws IOException {
+        if (((RetrievalModelIndri) r).logSpace)
+            return this.getScoreIndriLog(r);
+
         double score = 1;
         int docid = this.docIteratorGetMatch();
-        for (Qry q_i : this.args) {
+        IndriDefaultScorer defaults = this.getIndriDefaults(r);
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
             if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
                 score *= ((QrySop) q_i).getScore(r);
             else
-                score *= ((QrySop) q_i).getDefaultScore(r, docid);
+                score *= defaults.getArgDefaultScore(i, docid);
         }
         return Math.pow(score, 1.0 / this.args.size());
     }
 
-}
+    /**
+     *  getScore for the Indri retrieval model with log-space scores:
+     *  the mean of the arguments' log probabilities, which is the log
+     *  of the geometric mean that getScoreIndri computes.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getScoreIndriLog(RetrievalModel r) throws IOException {
+        double score = 0;
+        double weight = 1.0 / this.args.size();
+        int docid = this.docIteratorGetMatch();
+        IndriDefaultScorer defaults = this.getIndriDefaults(r);
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
+            if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
+                score += weight * ((QrySop) q_i).getScore(r);
+            else
+                score += weight * defaults.getArgDefaultScore(i, docid);
+        }
+        return score;
+    }
 
+}
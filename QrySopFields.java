@@ -0,0 +1,507 @@
+/**
+ * Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ *  The FIELDS operator scores one term in several fields of a
+ *  document, e.g., #WSUM (0.1 apple.url 0.2 apple.title 0.7 apple.body).
+ *  Its arguments are the term's inverted lists, one per field, and it
+ *  has one weight per field.  The query optimizer rewrites fielded
+ *  #WSUM templates into this operator (see QryOptimizer).
+ *  <p>
+ *  A #WSUM template has a SCORE operator per field, and each one
+ *  checks its own iterator and looks up its own field length by name.
+ *  This operator walks the fields' inverted lists together, reads each
+ *  field's length from an array of doc values, and computes each
+ *  field's scoring constants once.
+ *  </p><p>
+ *  For the Indri model, the score is the weighted sum of the fields'
+ *  smoothed probabilities, computed in the same order as #WSUM, so
+ *  scores are unchanged.  For BM25, the score is BM25F:  each field's
+ *  tf is normalized by the field's length, the normalized tfs are
+ *  combined with the weights (divided by their sum), and the result is
+ *  saturated once with k_1.  The idf uses the largest df of the term
+ *  in any field, a lower bound of the number of documents that
+ *  contain it in some field.
+ *  </p>
+ */
+public class QrySopFields extends QryWSop {
+
+    /**
+     *  The Indri model that the Indri constants were computed for, or
+     *  null if they haven't been computed yet.  Like QrySopScore, they
+     *  are computed on first use, after the ctfs are final.
+     */
+    private RetrievalModelIndri indriModel = null;
+    private double[] indriMuMle;			// mu * mle
+    private double[] indriLambdaMle;		// lambda * mle
+    private double[] indriDefaultNumerator;	// (1 - lambda) * mu * mle
+
+    /**
+     *  The BM25 model that the BM25 constants were computed for, or
+     *  null if they haven't been computed yet.
+     */
+    private RetrievalModelBM25 bm25Model = null;
+    private double bm25Idf;
+
+    /**
+     *  Field lengths for exact scoring, or length buckets and lookup
+     *  tables for approximate scoring (lengthBuckets > 0), by field.
+     */
+    private NumericDocValues[] fieldLengths = null;
+    private DocLengthBuckets[] lengthBuckets = null;
+    private double[][] indriTfScale = null;	// (1 - lambda) / (len + mu)
+    private double[][] indriDefault = null;	// The default score
+    private double[][] indriLogDefault = null;	// log (indriDefault), if logSpace
+    private double[][] bm25Norm = null;		// 1 - b + b * len / avgLen
+
+    /**
+     *  Scratch space for the fields' log-space scores.
+     */
+    private double[] logScores = null;
+
+    /**
+     *  The merged cursor:  the docid that each field's iterator points
+     *  to (Integer.MAX_VALUE when it is exhausted), and the smallest of
+     *  them.  null until the first match is requested.  Only fields
+     *  that are behind are advanced, and a match doesn't ask every
+     *  field for its docid again.
+     */
+    private int[] fieldDocid = null;
+    private int matchDocid;
+
+    /**
+     *  Indicates whether the query has a match:  the smallest docid
+     *  that any field matches.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True if the query matches, otherwise false.
+     */
+    public boolean docIteratorHasMatch(RetrievalModel r) {
+
+        if (this.fieldDocid == null) {
+            this.fieldDocid = new int[this.args.size()];
+
+            for (int f = 0; f < this.fieldDocid.length; f++)
+                this.updateField(f);
+
+            this.updateMatch();
+        }
+
+        return (this.matchDocid != Integer.MAX_VALUE);
+    }
+
+    /**
+     *  Return the id of the document that the iterator points to now.
+     *  @return The internal id of the current document.
+     */
+    @Override
+    public int docIteratorGetMatch() {
+        if ((this.fieldDocid == null) || (this.matchDocid == Integer.MAX_VALUE))
+            throw new IllegalStateException("No matching docid was cached.");
+        return this.matchDocid;
+    }
+
+    /**
+     *  Advance the internal document iterator beyond the specified
+     *  document.
+     *  @param docid An internal document id.
+     */
+    @Override
+    public void docIteratorAdvancePast(int docid) {
+
+        if (this.fieldDocid == null) {
+            super.docIteratorAdvancePast(docid);
+            return;
+        }
+
+        for (int f = 0; f < this.fieldDocid.length; f++) {
+            if (this.fieldDocid[f] <= docid) {
+                this.getArg(f).docIteratorAdvancePast(docid);
+                this.updateField(f);
+            }
+        }
+
+        this.updateMatch();
+    }
+
+    /**
+     *  Advance the internal document iterator to the specified
+     *  document, or beyond if it doesn't.
+     *  @param docid An internal document id.
+     */
+    @Override
+    public void docIteratorAdvanceTo(int docid) {
+
+        if (this.fieldDocid == null) {
+            super.docIteratorAdvanceTo(docid);
+            return;
+        }
+
+        for (int f = 0; f < this.fieldDocid.length; f++) {
+            if (this.fieldDocid[f] < docid) {
+                this.getArg(f).docIteratorAdvanceTo(docid);
+                this.updateField(f);
+            }
+        }
+
+        this.updateMatch();
+    }
+
+    private void updateField(int f) {
+        QryIop q = this.getArg(f);
+        this.fieldDocid[f] = q.docIteratorHasMatch(null) ?
+            q.docIteratorGetMatch() : Integer.MAX_VALUE;
+    }
+
+    private void updateMatch() {
+        int min = Integer.MAX_VALUE;
+        for (int f = 0; f < this.fieldDocid.length; f++)
+            if (this.fieldDocid[f] < min)
+                min = this.fieldDocid[f];
+        this.matchDocid = min;
+    }
+
+    /**
+     *  Initialize the query operator (and its arguments), including any
+     *  internal iterators.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    @Override
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.fieldDocid = null;
+    }
+
+    /**
+     *  Initialize the query operator from another instance of the same
+     *  query plan that is already initialized.
+     *  @param other An initialized instance of the same query plan.
+     *  @param r A retrieval model that guides initialization
+     */
+    @Override
+    public void initializeFrom(Qry other, RetrievalModel r) {
+        super.initializeFrom(other, r);
+        this.fieldDocid = null;
+    }
+
+    /**
+     *  Get a score for the document that docIteratorHasMatch matched.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getScore(RetrievalModel r) throws IOException {
+
+        if (r instanceof RetrievalModelIndri) {
+            return this.getScoreIndri((RetrievalModelIndri) r);
+        } else if (r instanceof RetrievalModelBM25) {
+            return this.getScoreBM25((RetrievalModelBM25) r);
+        } else {
+            throw new IllegalArgumentException
+                    (r.getClass().getName() + " doesn't support the FIELDS operator.");
+        }
+    }
+
+    /**
+     *  Get a default score for the document.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
+
+        if (!(r instanceof RetrievalModelIndri))
+            return 0;
+
+        RetrievalModelIndri indri = (RetrievalModelIndri) r;
+        this.setIndriConstants(indri);
+
+        int n = this.args.size();
+
+        if (indri.logSpace) {
+            for (int f = 0; f < n; f++)
+                this.logScores[f] = this.getIndriFieldDefault(indri, f, docid);
+            return QrySopWSum.logWeightedSum(this.logScores, 0,
+                                             this.getNormalizedWeights(), 0, n);
+        }
+
+        double score = 0.0;
+        for (int f = 0; f < n; f++)
+            score += (this.getIndriFieldDefault(indri, f, docid) *
+                      this.getWeight(f) / this.sumOfWeight);
+        return score;
+    }
+
+    /**
+     *  getScore for the Indri model.
+     *  @param r The Indri retrieval model.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getScoreIndri(RetrievalModelIndri r) throws IOException {
+
+        this.setIndriConstants(r);
+
+        int docid = this.docIteratorGetMatch();
+        int n = this.args.size();
+        double score = 0.0;
+
+        for (int f = 0; f < n; f++) {
+            double p;
+
+            if (this.fieldDocid[f] == docid) {
+                double tf = this.getArg(f).docIteratorGetMatchTf();
+
+                if (this.lengthBuckets != null) {
+                    int b = this.lengthBuckets[f].getBucket(docid);
+                    p = tf * this.indriTfScale[f][b] + this.indriDefault[f][b];
+                } else {
+                    double docLen = (int) this.fieldLengths[f].get(docid);
+                    p = (1 - r.lambda) * (tf + this.indriMuMle[f]) / ((docLen) + r.mu) + this.indriLambdaMle[f];
+                }
+
+                if (r.logSpace)
+                    p = Math.log(p);
+            } else {
+                p = this.getIndriFieldDefault(r, f, docid);
+            }
+
+            if (r.logSpace)
+                this.logScores[f] = p;
+            else
+                score += (p * this.getWeight(f) / this.sumOfWeight);
+        }
+
+        if (r.logSpace)
+            return QrySopWSum.logWeightedSum(this.logScores, 0,
+                                             this.getNormalizedWeights(), 0, n);
+        return score;
+    }
+
+    /**
+     *  Get the Indri default score of one field, a log probability if
+     *  the model uses log-space scores.
+     */
+    private double getIndriFieldDefault(RetrievalModelIndri r, int f, int docid) {
+
+        if (this.lengthBuckets != null) {
+            int b = this.lengthBuckets[f].getBucket(docid);
+            return r.logSpace ? this.indriLogDefault[f][b] : this.indriDefault[f][b];
+        }
+
+        double docLen = (int) this.fieldLengths[f].get(docid);
+        double p = this.indriDefaultNumerator[f] / ((docLen) + r.mu) + this.indriLambdaMle[f];
+        return r.logSpace ? Math.log(p) : p;
+    }
+
+    /**
+     *  getScore for the BM25 model (BM25F).
+     *  @param r The BM25 retrieval model.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getScoreBM25(RetrievalModelBM25 r) throws IOException {
+
+        this.setBM25Constants(r);
+
+        int docid = this.docIteratorGetMatch();
+        double[] weights = this.getNormalizedWeights();
+        double tf = 0.0;
+
+        for (int f = 0; f < this.args.size(); f++) {
+            if (this.fieldDocid[f] == docid) {
+                QryIop q = this.getArg(f);
+                double norm;
+
+                if (this.lengthBuckets != null) {
+                    norm = this.bm25Norm[f][this.lengthBuckets[f].getBucket(docid)];
+                } else {
+                    double doclen = (int) this.fieldLengths[f].get(docid);
+                    norm = 1 - r.b + r.b * doclen / q.avgLen;
+                }
+
+                tf += weights[f] * q.docIteratorGetMatchTf() / norm;
+            }
+        }
+
+        return this.bm25Idf * tf / (tf + r.k_1);
+    }
+
+    /**
+     *  Get the Indri default score's numerator of one field, (1 -
+     *  lambda) * mu * mle (see QrySopScore.getIndriDefaultNumerator).
+     *  @param r The Indri retrieval model.
+     *  @param f The index of the field.
+     *  @return The numerator.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getIndriDefaultNumerator(RetrievalModelIndri r, int f) throws IOException {
+        this.setIndriConstants(r);
+        return this.indriDefaultNumerator[f];
+    }
+
+    /**
+     *  Get the Indri background probability of one field, lambda * mle.
+     *  @param r The Indri retrieval model.
+     *  @param f The index of the field.
+     *  @return The background probability.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getIndriBackground(RetrievalModelIndri r, int f) throws IOException {
+        this.setIndriConstants(r);
+        return this.indriLambdaMle[f];
+    }
+
+    /**
+     *  Get the Indri default scores of one field for approximate
+     *  scoring, by document length bucket.  They are log probabilities
+     *  if the model uses log-space scores.
+     *  @param r The Indri retrieval model.
+     *  @param f The index of the field.
+     *  @return The default scores, or null if scoring is exact.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double[] getIndriDefaultTable(RetrievalModelIndri r, int f) throws IOException {
+        this.setIndriConstants(r);
+        if (this.lengthBuckets == null)
+            return null;
+        return r.logSpace ? this.indriLogDefault[f] : this.indriDefault[f];
+    }
+
+    /**
+     *  Get the document length buckets of one field.
+     *  @param f The index of the field.
+     *  @return The buckets, or null if scoring is exact.
+     */
+    DocLengthBuckets getLengthBuckets(int f) {
+        return (this.lengthBuckets == null) ? null : this.lengthBuckets[f];
+    }
+
+    /**
+     *  Get one of the fields that this operator scores.
+     *  @param f The index of the field.
+     *  @return The field.
+     */
+    String getField(int f) {
+        return this.getArg(f).getField();
+    }
+
+    /**
+     *  Compute the document-independent Indri values of each field, if
+     *  they haven't been computed for this model yet.  The expressions
+     *  are the same as QrySopScore's, so scores don't change.
+     *  @param r The Indri retrieval model.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private void setIndriConstants(RetrievalModelIndri r) throws IOException {
+        if (this.indriModel == r)
+            return;
+
+        int n = this.args.size();
+        this.indriMuMle = new double[n];
+        this.indriLambdaMle = new double[n];
+        this.indriDefaultNumerator = new double[n];
+        this.setLengths(r.lengthBuckets);
+
+        if (this.lengthBuckets != null) {
+            this.indriTfScale = new double[n][];
+            this.indriDefault = new double[n][];
+            this.indriLogDefault = new double[n][];
+        }
+
+        for (int f = 0; f < n; f++) {
+            QryIop q = this.getArg(f);
+            double collectLen = Idx.getSumOfFieldLengths(q.field);
+            double mle = q.getCtf() / collectLen;
+            this.indriMuMle[f] = r.mu * mle;
+            this.indriLambdaMle[f] = r.lambda * mle;
+            this.indriDefaultNumerator[f] = (1 - r.lambda) * r.mu * mle;
+
+            if (this.lengthBuckets != null) {
+                int buckets = this.lengthBuckets[f].size();
+                this.indriTfScale[f] = new double[buckets];
+                this.indriDefault[f] = new double[buckets];
+                this.indriLogDefault[f] = r.logSpace ? new double[buckets] : null;
+
+                for (int b = 0; b < buckets; b++) {
+                    double docLen = this.lengthBuckets[f].getLength(b);
+                    this.indriTfScale[f][b] = (1 - r.lambda) / (docLen + r.mu);
+                    this.indriDefault[f][b] = this.indriDefaultNumerator[f] / (docLen + r.mu) + this.indriLambdaMle[f];
+                    if (r.logSpace)
+                        this.indriLogDefault[f][b] = Math.log(this.indriDefault[f][b]);
+                }
+            }
+        }
+
+        if (r.logSpace)
+            this.logScores = new double[n];
+
+        this.indriModel = r;
+    }
+
+    /**
+     *  Compute the document-independent BM25F values, if they haven't
+     *  been computed for this model yet.
+     *  @param r The BM25 retrieval model.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private void setBM25Constants(RetrievalModelBM25 r) throws IOException {
+        if (this.bm25Model == r)
+            return;
+
+        int n = this.args.size();
+        int df = 0;
+        this.setLengths(r.lengthBuckets);
+
+        if (this.lengthBuckets != null)
+            this.bm25Norm = new double[n][];
+
+        for (int f = 0; f < n; f++) {
+            QryIop q = this.getArg(f);
+            df = Math.max(df, q.getDf());
+
+            if (this.lengthBuckets != null) {
+                this.bm25Norm[f] = new double[this.lengthBuckets[f].size()];
+
+                for (int b = 0; b < this.bm25Norm[f].length; b++) {
+                    double doclen = this.lengthBuckets[f].getLength(b);
+                    this.bm25Norm[f][b] = 1 - r.b + r.b * doclen / q.avgLen;
+                }
+            }
+        }
+
+        double tmp = Math.log((Idx.getNumDocs() - df + 0.5) / (df + 0.5));
+        this.bm25Idf = tmp > 0 ? tmp : 0;
+        this.bm25Model = r;
+    }
+
+    /**
+     *  Get the fields' length buckets, or their lengths if scoring is
+     *  exact.
+     *  @param buckets The number of length buckets, or 0.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private void setLengths(int buckets) throws IOException {
+
+        int n = this.args.size();
+
+        if (buckets > 0) {
+            this.lengthBuckets = new DocLengthBuckets[n];
+            this.fieldLengths = null;
+
+            for (int f = 0; f < n; f++)
+                this.lengthBuckets[f] = DocLengthBuckets.get(this.getField(f), buckets);
+        } else {
+            this.lengthBuckets = null;
+            this.fieldLengths = new NumericDocValues[n];
+
+            for (int f = 0; f < n; f++)
+                this.fieldLengths[f] = Idx.getFieldLengths(this.getField(f));
+        }
+    }
+}
@@ -71,10 +71,9 @@ public class QrySopOr extends QrySop {
         int max_score = Integer.MIN_VALUE;
         int doc_id = this.docIteratorGetMatch();
         for (Qry q_i : this.args) {
-            if (q_i instanceof QrySopOr) {
-                if (q_i.docIteratorGetMatch() != doc_id) //check if parameters exist in doc_id
+            if (q_i instanceof QrySopOr) { //check if parameters exist in doc_id
+                if (!q_i.docIteratorHasMatch(r) || q_i.docIteratorGetMatch() != doc_id)
                     continue;
-                ;
                 int tmp = (int) ((QrySopOr) q_i).getScore(r);
                 max_score = max_score > tmp ? max_score : tmp;
             } else if (q_i instanceof QrySopScore) { //check if parameters exist in doc_id
@@ -15,6 +15,30 @@ public class QrySopScore extends QrySop {
      *  Some retrieval models have these, some don't.
      */
 
+    /**
+     *  The Indri model that the Indri constants were computed for, or
+     *  null if they haven't been computed yet.  They are computed on
+     *  first use, not in initialize, because the ctf that they depend
+     *  on may be set after initialization (see
+     *  QryIop.setCollectionStatistics).
+     */
+    private RetrievalModelIndri indriModel = null;
+    private double indriMuMle;			// mu * mle
+    private double indriLambdaMle;		// lambda * mle
+    private double indriDefaultNumerator;	// (1 - lambda) * mu * mle
+
+    /**
+     *  Lookup tables for approximate scoring (lengthBuckets > 0), by
+     *  document length bucket, or null for exact scoring.  The Indri
+     *  score of a document is tf * indriTfScale[b] + indriDefault[b].
+     */
+    private DocLengthBuckets lengthBuckets = null;
+    private double[] indriTfScale = null;	// (1 - lambda) / (len + mu)
+    private double[] indriDefault = null;	// The default score
+    private double[] indriLogDefault = null;	// log (indriDefault), if logSpace
+    private RetrievalModelBM25 bm25Model = null;
+    private double[] bm25Norm = null;		// k_1 * (1 - b + b * len / avgLen)
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -52,16 +76,138 @@ public class QrySopScore extends QrySop {
      *  @throws IOException Error accessing the Lucene index
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        double lambda = ((RetrievalModelIndri) r).lambda;
-        double mu = ((RetrievalModelIndri) r).mu;
-        double score = 0;
+        RetrievalModelIndri indri = (RetrievalModelIndri) r;
+        this.setIndriConstants(indri);
+
+        if (this.indriDefault != null) {
+            int b = this.lengthBuckets.getBucket(docid);
+            return indri.logSpace ? this.indriLogDefault[b] : this.indriDefault[b];
+        }
 
         QryIop q = (QryIop)this.args.get(0);
         double docLen = Idx.getFieldLength(q.field, docid);
+        double score = this.indriDefaultNumerator / ((docLen) + indri.mu) + this.indriLambdaMle;
+        return indri.logSpace ? Math.log(score) : score;
+    }
+
+    /**
+     *  Get the Indri default score's numerator, (1 - lambda) * mu * mle.
+     *  The default score for a document is numerator / (docLen + mu) +
+     *  background.
+     *  @param r The Indri retrieval model.
+     *  @return The numerator.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getIndriDefaultNumerator(RetrievalModelIndri r) throws IOException {
+        this.setIndriConstants(r);
+        return this.indriDefaultNumerator;
+    }
+
+    /**
+     *  Get the Indri background probability, lambda * mle.
+     *  @param r The Indri retrieval model.
+     *  @return The background probability.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getIndriBackground(RetrievalModelIndri r) throws IOException {
+        this.setIndriConstants(r);
+        return this.indriLambdaMle;
+    }
+
+    /**
+     *  Get the Indri default scores for approximate scoring, by document
+     *  length bucket (see getLengthBuckets).  They are log probabilities
+     *  if the model uses log-space scores.
+     *  @param r The Indri retrieval model.
+     *  @return The default scores, or null if scoring is exact.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double[] getIndriDefaultTable(RetrievalModelIndri r) throws IOException {
+        this.setIndriConstants(r);
+        return r.logSpace ? this.indriLogDefault : this.indriDefault;
+    }
+
+    /**
+     *  Get the document length buckets that the lookup tables are
+     *  indexed by.
+     *  @return The buckets, or null if scoring is exact.
+     */
+    DocLengthBuckets getLengthBuckets() {
+        return this.lengthBuckets;
+    }
+
+    /**
+     *  Get the field that this operator scores.
+     *  @return The field.
+     */
+    String getField() {
+        return ((QryIop) this.args.get(0)).getField();
+    }
+
+    /**
+     *  Compute the document-independent Indri values, if they haven't
+     *  been computed for this model yet.  The expressions are the same
+     *  as the per-document ones that they replace, so scores don't
+     *  change.
+     *  @param r The Indri retrieval model.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private void setIndriConstants(RetrievalModelIndri r) throws IOException {
+        if (this.indriModel == r)
+            return;
+
+        QryIop q = (QryIop)this.args.get(0);
         double collectLen = Idx.getSumOfFieldLengths(q.field);
         double mle = q.getCtf() / collectLen;
-        score = (1 - lambda) * mu * mle / ((docLen) + mu) + lambda * mle;
-        return score;
+        this.indriMuMle = r.mu * mle;
+        this.indriLambdaMle = r.lambda * mle;
+        this.indriDefaultNumerator = (1 - r.lambda) * r.mu * mle;
+
+        if (r.lengthBuckets > 0) {
+            this.lengthBuckets = DocLengthBuckets.get(q.field, r.lengthBuckets);
+
+            int n = this.lengthBuckets.size();
+            this.indriTfScale = new double[n];
+            this.indriDefault = new double[n];
+            this.indriLogDefault = r.logSpace ? new double[n] : null;
+
+            for (int b = 0; b < n; b++) {
+                double docLen = this.lengthBuckets.getLength(b);
+                this.indriTfScale[b] = (1 - r.lambda) / (docLen + r.mu);
+                this.indriDefault[b] = this.indriDefaultNumerator / (docLen + r.mu) + this.indriLambdaMle;
+                if (r.logSpace)
+                    this.indriLogDefault[b] = Math.log(this.indriDefault[b]);
+            }
+        } else {
+            this.lengthBuckets = null;
+            this.indriTfScale = null;
+            this.indriDefault = null;
+            this.indriLogDefault = null;
+        }
+
+        this.indriModel = r;
+    }
+
+    /**
+     *  Compute the BM25 length normalization table for approximate
+     *  scoring, if it hasn't been computed for this model yet.
+     *  @param r The BM25 retrieval model.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private void setBM25Constants(RetrievalModelBM25 r) throws IOException {
+        if (this.bm25Model == r)
+            return;
+
+        QryIop q = (QryIop)this.args.get(0);
+        this.lengthBuckets = DocLengthBuckets.get(q.field, r.lengthBuckets);
+        this.bm25Norm = new double[this.lengthBuckets.size()];
+
+        for (int b = 0; b < this.bm25Norm.length; b++) {
+            double doclen = this.lengthBuckets.getLength(b);
+            this.bm25Norm[b] = r.k_1 * (1 - r.b + r.b * doclen / q.avgLen);
+        }
+
+        this.bm25Model = r;
     }
 
     /**
@@ -95,7 +241,7 @@ public class QrySopScore extends QrySop {
         if (!(q instanceof QryIopTerm || q instanceof QryIopNear || q instanceof QryIopSyn))
             throw new IllegalArgumentException("Argument should be QryIopTerm or QryIopNear or QryIopSyn");
         if (q.docIteratorHasMatch(r)) {
-            return ((QryIop) q).docIteratorGetMatchPosting().tf;
+            return ((QryIop) q).docIteratorGetMatchTf();
         } else {
             return 0;
         }
@@ -115,12 +261,18 @@ public class QrySopScore extends QrySop {
             throw new IllegalArgumentException("Argument should be QryIop instances");
         if (q.docIteratorHasMatch(r)) {
             double idf = ((QryIop) q).idf;
-            double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
+            double tf = ((QryIop) q).docIteratorGetMatchTf();
             double k_1 = ((RetrievalModelBM25) r).k_1;
             double b = ((RetrievalModelBM25) r).b;
             double k_3 = ((RetrievalModelBM25) r).k_3;
-            double doclen = Idx.getFieldLength(((QryIop) q).field, q.docIteratorGetMatch());
-            double tfWeight = tf / (tf + k_1 * (1 - b + b * doclen / ((QryIop) q).avgLen));
+            double tfWeight;
+            if (((RetrievalModelBM25) r).lengthBuckets > 0) {
+                this.setBM25Constants((RetrievalModelBM25) r);
+                tfWeight = tf / (tf + this.bm25Norm[this.lengthBuckets.getBucket(q.docIteratorGetMatch())]);
+            } else {
+                double doclen = Idx.getFieldLength(((QryIop) q).field, q.docIteratorGetMatch());
+                tfWeight = tf / (tf + k_1 * (1 - b + b * doclen / ((QryIop) q).avgLen));
+            }
             double qWeight = (k_3 + 1) * 1 / (k_3 + 1);
             return idf * tfWeight * qWeight;
         } else {
@@ -140,16 +292,20 @@ public class QrySopScore extends QrySop {
         if (!(q instanceof QryIop))
             throw new IllegalArgumentException("Argument should be QryIop instances");
         if (q.docIteratorHasMatch(r)) {
+            RetrievalModelIndri indri = (RetrievalModelIndri) r;
+            this.setIndriConstants(indri);
+
             int docid = q.docIteratorGetMatch();
-            double lambda = ((RetrievalModelIndri) r).lambda;
-            double mu = ((RetrievalModelIndri) r).mu;
-            double score = 0;
-            double collectLen = Idx.getSumOfFieldLengths(q.field);
-            double tf = q.docIteratorGetMatchPosting().tf;
-            double mle = q.getCtf() / collectLen;
-            double docLen = Idx.getFieldLength(q.field, docid);
-            score = (1 - lambda) * (tf + mu * mle) / ((docLen) + mu) + lambda * mle;
-            return score;
+            double tf = q.docIteratorGetMatchTf();
+            double score;
+            if (this.indriDefault != null) {
+                int b = this.lengthBuckets.getBucket(docid);
+                score = tf * this.indriTfScale[b] + this.indriDefault[b];
+            } else {
+                double docLen = Idx.getFieldLength(q.field, docid);
+                score = (1 - indri.lambda) * (tf + this.indriMuMle) / ((docLen) + indri.mu) + this.indriLambdaMle;
+            }
+            return indri.logSpace ? Math.log(score) : score;
         } else {
             throw new IllegalArgumentException("Should have matched documents");
         }
@@ -39,15 +39,7 @@ public class QrySopWAnd extends QryWSop{
      *  @throws IOException Error accessing the Lucene index
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        double lambda = ((RetrievalModelIndri) r).lambda;
-        double mu = ((RetrievalModelIndri) r).mu;
-        double score = 1.0;
-        int index = this.weightArray.size() - 1;
-        for (Qry q_i : this.args) {
-            double weight = this.weightArray.get(index--);
-            score *= Math.pow(((QrySop) q_i).getDefaultScore(r, docid), weight / this.sumOfWeight);
-        }
-        return score;
+        return this.getIndriDefaults(r).getDefaultScore(docid);
     }
 
 
@@ -58,15 +50,45 @@ public class QrySopWAnd extends QryWSop{
      *  @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri(RetrievalModel r) throws IOException {
+        if (((RetrievalModelIndri) r).logSpace)
+            return this.getScoreIndriLog(r);
+
         double score = 1;
         int docid = this.docIteratorGetMatch();
         int index = this.weightArray.size() - 1;
-        for (Qry q_i : this.args) {
+        IndriDefaultScorer defaults = this.getIndriDefaults(r);
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
             double weight = (double)(this.weightArray.get(index--));
             if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
                 score *= Math.pow(((QrySop) q_i).getScore(r), weight / this.sumOfWeight);
             else
-                score *= Math.pow(((QrySop) q_i).getDefaultScore(r, docid), weight / this.sumOfWeight);
+                score *= Math.pow(defaults.getArgDefaultScore(i, docid), weight / this.sumOfWeight);
+        }
+        return score;
+    }
+
+    /**
+     *  getScore for the Indri retrieval model with log-space scores:
+     *  the weighted sum of the arguments' log probabilities.  The
+     *  weights are normalized once, so there is no Math.pow.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getScoreIndriLog(RetrievalModel r) throws IOException {
+        double score = 0;
+        int docid = this.docIteratorGetMatch();
+        double[] weights = this.getNormalizedWeights();
+        IndriDefaultScorer defaults = this.getIndriDefaults(r);
+        for (int i = 0; i < this.args.size(); i++) {
+            if (weights[i] == 0)
+                continue;       // pow (p, 0) is 1, whatever p is
+            Qry q_i = this.args.get(i);
+            if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
+                score += weights[i] * ((QrySop) q_i).getScore(r);
+            else
+                score += weights[i] * defaults.getArgDefaultScore(i, docid);
         }
         return score;
     }
@@ -5,6 +5,12 @@ import java.io.*;
 import java.util.*;
 
 public class QrySopWSum extends QryWSop{
+
+    /**
+     *  Scratch space for the arguments' log-space scores.
+     */
+    private double[] logScores = null;
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -39,13 +45,7 @@ public class QrySopWSum extends QryWSop{
      *  @throws IOException Error accessing the Lucene index
      */
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException {
-        double score = 0.0;
-        int index = this.weightArray.size() - 1;
-        for (Qry q_i : this.args) {
-            double weight = (double)(this.weightArray.get(index--));
-            score += (((QrySop) q_i).getDefaultScore(r, docid) * weight / this.sumOfWeight);
-        }
-        return score;
+        return this.getIndriDefaults(r).getDefaultScore(docid);
     }
 
 
@@ -56,18 +56,73 @@ public class QrySopWSum extends QryWSop{
      *  @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri(RetrievalModel r) throws IOException {
+        if (((RetrievalModelIndri) r).logSpace)
+            return this.getScoreIndriLog(r);
+
         double score = 0.0;
         int docid = this.docIteratorGetMatch();
         int index = this.weightArray.size() - 1;
-        for (Qry q_i : this.args) {
+        IndriDefaultScorer defaults = this.getIndriDefaults(r);
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
             double weight = (double)(this.weightArray.get(index--));
             if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
                 score += (((QrySop) q_i).getScore(r) * weight / this.sumOfWeight);
             else
-                score += (((QrySop) q_i).getDefaultScore(r, docid) * weight / this.sumOfWeight);
+                score += (defaults.getArgDefaultScore(i, docid) * weight / this.sumOfWeight);
         }
         return score;
     }
-}
 
+    /**
+     *  getScore for the Indri retrieval model with log-space scores.
+     *  WSUM adds probabilities, so the arguments' log probabilities are
+     *  combined with logWeightedSum.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double getScoreIndriLog(RetrievalModel r) throws IOException {
+        int docid = this.docIteratorGetMatch();
+        IndriDefaultScorer defaults = this.getIndriDefaults(r);
+        if ((this.logScores == null) || (this.logScores.length != this.args.size()))
+            this.logScores = new double[this.args.size()];
+        for (int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
+            if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
+                this.logScores[i] = ((QrySop) q_i).getScore(r);
+            else
+                this.logScores[i] = defaults.getArgDefaultScore(i, docid);
+        }
+        return logWeightedSum(this.logScores, 0, this.getNormalizedWeights(), 0,
+                              this.args.size());
+    }
+
+    /**
+     *  Compute log (sum_i (weight_i * exp (logValue_i))) without
+     *  leaving log space, by factoring out the largest term.
+     *  @param logValues The log values.
+     *  @param from The index of the first log value.
+     *  @param weights The weights, which should sum to 1.
+     *  @param wFrom The index of the first value's weight.
+     *  @param n The number of values.
+     *  @return The log of the weighted sum.
+     */
+    static double logWeightedSum(double[] logValues, int from,
+                                 double[] weights, int wFrom, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            if ((weights[wFrom + i] != 0) && (logValues[from + i] > max))
+                max = logValues[from + i];
+        }
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;         // Every weighted value is 0
 
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            if (weights[wFrom + i] != 0)
+                sum += weights[wFrom + i] * Math.exp(logValues[from + i] - max);
+        }
+        return max + Math.log(sum);
+    }
+}
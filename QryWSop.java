@@ -7,10 +7,86 @@ import java.util.*;
 public abstract class QryWSop extends QrySop{
     public ArrayList<Double> weightArray;
     public double sumOfWeight;
+
+    /**
+     *  The weights divided by their sum, in argument order, or null if
+     *  they haven't been needed since the weights last changed.
+     */
+    private double[] normalizedWeights = null;
+
     public void setWeightArray(ArrayList<Double>weightArray) {
         this.weightArray = weightArray;
+        this.normalizedWeights = null;
     }
     public void setSumOfWeight(double sum) {
         this.sumOfWeight = sum;
+        this.normalizedWeights = null;
+    }
+
+    /**
+     *  Get the weights divided by their sum, in argument order.  They
+     *  are computed once, so scoring doesn't divide per document.
+     *  @return The normalized weights.
+     */
+    public double[] getNormalizedWeights() {
+        if (this.normalizedWeights == null) {
+            double[] w = new double[this.args.size()];
+            for (int i = 0; i < w.length; i++)
+                w[i] = this.getWeight(i) / this.sumOfWeight;
+            this.normalizedWeights = w;
+        }
+        return this.normalizedWeights;
+    }
+
+    /**
+     *  Get the weight of the i'th argument.  weightArray is stored in
+     *  reverse argument order (it is filled by popping the parser's
+     *  weight stack), so argument i's weight is at size-1-i.
+     *  @param i The index of the argument.
+     *  @return The argument's weight.
+     */
+    public double getWeight(int i) {
+        return this.weightArray.get(this.weightArray.size() - 1 - i);
+    }
+
+    /**
+     *  Replace the weights, and recompute their sum.
+     *  @param weights One weight per argument, in argument order.
+     */
+    public void setWeights(List<Double> weights) {
+        ArrayList<Double> reversed = new ArrayList<Double>(weights);
+        Collections.reverse(reversed);
+
+        double sum = 0;
+        for (double w : weights)
+            sum += w;
+
+        this.setWeightArray(reversed);
+        this.setSumOfWeight(sum);
+    }
+
+    /**
+     *  True if there is exactly one weight per argument.  A query term
+     *  that the tokenizer splits (e.g., "near-death") produces two
+     *  arguments for one weight.
+     *  @return True if the weights and arguments line up.
+     */
+    public boolean hasWeightPerArg() {
+        return (this.weightArray != null) &&
+                (this.weightArray.size() == this.args.size());
+    }
+
+    /**
+     *  Removes an argument and its weight.
+     *  @param i The index of the query operator to remove.
+     */
+    @Override
+    public void removeArg(int i) {
+        if (this.hasWeightPerArg()) {
+            double weight = this.weightArray.remove(this.weightArray.size() - 1 - i);
+            this.sumOfWeight -= weight;
+        }
+        this.normalizedWeights = null;
+        super.removeArg(i);
     }
 }
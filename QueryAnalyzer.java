@@ -0,0 +1,186 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.Version;
+
+/**
+ *  QueryAnalyzer does the lexical processing of query terms (see
+ *  QryEval.tokenizeQuery):  tokenization, lower-casing, stopword
+ *  removal and stemming, the same way that the index was built.
+ *  <p>
+ *  The analyzer's token stream is reused:  Lucene's reuse strategy
+ *  keeps one tokenizer and filter chain per thread, and gives it a
+ *  new reader for each term.  Query terms repeat often, so the terms
+ *  that a raw query term produces are also cached.  The cache is
+ *  bounded, safe for concurrent use, and approximately LRU:  entries
+ *  go into a young generation; when it is full, it becomes the old
+ *  generation, and the previous old generation is dropped.  An entry
+ *  that is found in the old generation is moved to the young one.
+ *  </p><p>
+ *  The configuration is fixed when the QueryAnalyzer is created; make
+ *  a new one to change it.
+ *  </p>
+ */
+public final class QueryAnalyzer {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String[] NO_TERMS = new String[0];
+
+  private final EnglishAnalyzerConfigurable analyzer;
+  private final EnglishAnalyzerConfigurable.StemmerType stemmer;
+  private final int generationSize;
+
+  private volatile ConcurrentHashMap<String, String[]> young;
+  private volatile ConcurrentHashMap<String, String[]> old;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a query analyzer that lower-cases terms and removes
+   *  stopwords.
+   *  @param stemmer The stemmer:  KSTEM, PORTER or NONE.
+   *  @param cacheSize The largest number of cached query terms; 0
+   *  disables the cache.
+   */
+  public QueryAnalyzer(EnglishAnalyzerConfigurable.StemmerType stemmer,
+                       int cacheSize) {
+
+    this.analyzer = new EnglishAnalyzerConfigurable(Version.LUCENE_43);
+    this.analyzer.setLowercase(true);
+    this.analyzer.setStopwordRemoval(true);
+    this.analyzer.setStemmer(stemmer);
+    this.stemmer = stemmer;
+
+    this.generationSize = cacheSize / 2;
+    this.young = new ConcurrentHashMap<String, String[]>();
+    this.old = new ConcurrentHashMap<String, String[]>();
+  }
+
+  /**
+   *  Get the terms that a raw query term (or any text) produces.
+   *  The array may be shared, so it must not be modified.
+   *  @param text The text to analyze.
+   *  @return The terms, possibly none.
+   *  @throws IOException Error analyzing the text.
+   */
+  public String[] analyze(String text) throws IOException {
+
+    if (this.generationSize == 0)
+      return this.tokenize(text);
+
+    ConcurrentHashMap<String, String[]> young = this.young;
+    String[] terms = young.get(text);
+
+    if (terms == null) {
+      terms = this.old.get(text);
+
+      if (terms == null) {
+        this.misses.incrementAndGet();
+        terms = this.tokenize(text);
+      } else {
+        this.hits.incrementAndGet();
+      }
+
+      young.put(text, terms);
+
+      //  Start a new generation.  Several threads may do this at once;
+      //  that just drops some entries early.
+
+      if (young.size() > this.generationSize) {
+        this.old = young;
+        this.young = new ConcurrentHashMap<String, String[]>();
+      }
+    } else {
+      this.hits.incrementAndGet();
+    }
+
+    return terms;
+  }
+
+  /**
+   *  Analyze text with this thread's reusable token stream.
+   */
+  private String[] tokenize(String text) throws IOException {
+
+    TokenStream tokenStream =
+      this.analyzer.tokenStream("dummy", new StringReader(text));
+    CharTermAttribute charTermAttribute =
+      tokenStream.addAttribute(CharTermAttribute.class);
+    String[] terms = NO_TERMS;
+    int n = 0;
+
+    try {
+      tokenStream.reset();
+
+      while (tokenStream.incrementToken()) {
+        if (n == terms.length)
+          terms = Arrays.copyOf(terms, Math.max(1, 2 * n));
+
+        terms[n++] = charTermAttribute.toString();
+      }
+
+      tokenStream.end();
+    } finally {
+      tokenStream.close();
+    }
+
+    return (n == terms.length) ? terms : Arrays.copyOf(terms, n);
+  }
+
+  /**
+   *  Get the stemmer that this analyzer uses.
+   *  @return The stemmer.
+   */
+  public EnglishAnalyzerConfigurable.StemmerType getStemmer() {
+    return this.stemmer;
+  }
+
+  /**
+   *  Get the number of query terms that were found in the cache.
+   *  @return The number of cache hits.
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /**
+   *  Get the number of query terms that were not found in the cache.
+   *  @return The number of cache misses.
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   *  Get the fraction of query terms that were found in the cache.
+   *  @return The hit rate, or 0 if no terms have been analyzed.
+   */
+  public double getHitRate() {
+    long hits = this.hits.get();
+    long total = hits + this.misses.get();
+    return (total > 0) ? (double) hits / total : 0;
+  }
+
+  /**
+   *  Get cache statistics, for monitoring.
+   *  @return A string that describes the cache.
+   */
+  public String getStatistics() {
+    return String.format
+      ("query term cache:  %d hits, %d misses, hit rate %.3f",
+       this.getHits(), this.getMisses(), this.getHitRate());
+  }
+}
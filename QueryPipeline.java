@@ -0,0 +1,482 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *  QueryPipeline processes a query file as a pipeline of stages, so
+ *  that the stages of different queries overlap:
+ *  <ol>
+ *  <li>read:  Read the query lines (one thread).
+ *  <li>parse:  Parse, optimize and compile each query (see
+ *      QryEval.compileQuery).
+ *  <li>fetch:  Materialize the query's inverted lists, which is
+ *      mostly I/O (see QryEval.prefetchQuery).
+ *  <li>score:  Evaluate the query, which is mostly CPU (see
+ *      QryEval.doQuery).
+ *  <li>write:  Write the results (the calling thread).
+ *  </ol>
+ *  <p>
+ *  While query i is being scored, query i+1 can be parsed and its
+ *  inverted lists fetched, and the results of query i-1 written.
+ *  Each stage has a configurable number of threads.  The stages are
+ *  connected by bounded queues, so a slow stage makes the stages
+ *  before it wait instead of reading the whole query file.  The
+ *  results are written in query file order, and the output is the
+ *  same as processing the queries one at a time.  Queries that finish
+ *  before an earlier, slower query wait for it, but at most as many
+ *  queries as the queues hold are started and not yet written, so
+ *  the slow query makes reading wait too.
+ *  </p><p>
+ *  If an error occurs, the results of the queries before it are
+ *  written, no more queries are started, and the error is thrown by
+ *  run, as it would be if the queries were processed one at a time.
+ *  </p><p>
+ *  Query expansion keeps the expanded query in a static variable (see
+ *  QryEval.getExpandedQuery), so with expansion, queries are scored by
+ *  one thread, and their inverted lists are not fetched ahead of
+ *  time.  The other stages still overlap.
+ *  </p><p>
+ *  Each query uses the version of the index that was current when it
+ *  was read (see Idx.acquire), even if the index is refreshed before
+ *  it is written.
+ *  </p>
+ */
+public class QueryPipeline {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  A marker that ends a queue.
+   */
+  private static final Job END = new Job(-1, null, null);
+
+  private final int queueSize;
+
+  private final Stage parse;
+  private final Stage fetch;
+  private final Stage score;
+  private final Stage write;
+
+  /**
+   *  The retrieval model of the current run.
+   */
+  private volatile RetrievalModel model = null;
+
+  /**
+   *  Set when a query fails, so that no more queries are started.
+   */
+  private volatile boolean aborted = false;
+
+  private long queries = 0;
+  private long elapsedNanos = 0;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  One query, as it moves through the pipeline.
+   */
+  private static class Job {
+
+    private final int sequence;
+    private final String qid;
+    private final String query;
+
+    /**
+     *  The version of the index that the query uses, or null.
+     */
+    private Idx.Generation generation = null;
+
+    private QryPlan plan = null;
+    private Qry prefetched = null;
+    private ScoreList result = null;
+    private String expandedQuery = null;
+    private Throwable error = null;
+
+    private Job(int sequence, String qid, String query) {
+      this.sequence = sequence;
+      this.qid = qid;
+      this.query = query;
+    }
+  }
+
+  /**
+   *  A bounded queue of jobs that records how full it is when jobs
+   *  arrive.
+   */
+  private static class JobQueue {
+
+    private final BlockingQueue<Job> jobs;
+    private final Stage stage;
+
+    private JobQueue(int capacity, Stage stage) {
+      this.jobs = new ArrayBlockingQueue<Job>(capacity);
+      this.stage = stage;
+    }
+
+    private void put(Job job) throws InterruptedException {
+      if (job != END)
+        this.stage.recordDepth(this.jobs.size());
+      this.jobs.put(job);
+    }
+
+    private Job take() throws InterruptedException {
+      return this.jobs.take();
+    }
+  }
+
+  /**
+   *  A stage of the pipeline:  its work, and statistics about it.
+   */
+  private abstract static class Stage {
+
+    private final String name;
+    private final int threads;
+
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong arrivals = new AtomicLong();
+    private final AtomicLong depthSum = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    private Stage(String name, int threads) {
+      this.name = name;
+      this.threads = Math.max(1, threads);
+    }
+
+    /**
+     *  Do this stage's work for one query.
+     */
+    abstract void process(Job job) throws Exception;
+
+    /**
+     *  Process a job, and record the time it took.
+     */
+    private void run(Job job) {
+      long start = System.nanoTime();
+      Idx.Generation previous = Idx.pin(job.generation);
+
+      try {
+        this.process(job);
+      } catch (Throwable ex) {
+        job.error = ex;
+      } finally {
+        Idx.pin(previous);
+        this.busyNanos.addAndGet(System.nanoTime() - start);
+      }
+    }
+
+    /**
+     *  Record the number of jobs waiting in the stage's queue when
+     *  another one arrives.
+     */
+    private void recordDepth(int depth) {
+      this.arrivals.incrementAndGet();
+      this.depthSum.addAndGet(depth);
+
+      int max;
+
+      while (depth > (max = this.maxDepth.get()) &&
+             !this.maxDepth.compareAndSet(max, depth))
+        ;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a query pipeline.
+   *  @param parseThreads The number of threads that parse queries.
+   *  @param fetchThreads The number of threads that fetch inverted
+   *  lists.
+   *  @param scoreThreads The number of threads that evaluate queries.
+   *  @param queueSize The number of queries that may wait for each
+   *  stage.
+   *  @param expansion True if queries are expanded with pseudo
+   *  relevance feedback (see QryEval.processQuery).
+   */
+  public QueryPipeline(int parseThreads, int fetchThreads, int scoreThreads,
+                       int queueSize, final boolean expansion) {
+
+    this.queueSize = Math.max(1, queueSize);
+
+    this.parse = new Stage("parse", parseThreads) {
+        void process(Job job) throws IOException {
+          job.plan = QryEval.compileQuery(job.query, model);
+        }
+      };
+
+    this.fetch = new Stage("fetch", fetchThreads) {
+        void process(Job job) throws IOException {
+          if (!expansion)
+            job.prefetched = QryEval.prefetchQuery(job.plan, model);
+        }
+      };
+
+    this.score = new Stage("score", expansion ? 1 : scoreThreads) {
+        void process(Job job) throws IOException {
+          if (expansion) {
+            job.result = QryEval.processQuery(job.qid, job.query, job.plan, model);
+            job.expandedQuery = QryEval.getExpandedQuery();
+          } else {
+            job.result = QryEval.doQuery(job.plan, model, job.prefetched);
+          }
+
+          job.plan = null;
+          job.prefetched = null;
+        }
+      };
+
+    this.write = new Stage("write", 1) {
+        void process(Job job) throws IOException {
+          if (expansion)
+            QryEval.printExpandedQuery(job.qid, job.expandedQuery);
+
+          if (job.result != null)
+            QryEval.printTrecEvalResults(job.qid, job.result);
+        }
+      };
+  }
+
+  /**
+   *  Process the queries in a query file, and write their results.
+   *  @param input The query file, with one qid:query line per query.
+   *  @param model The retrieval model.
+   *  @throws IOException Error reading the queries or accessing the
+   *  index.
+   */
+  public synchronized void run(final BufferedReader input,
+                               RetrievalModel model) throws IOException {
+
+    this.model = model;
+    this.aborted = false;
+
+    long start = System.nanoTime();
+
+    final JobQueue parseQueue = new JobQueue(this.queueSize, this.parse);
+    final JobQueue fetchQueue = new JobQueue(this.queueSize, this.fetch);
+    final JobQueue scoreQueue = new JobQueue(this.queueSize, this.score);
+    final JobQueue writeQueue = new JobQueue(this.queueSize, this.write);
+
+    //  Queries that may be started and not yet written.
+
+    final Semaphore window = new Semaphore(4 * this.queueSize);
+
+    List<Thread> threads = new ArrayList<Thread>();
+
+    threads.add(new Thread(new Runnable() {
+        public void run() {
+          read(input, parseQueue, window);
+        }
+      }, "QueryPipeline-read"));
+
+    this.startStage(this.parse, parseQueue, fetchQueue, threads);
+    this.startStage(this.fetch, fetchQueue, scoreQueue, threads);
+    this.startStage(this.score, scoreQueue, writeQueue, threads);
+
+    for (Thread t : threads) {
+      t.setDaemon(true);
+      t.start();
+    }
+
+    Throwable error = null;
+
+    try {
+      error = this.writeResults(writeQueue, window);
+
+      for (Thread t : threads)
+        t.join();
+    } catch (InterruptedException ex) {
+      this.aborted = true;
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Query processing was interrupted.");
+    } finally {
+      this.elapsedNanos += System.nanoTime() - start;
+    }
+
+    if (error instanceof IOException)
+      throw (IOException) error;
+    else if (error instanceof RuntimeException)
+      throw (RuntimeException) error;
+    else if (error instanceof Error)
+      throw (Error) error;
+    else if (error != null)
+      throw new IOException(error);
+  }
+
+  /**
+   *  Read query lines into the first queue.  A line that has a syntax
+   *  error, or a read error, ends the input.  Each query takes a
+   *  permit from the window, which writeResults returns.
+   */
+  private void read(BufferedReader input, JobQueue out, Semaphore window) {
+
+    try {
+      int sequence = 0;
+      String qLine;
+
+      try {
+        while (!this.aborted && ((qLine = input.readLine()) != null)) {
+          int d = qLine.indexOf(':');
+          Job job;
+
+          window.acquire();
+
+          if (d < 0) {
+            job = new Job(sequence++, null, null);
+            job.error = new IllegalArgumentException
+              ("Syntax error:  Missing ':' in query line.");
+          } else {
+            job = new Job(sequence++, qLine.substring(0, d), qLine.substring(d + 1));
+            job.generation = Idx.acquire();
+          }
+
+          out.put(job);
+
+          if (job.error != null)
+            break;
+        }
+      } catch (IOException ex) {
+        Job job = new Job(sequence, null, null);
+
+        job.error = ex;
+        out.put(job);
+      }
+
+      out.put(END);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   *  Start a stage's threads.  Each thread passes jobs from the
+   *  stage's queue to the next queue.  The last thread to see the end
+   *  of the stage's queue ends the next queue.
+   */
+  private void startStage(final Stage stage, final JobQueue in,
+                          final JobQueue out, List<Thread> threads) {
+
+    final AtomicInteger running = new AtomicInteger(stage.threads);
+
+    for (int i = 0; i < stage.threads; i++) {
+      threads.add(new Thread(new Runnable() {
+          public void run() {
+            try {
+              Job job;
+
+              while ((job = in.take()) != END) {
+                if ((job.error == null) && !aborted)
+                  stage.run(job);
+
+                out.put(job);
+              }
+
+              in.put(END);		// For the stage's other threads
+
+              if (running.decrementAndGet() == 0)
+                out.put(END);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }, "QueryPipeline-" + stage.name + "-" + i));
+    }
+  }
+
+  /**
+   *  Write the results in query order, until the last queue ends.
+   *  After an error, jobs are still taken from the queue, so that the
+   *  other stages can finish, but they are not written.  Each job's
+   *  window permit is returned when it is written.
+   *  @return The first error, or null.
+   */
+  private Throwable writeResults(JobQueue in, Semaphore window)
+    throws InterruptedException {
+
+    Map<Integer, Job> finished = new HashMap<Integer, Job>();
+    Throwable error = null;
+    int next = 0;
+    Job job;
+
+    while ((job = in.take()) != END) {
+      finished.put(job.sequence, job);
+
+      while ((job = finished.remove(next)) != null) {
+        next++;
+
+        if (error == null) {
+          if (job.error == null)
+            this.write.run(job);
+
+          if (job.error != null) {
+            error = job.error;
+            this.aborted = true;
+          } else {
+            this.queries++;
+          }
+        }
+
+        error = release(job, error);
+        window.release();
+      }
+    }
+
+    return error;
+  }
+
+  /**
+   *  Release a job's index generation.
+   *  @return The first error:  error, or the error releasing the
+   *  generation.
+   */
+  private Throwable release(Job job, Throwable error) {
+
+    if (job.generation != null) {
+      try {
+        Idx.release(job.generation);
+      } catch (IOException ex) {
+        if (error == null) {
+          error = ex;
+          this.aborted = true;
+        }
+      }
+
+      job.generation = null;
+    }
+
+    return error;
+  }
+
+  /**
+   *  Get pipeline statistics, for monitoring:  for each stage, its
+   *  utilization (the fraction of the time that its threads were
+   *  busy), and the average and largest number of queries that were
+   *  waiting for it when another query arrived.
+   *  @return A string that describes the pipeline.
+   */
+  public synchronized String getStatistics() {
+
+    StringBuilder s = new StringBuilder();
+
+    s.append(String.format("query pipeline:  %d queries, %.3f s",
+                           this.queries, this.elapsedNanos / 1e9));
+
+    for (Stage stage : new Stage[] { this.parse, this.fetch, this.score, this.write }) {
+      long arrivals = stage.arrivals.get();
+
+      s.append(String.format
+               ("%n  %-5s  %d thread(s), utilization %.3f, queue depth avg %.2f, max %d of %d",
+                stage.name, stage.threads,
+                (this.elapsedNanos > 0) ?
+                (double) stage.busyNanos.get() / (stage.threads * this.elapsedNanos) : 0.0,
+                (arrivals > 0) ? (double) stage.depthSum.get() / arrivals : 0.0,
+                stage.maxDepth.get(), this.queueSize));
+    }
+
+    return s.toString();
+  }
+}
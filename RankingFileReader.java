@@ -0,0 +1,546 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  A fast reader for document rankings in trec_eval input format:
+ *  <pre>
+ *    QueryID Q0 DocID Rank Score RunID
+ *  </pre>
+ *  The file is memory-mapped and scanned with a hand-written
+ *  tokenizer, so no per-line Strings are created.  Only the best
+ *  maxDocs documents of each query are kept (ordered by score, then
+ *  external docid, the same order as {@link ScoreList#sort}), and
+ *  their external docids are resolved to internal docids in one batch
+ *  after the file has been read.
+ *  <p>
+ *  Large files can be read by several threads.  The file is split
+ *  into byte ranges at line boundaries; each thread ranks the lines
+ *  in its range, and the per-query results are merged.
+ *  </p>
+ */
+public class RankingFileReader {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The largest region that is mapped at once.  Lines may not be
+   *  longer than this.
+   */
+  private static final int WINDOW_SIZE = 1 << 28;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   *  Powers of ten that are exactly representable as doubles.
+   */
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++)
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The top-ranked documents of one query, kept in a bounded heap
+   *  whose root is the worst document kept so far.  External docids
+   *  are materialized only for documents that enter the heap.
+   */
+  private static class TopDocs {
+    private final int limit;	// <= 0 means unbounded
+    private int size = 0;
+    private double[] scores = new double[16];
+    private String[] ids = new String[16];
+
+    private TopDocs(int limit) {
+      this.limit = limit;
+    }
+
+    /**
+     *  True if a document with this score would be kept.  If the
+     *  score ties the worst document kept, the docid decides.
+     */
+    private boolean accepts(double score, ByteBuffer buf, int start, int length) {
+      if ((this.limit <= 0) || (this.size < this.limit))
+        return true;
+
+      double worst = this.scores[0];
+
+      if (score != worst)
+        return score > worst;
+
+      return compareId(buf, start, length, this.ids[0]) < 0;
+    }
+
+    private void add(double score, String id) {
+
+      if ((this.limit > 0) && (this.size == this.limit)) {
+        this.scores[0] = score;		// Replace the worst document
+        this.ids[0] = id;
+        siftDown(0);
+        return;
+      }
+
+      if (this.size == this.scores.length) {
+        this.scores = Arrays.copyOf(this.scores, 2 * this.size);
+        this.ids = Arrays.copyOf(this.ids, 2 * this.size);
+      }
+
+      this.scores[this.size] = score;
+      this.ids[this.size] = id;
+      this.size++;
+
+      if (this.limit > 0)
+        siftUp(this.size - 1);
+    }
+
+    private void addAll(TopDocs other) {
+      for (int i = 0; i < other.size; i++) {
+        boolean full = (this.limit > 0) && (this.size == this.limit);
+
+        if (!full ||
+            (other.scores[i] > this.scores[0]) ||
+            ((other.scores[i] == this.scores[0]) &&
+             (other.ids[i].compareTo(this.ids[0]) < 0)))
+          add(other.scores[i], other.ids[i]);
+      }
+    }
+
+    /**
+     *  True if document i ranks below document j.
+     */
+    private boolean worse(int i, int j) {
+      if (this.scores[i] != this.scores[j])
+        return this.scores[i] < this.scores[j];
+      return this.ids[i].compareTo(this.ids[j]) > 0;
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+
+        if (!worse(i, parent))
+          break;
+
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i) {
+      while (true) {
+        int child = 2 * i + 1;
+
+        if (child >= this.size)
+          break;
+
+        if ((child + 1 < this.size) && worse(child + 1, child))
+          child++;
+
+        if (!worse(child, i))
+          break;
+
+        swap(i, child);
+        i = child;
+      }
+    }
+
+    private void swap(int i, int j) {
+      double s = this.scores[i];
+      this.scores[i] = this.scores[j];
+      this.scores[j] = s;
+
+      String id = this.ids[i];
+      this.ids[i] = this.ids[j];
+      this.ids[j] = id;
+    }
+
+    /**
+     *  Resolve the kept documents to internal docids, best first.
+     */
+    private ScoreList toScoreList() throws IOException {
+
+      Integer[] order = new Integer[this.size];
+
+      for (int i = 0; i < this.size; i++)
+        order[i] = i;
+
+      Arrays.sort(order, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer i, Integer j) {
+            if (worse(j, i))
+              return -1;
+            else if (worse(i, j))
+              return 1;
+            else
+              return 0;
+          }
+        });
+
+      ScoreList r = new ScoreList();
+
+      for (int i = 0; i < this.size; i++) {
+        String externalId = this.ids[order[i]];
+        int docid;
+
+        try {
+          docid = Idx.getInternalDocid(externalId);
+        } catch (Exception e) {
+          throw new IOException("Get internalDocid error: " + externalId);
+        }
+
+        r.add(docid, this.scores[order[i]]);
+      }
+
+      return r;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Read a document ranking file.
+   *  @param fileName The ranking file.
+   *  @param maxDocs The number of documents to keep for each query, or
+   *    a value <= 0 to keep all of them.
+   *  @param threads The number of threads used to read the file.
+   *  @return A map from query id to the query's ranked documents.
+   *  @throws IOException Error reading the file or the Lucene index.
+   */
+  public static Map<String, ScoreList> read(String fileName, int maxDocs,
+                                            int threads)
+    throws IOException {
+
+    File file = new File(fileName);
+
+    if (!file.canRead()) {
+      throw new IllegalArgumentException
+        ("Can't read " + fileName);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      final FileChannel channel = raf.getChannel();
+      long[] bounds = splitAtLines(raf, Math.max(1, threads));
+      Map<String, TopDocs> merged;
+
+      if (bounds.length == 2) {
+        merged = readRange(channel, bounds[0], bounds[1], maxDocs);
+      } else {
+        merged = readRanges(channel, bounds, maxDocs);
+      }
+
+      //  Resolve docids in one batch, only for the documents kept.
+
+      Map<String, ScoreList> rankings = new HashMap<String, ScoreList>();
+
+      for (Map.Entry<String, TopDocs> e : merged.entrySet())
+        rankings.put(e.getKey(), e.getValue().toScoreList());
+
+      return rankings;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   *  Read several byte ranges in parallel, and merge the results.
+   */
+  private static Map<String, TopDocs> readRanges(final FileChannel channel,
+                                                 long[] bounds,
+                                                 final int maxDocs)
+    throws IOException {
+
+    int ranges = bounds.length - 1;
+    ExecutorService pool = Executors.newFixedThreadPool(ranges);
+    List<Future<Map<String, TopDocs>>> parts =
+      new ArrayList<Future<Map<String, TopDocs>>>();
+
+    try {
+      for (int i = 0; i < ranges; i++) {
+        final long start = bounds[i];
+        final long end = bounds[i + 1];
+
+        parts.add(pool.submit(new Callable<Map<String, TopDocs>>() {
+            @Override
+            public Map<String, TopDocs> call() throws IOException {
+              return readRange(channel, start, end, maxDocs);
+            }
+          }));
+      }
+
+      Map<String, TopDocs> merged = new HashMap<String, TopDocs>();
+
+      for (Future<Map<String, TopDocs>> part : parts) {
+        for (Map.Entry<String, TopDocs> e : part.get().entrySet()) {
+          TopDocs top = merged.get(e.getKey());
+
+          if (top == null)
+            merged.put(e.getKey(), e.getValue());
+          else
+            top.addAll(e.getValue());
+        }
+      }
+
+      return merged;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading rankings", ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException)
+        throw (IOException) ex.getCause();
+      throw new IOException(ex.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   *  Divide the file into byte ranges that start at line boundaries.
+   *  @return Range boundaries; range i is [bounds[i], bounds[i+1]).
+   */
+  private static long[] splitAtLines(RandomAccessFile raf, int ranges)
+    throws IOException {
+
+    long length = raf.length();
+    long[] bounds = new long[ranges + 1];
+    int n = 1;
+
+    bounds[0] = 0;
+
+    for (int i = 1; i < ranges; i++) {
+      long pos = Math.max(bounds[n - 1], length * i / ranges);
+
+      raf.seek(pos);
+
+      int c;
+      while (((c = raf.read()) != -1) && (c != '\n'))
+        pos++;
+
+      pos = (c == -1) ? length : pos + 1;
+
+      if ((pos > bounds[n - 1]) && (pos < length))
+        bounds[n++] = pos;
+    }
+
+    bounds[n++] = length;
+    return Arrays.copyOf(bounds, n);
+  }
+
+  /**
+   *  Read the lines in [start, end), mapping at most WINDOW_SIZE bytes
+   *  at a time.  Each window is cut back to its last newline.
+   */
+  private static Map<String, TopDocs> readRange(FileChannel channel,
+                                                long start, long end,
+                                                int maxDocs)
+    throws IOException {
+
+    Map<String, TopDocs> rankings = new HashMap<String, TopDocs>();
+    long pos = start;
+
+    while (pos < end) {
+      int length = (int) Math.min(WINDOW_SIZE, end - pos);
+      MappedByteBuffer window =
+        channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+
+      if (pos + length < end) {
+        int last = length - 1;
+
+        while ((last >= 0) && (window.get(last) != '\n'))
+          last--;
+
+        if (last < 0)
+          throw new IOException("Line too long in ranking file at byte " + pos);
+
+        length = last + 1;
+      }
+
+      readLines(window, length, maxDocs, rankings);
+      pos += length;
+    }
+
+    return rankings;
+  }
+
+  /**
+   *  Tokenize and rank the lines in buf[0, limit).
+   */
+  private static void readLines(ByteBuffer buf, int limit, int maxDocs,
+                                Map<String, TopDocs> rankings)
+    throws IOException {
+
+    String qid = null;
+    TopDocs top = null;
+    int[] tokens = new int[10];		// start, end of the first 5 tokens
+    byte[] scratch = new byte[64];
+    int i = 0;
+
+    while (i < limit) {
+
+      //  Find the first five tokens of the line.
+
+      int n = 0;
+      byte c;
+
+      while ((i < limit) && ((c = buf.get(i)) != '\n')) {
+
+        if (isSpace(c)) {
+          i++;
+          continue;
+        }
+
+        int tokenStart = i;
+
+        while ((i < limit) && !isSpace(c = buf.get(i)) && (c != '\n'))
+          i++;
+
+        if (n < 5) {
+          tokens[2 * n] = tokenStart;
+          tokens[2 * n + 1] = i;
+          n++;
+        }
+      }
+
+      i++;			// Skip the newline
+
+      if (n == 0)
+        continue;		// Blank line
+
+      if (n < 5)
+        throw new IOException("Malformed line in ranking file");
+
+      //  Switch queries only when the qid changes.
+
+      int qStart = tokens[0];
+      int qLength = tokens[1] - tokens[0];
+
+      if ((qid == null) || (compareId(buf, qStart, qLength, qid) != 0)) {
+        scratch = copy(buf, qStart, qLength, scratch);
+        qid = new String(scratch, 0, qLength, UTF8);
+        top = rankings.get(qid);
+
+        if (top == null) {
+          top = new TopDocs(maxDocs);
+          rankings.put(qid, top);
+        }
+      }
+
+      double score = parseDouble(buf, tokens[8], tokens[9]);
+      int idStart = tokens[4];
+      int idLength = tokens[5] - tokens[4];
+
+      if (top.accepts(score, buf, idStart, idLength)) {
+        scratch = copy(buf, idStart, idLength, scratch);
+        top.add(score, new String(scratch, 0, idLength, UTF8));
+      }
+    }
+  }
+
+  private static boolean isSpace(byte c) {
+    return (c == ' ') || (c == '\t') || (c == '\r');
+  }
+
+  /**
+   *  Copy buf[start, start+length) into scratch, growing it if needed.
+   */
+  private static byte[] copy(ByteBuffer buf, int start, int length,
+                             byte[] scratch) {
+
+    if (scratch.length < length)
+      scratch = new byte[2 * length];
+
+    for (int i = 0; i < length; i++)
+      scratch[i] = buf.get(start + i);
+
+    return scratch;
+  }
+
+  /**
+   *  Compare bytes to a String.  Ids in ranking files are ASCII, so
+   *  this gives the same order as String.compareTo.
+   */
+  private static int compareId(ByteBuffer buf, int start, int length,
+                               String s) {
+
+    int n = Math.min(length, s.length());
+
+    for (int i = 0; i < n; i++) {
+      int diff = (buf.get(start + i) & 0xff) - s.charAt(i);
+
+      if (diff != 0)
+        return diff;
+    }
+
+    return length - s.length();
+  }
+
+  /**
+   *  Parse a decimal number.  Numbers with at most 15 significant
+   *  digits and a small exponent are converted exactly without
+   *  creating a String; anything else falls back to Double.parseDouble.
+   */
+  private static double parseDouble(ByteBuffer buf, int start, int end)
+    throws IOException {
+
+    int i = start;
+    boolean negative = false;
+    byte c;
+
+    if ((i < end) && (((c = buf.get(i)) == '-') || (c == '+'))) {
+      negative = (c == '-');
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int scale = 0;
+    boolean seenDigit = false;
+
+    while ((i < end) && ((c = buf.get(i)) >= '0') && (c <= '9')) {
+      mantissa = mantissa * 10 + (c - '0');
+      seenDigit = true;
+      if (mantissa != 0)
+        digits++;
+      i++;
+    }
+
+    if ((i < end) && (buf.get(i) == '.')) {
+      i++;
+      while ((i < end) && ((c = buf.get(i)) >= '0') && (c <= '9')) {
+        mantissa = mantissa * 10 + (c - '0');
+        seenDigit = true;
+        scale++;
+        if (mantissa != 0)
+          digits++;
+        i++;
+      }
+    }
+
+    if ((i == end) && seenDigit && (digits <= 15) &&
+        (scale < POWERS_OF_TEN.length)) {
+      double value = mantissa / POWERS_OF_TEN[scale];
+      return negative ? -value : value;
+    }
+
+    byte[] text = copy(buf, start, end - start, new byte[end - start]);
+
+    try {
+      return Double.parseDouble(new String(text, UTF8));
+    } catch (NumberFormatException ex) {
+      throw new IOException("Bad score in ranking file");
+    }
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ *  ResultCache caches the results of evaluating query plans (see
+ *  QryEval.doQuery).  A result is keyed by the plan's canonical string
+ *  (see QryPlan.toString) and the retrieval model's parameters, so
+ *  two queries that parse and optimize to the same plan share a
+ *  result.  Query expansion is covered too:  its first pass evaluates
+ *  the original query's plan, and the expanded query, whose plan
+ *  includes the expansion terms and weights, is its own entry.
+ *  <p>
+ *  Only the best results (by score, then external docid) are kept, in
+ *  primitive arrays, and a cached result is returned sorted.  The
+ *  depth must be at least the number of results that are used, e.g.,
+ *  100 for trec_eval output and fbDocs for query expansion.  The cache
+ *  has a byte budget; the least recently used results are evicted to
+ *  stay within it.  Results are discarded when the index is refreshed
+ *  (see Idx.refresh); a query that still uses an older version of the
+ *  index neither finds nor stores results.
+ *  </p><p>
+ *  The cache can be saved to a file and loaded by a later run on the
+ *  same index.  A file that was written for another version of the
+ *  index is ignored.  The cache is safe for concurrent use.
+ *  </p>
+ */
+public class ResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x52534c54;		// "RSLT"
+  private static final int FORMAT = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   *  The approximate size of an entry's objects, not counting its key's
+   *  characters and its results.
+   */
+  private static final long ENTRY_OVERHEAD = 128;
+
+  private final long budget;
+  private final int depth;
+
+  private long bytes = 0;
+  private long version;
+  private int maxDoc;
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   *  The results, in least recently used order.
+   */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty result cache for the open index.
+   *  @param budget The largest size of the cache, in bytes.
+   *  @param depth The number of results to keep for each query.
+   */
+  public ResultCache(long budget, int depth) {
+    this.budget = budget;
+    this.depth = depth;
+    this.version = Idx.getIndexVersion();
+    this.maxDoc = Idx.getMaxDoc();
+  }
+
+  /**
+   *  Get the cache key of a query plan evaluated with a retrieval
+   *  model.
+   *  @param plan The query plan.
+   *  @param model The retrieval model.
+   *  @return The key.
+   */
+  public static String getKey(QryPlan plan, RetrievalModel model) {
+    return getModelKey(model) + '\t' + plan;
+  }
+
+  /**
+   *  Get a string that identifies a retrieval model and the parameters
+   *  that affect its scores.
+   */
+  private static String getModelKey(RetrievalModel model) {
+
+    if (model instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 m = (RetrievalModelBM25) model;
+
+      return "BM25 k_1=" + m.k_1 + " b=" + m.b + " k_3=" + m.k_3 +
+        " lengthBuckets=" + m.lengthBuckets;
+    } else if (model instanceof RetrievalModelIndri) {
+      RetrievalModelIndri m = (RetrievalModelIndri) model;
+
+      return "Indri mu=" + m.mu + " lambda=" + m.lambda +
+        " logSpace=" + m.logSpace + " lengthBuckets=" + m.lengthBuckets;
+    } else {
+      return model.getClass().getName();
+    }
+  }
+
+  /**
+   *  Get a cached result.
+   *  @param key The key, from getKey.
+   *  @return A new, sorted copy of the result, or null if it isn't
+   *  cached.
+   */
+  public synchronized ScoreList get(String key) {
+
+    Entry e = this.checkVersion() ? this.entries.get(key) : null;
+
+    if (e == null) {
+      this.misses++;
+      return null;
+    }
+
+    this.hits++;
+
+    ScoreList r = new ScoreList();
+
+    for (int i = 0; i < e.docids.length; i++)
+      r.add(e.docids[i], e.scores[i]);
+
+    return r;
+  }
+
+  /**
+   *  Is a result cached?  This doesn't count as a hit or a miss, and
+   *  doesn't make the result recently used.
+   *  @param key The key, from getKey.
+   *  @return True if the result is cached.
+   */
+  public synchronized boolean contains(String key) {
+
+    return this.checkVersion() && this.entries.containsKey(key);
+  }
+
+  /**
+   *  Cache a result.  The result is copied, so the caller may keep
+   *  using it.
+   *  @param key The key, from getKey.
+   *  @param r The result.
+   *  @throws IOException Error reading external docids.
+   */
+  public void put(String key, ScoreList r) throws IOException {
+
+    ScoreList top = new ScoreList();
+
+    top.addAll(r);
+    top.selectTop(this.depth);
+
+    int[] docids = new int[top.size()];
+    double[] scores = new double[top.size()];
+
+    for (int i = 0; i < docids.length; i++) {
+      docids[i] = top.getDocid(i);
+      scores[i] = top.getDocidScore(i);
+    }
+
+    synchronized (this) {
+      if (this.checkVersion())
+        this.add(new Entry(key, docids, scores));
+    }
+  }
+
+  /**
+   *  Add an entry, and evict entries until the cache is within its
+   *  budget.  An entry that is larger than the budget isn't added.
+   */
+  private void add(Entry e) {
+
+    if (e.size() > this.budget)
+      return;
+
+    Entry old = this.entries.put(e.key, e);
+
+    if (old != null)
+      this.bytes -= old.size();
+
+    this.bytes += e.size();
+
+    Iterator<Entry> i = this.entries.values().iterator();
+
+    while (this.bytes > this.budget) {
+      this.bytes -= i.next().size();
+      i.remove();
+    }
+  }
+
+  /**
+   *  Discard every result if the caller's index is newer than the
+   *  index that they were computed for.
+   *  @return True if the caller's index is the cache's index.
+   */
+  private boolean checkVersion() {
+
+    long version = Idx.getIndexVersion();
+    int maxDoc = Idx.getMaxDoc();
+
+    if (version > this.version) {
+      this.entries.clear();
+      this.bytes = 0;
+      this.version = version;
+      this.maxDoc = maxDoc;
+    }
+
+    return (version == this.version) && (maxDoc == this.maxDoc);
+  }
+
+  /**
+   *  Read results that were saved by a previous run.  Entries that
+   *  don't fit in the budget are dropped, least recently used first.
+   *  Nothing is read if the file is missing or was written for
+   *  another version of the index.
+   *  @param file The file.
+   *  @throws IOException Error reading the file.
+   */
+  public synchronized void load(File file) throws IOException {
+
+    if (!file.canRead())
+      return;
+
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(new FileInputStream(file)));
+
+    try {
+      if ((in.readInt() != MAGIC) ||
+          (in.readInt() != FORMAT) ||
+          (in.readLong() != Idx.getIndexVersion()) ||
+          (in.readInt() != Idx.getMaxDoc()))
+        return;
+
+      if (!this.checkVersion())
+        return;
+
+      int count = in.readInt();
+
+      for (int i = 0; i < count; i++) {
+        byte[] key = new byte[in.readInt()];
+
+        in.readFully(key);
+
+        int n = in.readInt();
+        int[] docids = new int[n];
+        double[] scores = new double[n];
+
+        for (int j = 0; j < n; j++) {
+          docids[j] = in.readInt();
+          scores[j] = in.readDouble();
+        }
+
+        this.add(new Entry(new String(key, UTF8), docids, scores));
+      }
+    } catch (EOFException ex) {
+      //  A truncated file.  Keep the entries that were read.
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   *  Save the results, least recently used first, so that a later run
+   *  can load them.  The file is written to a temporary name first so
+   *  that a partial file is never read.
+   *  @param file The file.
+   *  @throws IOException Error writing the file.
+   */
+  public synchronized void save(File file) throws IOException {
+
+    this.checkVersion();
+
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream
+      (new BufferedOutputStream(new FileOutputStream(tmp)));
+
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT);
+      out.writeLong(this.version);
+      out.writeInt(this.maxDoc);
+      out.writeInt(this.entries.size());
+
+      for (Entry e : this.entries.values()) {
+        byte[] key = e.key.getBytes(UTF8);
+
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(e.docids.length);
+
+        for (int j = 0; j < e.docids.length; j++) {
+          out.writeInt(e.docids[j]);
+          out.writeDouble(e.scores[j]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      file.delete();
+
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Unable to write " + file);
+      }
+    }
+  }
+
+  /**
+   *  Get cache statistics, for monitoring.
+   *  @return A string that describes the cache.
+   */
+  public synchronized String getStatistics() {
+    long total = this.hits + this.misses;
+
+    return String.format
+      ("result cache:  %d hits, %d misses, hit rate %.3f, %d results, %d bytes",
+       this.hits, this.misses, (total > 0) ? (double) this.hits / total : 0.0,
+       this.entries.size(), this.bytes);
+  }
+
+  /**
+   *  One cached result, sorted.
+   */
+  private static class Entry {
+
+    private final String key;
+    private final int[] docids;
+    private final double[] scores;
+
+    private Entry(String key, int[] docids, double[] scores) {
+      this.key = key;
+      this.docids = docids;
+      this.scores = scores;
+    }
+
+    private long size() {
+      return ENTRY_OVERHEAD + 2L * this.key.length() + 12L * this.docids.length;
+    }
+  }
+}
@@ -8,12 +8,29 @@ public class RetrievalModelBM25 extends RetrievalModel{
     public double b;
     public double k_3;
     public  long docNum;
+
+    /**
+     *  If greater than 0, length normalization is approximated with
+     *  this many buckets of document lengths; see DocLengthBuckets.
+     */
+    public int lengthBuckets = 0;
+
     public RetrievalModelBM25(String k_1, String b, String k_3) throws IOException{
         this.k_1 = Double.valueOf(k_1);
         this.b = Double.valueOf(b);
         this.k_3 = Double.valueOf(k_3);
         this.docNum = Idx.getNumDocs();
     }
+
+    /**
+     *  @param lengthBuckets The number of document length buckets, or
+     *    null or "0" for exact scores.
+     */
+    public RetrievalModelBM25(String k_1, String b, String k_3, String lengthBuckets) throws IOException{
+        this(k_1, b, k_3);
+        if (lengthBuckets != null)
+            this.lengthBuckets = Integer.parseInt(lengthBuckets);
+    }
     public String defaultQrySopName () {
         return new String("#sum");
     }
@@ -4,10 +4,73 @@
 public class RetrievalModelIndri extends RetrievalModel{
     public double mu;
     public double lambda;
+
+    /**
+     *  If true, query operators return log probabilities instead of
+     *  probabilities, so long queries don't underflow and WAND needs no
+     *  Math.pow.  Document scores are rounded (see roundLogScore), so
+     *  documents that linear mode ties are still tied, and ordered by
+     *  external id; documents whose probabilities differ by a relative
+     *  1e-10 or less are tied too.
+     */
+    public boolean logSpace = false;
+
+    /**
+     *  The precision of log-space document scores.  It is far larger
+     *  than the rounding errors of a sum of logs.
+     */
+    private static final double LOG_SCORE_QUANTUM = 1e-10;
+
+    /**
+     *  The log-space score of a document whose probability is 0.  It is
+     *  below the log of the smallest positive double (about -745), and
+     *  unlike -Infinity, it can be written to a trec_eval file.
+     */
+    public static final double LOG_ZERO = -1000.0;
+
+    /**
+     *  If greater than 0, smoothing is approximated with this many
+     *  buckets of document lengths; see DocLengthBuckets.
+     */
+    public int lengthBuckets = 0;
+
     public RetrievalModelIndri(String mu, String lambda) {
         this.mu = Double.valueOf(mu);
         this.lambda = Double.valueOf(lambda);
     }
+
+    /**
+     *  @param mu The Dirichlet smoothing parameter.
+     *  @param lambda The Jelinek-Mercer smoothing parameter.
+     *  @param logSpace "true" for log-space scores; null or "false"
+     *    for probabilities.
+     */
+    public RetrievalModelIndri(String mu, String lambda, String logSpace) {
+        this(mu, lambda);
+        this.logSpace = (logSpace != null) && !logSpace.toLowerCase().equals("false");
+    }
+
+    /**
+     *  @param lengthBuckets The number of document length buckets, or
+     *    null or "0" for exact scores.
+     */
+    public RetrievalModelIndri(String mu, String lambda, String logSpace, String lengthBuckets) {
+        this(mu, lambda, logSpace);
+        if (lengthBuckets != null)
+            this.lengthBuckets = Integer.parseInt(lengthBuckets);
+    }
+    /**
+     *  Round a log-space document score:  to LOG_SCORE_QUANTUM, or to
+     *  LOG_ZERO if it is lower.
+     *  @param score A log probability, possibly -Infinity.
+     *  @return The rounded score.
+     */
+    public static double roundLogScore(double score) {
+        if (score <= LOG_ZERO)
+            return LOG_ZERO;
+        return Math.rint(score / LOG_SCORE_QUANTUM) * LOG_SCORE_QUANTUM;
+    }
+
     public String defaultQrySopName () {
         return new String("#and");
     }
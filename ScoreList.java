@@ -8,33 +8,33 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Internal docids and scores are stored in parallel primitive
+ *  arrays.  External docids are only needed to break ties between
+ *  equal scores and to print results, so they are resolved lazily
+ *  and cached.
  */
 public class ScoreList {
 
-    //  A utility class to create a <internalDocid, externalDocid, score>
-    //  object.
-
-    private class ScoreListEntry {
-        private int docid;
-        private String externalId;
-        private double score;
-
-        private ScoreListEntry(int internalDocid, double score) {
-            this.docid = internalDocid;
-            this.score = score;
+    /**
+     *  The initial capacity of a new score list.
+     */
+    private static final int INITIAL_CAPACITY = 16;
 
-            try {
-                this.externalId = Idx.getExternalDocid(this.docid);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-    }
+    /**
+     *  Ranges at least this small are sorted by insertion sort.
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
 
     /**
-     *  A list of document ids and scores.
+     *  The document ids and scores.  Entries [0, size) are valid.
+     *  externalIds[i] is null until the external id of docids[i] is
+     *  needed.
      */
-    private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+    private int[] docids = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    private String[] externalIds = new String[INITIAL_CAPACITY];
+    private int size = 0;
 
     /**
      *  Append a document score to a score list.
@@ -42,7 +42,28 @@ public class ScoreList {
      *  @param score The document's score.
      */
     public void add(int docid, double score) {
-        scores.add(new ScoreListEntry(docid, score));
+        if (this.size == this.docids.length) {
+            int capacity = this.size + (this.size >> 1) + 1;
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.scores = Arrays.copyOf(this.scores, capacity);
+            this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+        }
+
+        this.docids[this.size] = docid;
+        this.scores[this.size] = score;
+        this.externalIds[this.size] = null;
+        this.size++;
+    }
+
+    /**
+     *  Append all of the entries of another score list.
+     *  @param other The score list to append.
+     */
+    public void addAll(ScoreList other) {
+        for (int i = 0; i < other.size; i++) {
+            this.add(other.docids[i], other.scores[i]);
+            this.externalIds[this.size - 1] = other.externalIds[i];
+        }
     }
 
     /**
@@ -51,7 +72,8 @@ public class ScoreList {
      *  @return The internal document id.
      */
     public int getDocid(int n) {
-        return this.scores.get(n).docid;
+        checkIndex(n);
+        return this.docids[n];
     }
 
     /**
@@ -60,7 +82,18 @@ public class ScoreList {
      *  @return The document's score.
      */
     public double getDocidScore(int n) {
-        return this.scores.get(n).score;
+        checkIndex(n);
+        return this.scores[n];
+    }
+
+    /**
+     *  Get the external docid of the n'th entry.
+     *  @param n The index of the requested document.
+     *  @return The external document id.
+     */
+    public String getExternalDocid(int n) {
+        checkIndex(n);
+        return this.externalId(n);
     }
 
     /**
@@ -69,7 +102,8 @@ public class ScoreList {
      *  @param score The new score.
      */
     public void setDocidScore(int n, double score) {
-        this.scores.get(n).score = score;
+        checkIndex(n);
+        this.scores[n] = score;
     }
 
     /**
@@ -77,31 +111,51 @@ public class ScoreList {
      *  @return The size of the posting list.
      */
     public int size() {
-        return this.scores.size();
-    }
-
-    /*
-     *  Compare two ScoreListEntry objects.  Sort by score, then
-     *  internal docid.
-     */
-    public class ScoreListComparator implements Comparator<ScoreListEntry> {
-
-        @Override
-        public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-            if (s1.score > s2.score)
-                return -1;
-            else if (s1.score < s2.score)
-                return 1;
-            else
-                return s1.externalId.compareTo(s2.externalId);
-        }
+        return this.size;
     }
 
     /**
      *  Sort the list by score and external document id.
      */
     public void sort() {
-        Collections.sort(this.scores, new ScoreListComparator());
+        this.sort(0, this.size);
+    }
+
+    /**
+     *  Sort the list by score and external document id, and keep only
+     *  the first num entries.  This is equivalent to sort followed by
+     *  truncate, but only the entries that are kept are fully sorted.
+     *
+     * @param num Number of results to keep.
+     */
+    public void selectTop(int num) {
+
+        if (num >= this.size) {
+            this.sort();
+            return;
+        }
+
+        if (num <= 0) {
+            this.truncate(0);
+            return;
+        }
+
+        //  Maintain a heap of the best num entries in [0, num), with
+        //  the worst of them at the root.  Each remaining entry
+        //  replaces the root if it is better.
+
+        for (int i = (num >>> 1) - 1; i >= 0; i--)
+            this.siftDown(i, num);
+
+        for (int i = num; i < this.size; i++) {
+            if (this.compare(i, 0) < 0) {
+                this.swap(i, 0);
+                this.siftDown(0, num);
+            }
+        }
+
+        this.truncate(num);
+        this.sort();
     }
 
     /**
@@ -110,9 +164,142 @@ public class ScoreList {
      * @param num Number of results to keep.
      */
     public void truncate(int num) {
-        List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-                Math.min(num, scores.size())));
-        this.scores.clear();
-        this.scores = truncated;
+        this.size = Math.max(0, Math.min(num, this.size));
+        this.docids = Arrays.copyOf(this.docids, this.size);
+        this.scores = Arrays.copyOf(this.scores, this.size);
+        this.externalIds = Arrays.copyOf(this.externalIds, this.size);
+    }
+
+    /*
+     *  Compare entries i and j.  Sort by score, then external docid.
+     *  External docids are resolved only for ties.
+     */
+    private int compare(int i, int j) {
+        if (this.scores[i] > this.scores[j])
+            return -1;
+        else if (this.scores[i] < this.scores[j])
+            return 1;
+
+        String e_i = this.externalId(i);
+        String e_j = this.externalId(j);
+
+        if (e_i == null)
+            return (e_j == null) ? 0 : 1;
+        else if (e_j == null)
+            return -1;
+        else
+            return e_i.compareTo(e_j);
+    }
+
+    /*
+     *  Get the external id of entry n, resolving it if necessary.
+     */
+    private String externalId(int n) {
+        if (this.externalIds[n] == null) {
+            try {
+                this.externalIds[n] = Idx.getExternalDocid(this.docids[n]);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        return this.externalIds[n];
+    }
+
+    /*
+     *  Sort entries [from, to) with quicksort, finishing small ranges
+     *  with insertion sort.  Recursion is on the smaller partition, so
+     *  the stack depth is O(log n).
+     */
+    private void sort(int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+
+            //  Median-of-three pivot, moved to from.
+
+            int mid = (from + to) >>> 1;
+            int last = to - 1;
+
+            if (this.compare(mid, from) < 0)
+                this.swap(mid, from);
+            if (this.compare(last, mid) < 0) {
+                this.swap(last, mid);
+                if (this.compare(mid, from) < 0)
+                    this.swap(mid, from);
+            }
+            this.swap(from, mid);
+
+            //  Hoare partition around the pivot at from.
+
+            int i = from;
+            int j = to;
+
+            while (true) {
+                do {
+                    i++;
+                } while ((i < last) && (this.compare(i, from) < 0));
+                do {
+                    j--;
+                } while (this.compare(j, from) > 0);
+
+                if (i >= j)
+                    break;
+
+                this.swap(i, j);
+            }
+
+            this.swap(from, j);
+
+            if (j - from < to - j - 1) {
+                this.sort(from, j);
+                from = j + 1;
+            } else {
+                this.sort(j + 1, to);
+                to = j;
+            }
+        }
+
+        for (int i = from + 1; i < to; i++)
+            for (int j = i; (j > from) && (this.compare(j, j - 1) < 0); j--)
+                this.swap(j, j - 1);
+    }
+
+    /*
+     *  Restore the heap property of [0, size) below i.  The heap is
+     *  ordered so that the worst entry is at the root.
+     */
+    private void siftDown(int i, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= size)
+                break;
+
+            if ((child + 1 < size) && (this.compare(child + 1, child) > 0))
+                child++;
+
+            if (this.compare(child, i) <= 0)
+                break;
+
+            this.swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int d = this.docids[i];
+        this.docids[i] = this.docids[j];
+        this.docids[j] = d;
+
+        double s = this.scores[i];
+        this.scores[i] = this.scores[j];
+        this.scores[j] = s;
+
+        String e = this.externalIds[i];
+        this.externalIds[i] = this.externalIds[j];
+        this.externalIds[j] = e;
+    }
+
+    private void checkIndex(int n) {
+        if ((n < 0) || (n >= this.size))
+            throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
     }
 }
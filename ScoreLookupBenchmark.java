@@ -0,0 +1,218 @@
+/*
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  ScoreLookupBenchmark compares exact BM25 or Indri scoring with
+ *  approximate scoring that uses document length buckets and lookup
+ *  tables (BM25:lengthBuckets or Indri:lengthBuckets).
+ *  <p>
+ *  Usage:  java ScoreLookupBenchmark paramFile
+ *  </p>
+ *  <p>
+ *  The parameter file uses the QryEval syntax.  indexPath,
+ *  queryFilePath and retrievalAlgorithm (BM25 or Indri, and its
+ *  parameters) are required.  Additional parameters:
+ *  </p>
+ *  <ul>
+ *  <li>benchmarkBuckets:  A comma-separated list of bucket counts to
+ *      compare (default 16,64,256).
+ *  <li>benchmarkRepetitions:  The number of times each query is
+ *      evaluated in each mode (default 3).
+ *  </ul>
+ *  <p>
+ *  For each bucket count, the benchmark reports the evaluation time,
+ *  the largest absolute and relative score errors over all of the
+ *  documents that the queries match, the largest relative error of a
+ *  bucket's length in the body field, the mean overlap of the top 100
+ *  documents, and the number of queries whose top 100 documents are
+ *  in a different order.
+ *  </p>
+ */
+public class ScoreLookupBenchmark {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String USAGE =
+    "Usage:  java ScoreLookupBenchmark paramFile\n\n";
+
+  private static final int TOP_K = 100;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param args The only argument is the parameter file name.
+   *  @throws Exception Error accessing the Lucene index.
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException(USAGE);
+    }
+
+    Map<String, String> parameters = QryEval.readParameters(args[0]);
+
+    if (!(parameters.containsKey("indexPath") &&
+          parameters.containsKey("queryFilePath") &&
+          parameters.containsKey("retrievalAlgorithm"))) {
+      throw new IllegalArgumentException
+        ("Required parameters were missing from the parameter file.");
+    }
+
+    String bucketsParameter;
+    String algorithm = parameters.get("retrievalAlgorithm").toLowerCase();
+
+    if (algorithm.equals("bm25")) {
+      bucketsParameter = "BM25:lengthBuckets";
+    } else if (algorithm.equals("indri")) {
+      bucketsParameter = "Indri:lengthBuckets";
+    } else {
+      throw new IllegalArgumentException
+        ("Lookup tables are only supported for BM25 and Indri.");
+    }
+
+    int repetitions = 3;
+
+    if (parameters.containsKey("benchmarkRepetitions"))
+      repetitions = Integer.parseInt(parameters.get("benchmarkRepetitions"));
+
+    String bucketCounts = "16,64,256";
+
+    if (parameters.containsKey("benchmarkBuckets"))
+      bucketCounts = parameters.get("benchmarkBuckets");
+
+    parameters.put(bucketsParameter, "0");
+    RetrievalModel exact = QryEval.initialize(parameters);
+
+    //  Read the queries, and evaluate them exactly.
+
+    List<String> qids = new ArrayList<String>();
+    List<QryPlan> plans = new ArrayList<QryPlan>();
+    BufferedReader input =
+      new BufferedReader(new FileReader(parameters.get("queryFilePath")));
+
+    try {
+      String line;
+
+      while ((line = input.readLine()) != null) {
+        int d = line.indexOf(':');
+
+        if (d < 0) {
+          throw new IllegalArgumentException
+            ("Syntax error:  Missing ':' in query line.");
+        }
+
+        QryPlan plan = QryEval.compileQuery(line.substring(d + 1), exact);
+
+        if (plan != null) {
+          qids.add(line.substring(0, d));
+          plans.add(plan);
+        }
+      }
+    } finally {
+      input.close();
+    }
+
+    long[] nanos = new long[1];
+    List<ScoreList> exactResults = evaluate(plans, exact, repetitions, nanos);
+
+    System.out.println(plans.size() + " queries, " + repetitions +
+                       " repetitions");
+    System.out.println(String.format
+      ("  %-8s %10.1f ms", "exact", nanos[0] / 1e6));
+
+    for (String count : bucketCounts.split(",")) {
+      int buckets = Integer.parseInt(count.trim());
+
+      parameters.put(bucketsParameter, Integer.toString(buckets));
+      RetrievalModel approximate = QryEval.initializeRetrievalModel(parameters);
+
+      nanos[0] = 0;
+      List<ScoreList> results = evaluate(plans, approximate, repetitions, nanos);
+
+      double maxAbsoluteError = 0;
+      double maxRelativeError = 0;
+      double overlap = 0;
+      int reordered = 0;
+
+      for (int q = 0; q < plans.size(); q++) {
+        ScoreList e = exactResults.get(q);
+        ScoreList a = results.get(q);
+
+        //  Both lists are in docid order before sorting.
+
+        for (int i = 0; i < e.size(); i++) {
+          double error = Math.abs(e.getDocidScore(i) - a.getDocidScore(i));
+
+          maxAbsoluteError = Math.max(maxAbsoluteError, error);
+
+          if (e.getDocidScore(i) != 0)
+            maxRelativeError = Math.max
+              (maxRelativeError, error / Math.abs(e.getDocidScore(i)));
+        }
+
+        e.selectTop(TOP_K);
+        a.selectTop(TOP_K);
+
+        Set<Integer> top = new HashSet<Integer>();
+        boolean same = (e.size() == a.size());
+
+        for (int i = 0; i < e.size(); i++)
+          top.add(e.getDocid(i));
+
+        int shared = 0;
+
+        for (int i = 0; i < a.size(); i++) {
+          if (top.contains(a.getDocid(i)))
+            shared++;
+          if (same && (a.getDocid(i) != e.getDocid(i)))
+            same = false;
+        }
+
+        overlap += (e.size() > 0) ? (double) shared / e.size() : 1.0;
+
+        if (!same)
+          reordered++;
+
+        //  Restore docid order for the next bucket count.
+
+        exactResults.set(q, QryEval.doQuery(plans.get(q), exact));
+      }
+
+      System.out.println(String.format
+        ("  %-8s %10.1f ms  max abs error %.3e  max rel error %.3e  " +
+         "max body length error %.3f  top %d overlap %.4f  reordered %d of %d",
+         buckets + "", nanos[0] / 1e6, maxAbsoluteError, maxRelativeError,
+         DocLengthBuckets.get("body", buckets).getMaxLengthError(), TOP_K,
+         overlap / Math.max(plans.size(), 1), reordered, plans.size()));
+    }
+  }
+
+  /**
+   *  Evaluate each plan several times, and return the last results.
+   */
+  private static List<ScoreList> evaluate(List<QryPlan> plans,
+                                          RetrievalModel model,
+                                          int repetitions, long[] nanos)
+    throws IOException {
+
+    List<ScoreList> results = new ArrayList<ScoreList>();
+
+    for (QryPlan plan : plans) {
+      ScoreList r = null;
+
+      for (int i = 0; i < repetitions; i++) {
+        long start = System.nanoTime();
+        r = QryEval.doQuery(plan, model);
+        nanos[0] += System.nanoTime() - start;
+      }
+
+      results.add(r);
+    }
+
+    return results;
+  }
+}